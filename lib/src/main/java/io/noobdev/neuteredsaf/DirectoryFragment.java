@@ -49,6 +49,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AbsListView;
 import android.widget.AbsListView.MultiChoiceModeListener;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AbsListView.RecyclerListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
@@ -65,6 +66,7 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.Map;
 
 import io.noobdev.neuteredsaf.DocumentsActivity.State;
 import io.noobdev.neuteredsaf.ProviderExecutor.Preemptable;
@@ -92,6 +94,7 @@ public class DirectoryFragment extends Fragment {
 
     public static final int TYPE_NORMAL = 1;
     public static final int TYPE_SEARCH = 2;
+    public static final int TYPE_SEARCH_ALL = 3;
 
     public static final int ANIM_NONE = 1;
     public static final int ANIM_SIDE = 2;
@@ -128,6 +131,10 @@ public class DirectoryFragment extends Fragment {
         show(fm, TYPE_SEARCH, root, null, query, anim);
     }
 
+    public static void showSearchAll(FragmentManager fm, String query, int anim) {
+        show(fm, TYPE_SEARCH_ALL, null, null, query, anim);
+    }
+
     private static void show(FragmentManager fm, int type, RootInfo root, DocumentInfo doc,
             String query, int anim) {
         final Bundle args = new Bundle();
@@ -181,6 +188,7 @@ public class DirectoryFragment extends Fragment {
         mListView.setOnItemClickListener(mItemListener);
         mListView.setMultiChoiceModeListener(mMultiListener);
         mListView.setRecyclerListener(mRecycleListener);
+        mListView.setOnScrollListener(mScrollListener);
 
         // Indent our list divider to align with text
         final Drawable divider = mListView.getDivider();
@@ -196,6 +204,7 @@ public class DirectoryFragment extends Fragment {
         mGridView.setOnItemClickListener(mItemListener);
         mGridView.setMultiChoiceModeListener(mMultiListener);
         mGridView.setRecyclerListener(mRecycleListener);
+        mGridView.setOnScrollListener(mScrollListener);
 
         return view;
     }
@@ -246,10 +255,16 @@ public class DirectoryFragment extends Fragment {
                         return new DirectoryLoader(
                                 context, mType, root, doc, contentsUri, state.userSortOrder);
                     case TYPE_SEARCH:
+                        // Let the provider build on the previous search from this activity
+                        final Bundle queryArgs = new Bundle();
+                        queryArgs.putString(DocumentsContractCompat.QUERY_ARG_SESSION,
+                                state.searchSession);
                         contentsUri = DocumentsContractCompat.buildSearchDocumentsUri(
-                                root.authority, root.rootId, query);
+                                root.authority, root.rootId, query, queryArgs);
                         return new DirectoryLoader(
                                 context, mType, root, doc, contentsUri, state.userSortOrder);
+                    case TYPE_SEARCH_ALL:
+                        return new SearchAllLoader(context, state, query);
                     default:
                         throw new IllegalStateException("Unknown type " + mType);
                 }
@@ -506,6 +521,21 @@ public class DirectoryFragment extends Fragment {
         return ((DocumentsActivity) fragment.getActivity()).getDisplayState();
     }
 
+    private OnScrollListener mScrollListener = new OnScrollListener() {
+        @Override
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+        }
+
+        @Override
+        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                int totalItemCount) {
+            // Also called after each layout, so results that don't fill the view are paged too
+            if (mAdapter != null) {
+                mAdapter.loadMoreIfShown(firstVisibleItem + visibleItemCount);
+            }
+        }
+    };
+
     private static abstract class Footer {
         private final int mItemViewType;
 
@@ -584,12 +614,21 @@ public class DirectoryFragment extends Fragment {
         private int mCursorCount;
 
         private List<Footer> mFooters = Lists.newArrayList();
+        /** Titles of the roots of the documents, if they come from several roots. */
+        private Map<String, String> mRootTitles;
+
+        /** Whether the provider can return more search results if asked. */
+        private boolean mHasMore;
+        private boolean mMoreRequested;
 
         public void swapResult(DirectoryResult result) {
             mCursor = result != null ? result.cursor : null;
             mCursorCount = mCursor != null ? mCursor.getCount() : 0;
+            mRootTitles = result != null ? result.rootTitles : null;
 
             mFooters.clear();
+            mHasMore = false;
+            mMoreRequested = false;
 
             final Bundle extras = mCursor != null ? mCursor.getExtras() : null;
             if (extras != null) {
@@ -601,7 +640,9 @@ public class DirectoryFragment extends Fragment {
                 if (error != null) {
                     mFooters.add(new MessageFooter(3, R.drawable.ic_dialog_alert, error));
                 }
-                if (extras.getBoolean(DocumentsContractCompat.EXTRA_LOADING, false)) {
+                mHasMore = extras.getBoolean(DocumentsContractCompat.EXTRA_HAS_MORE, false);
+                if (mHasMore
+                        || extras.getBoolean(DocumentsContractCompat.EXTRA_LOADING, false)) {
                     mFooters.add(new LoadingFooter());
                 }
             }
@@ -620,6 +661,24 @@ public class DirectoryFragment extends Fragment {
             notifyDataSetChanged();
         }
 
+        /**
+         * Ask the loader for more search results once the footers are scrolled into view.
+         *
+         * @param visibleEnd position after the last visible item
+         */
+        public void loadMoreIfShown(int visibleEnd) {
+            if (!mHasMore || mMoreRequested || visibleEnd <= mCursorCount) {
+                return;
+            }
+            mMoreRequested = true;
+            final Loader<DirectoryResult> loader = getLoaderManager().getLoader(mLoaderId);
+            if (loader instanceof DirectoryLoader) {
+                ((DirectoryLoader) loader).loadMoreResults();
+            } else if (loader instanceof SearchAllLoader) {
+                ((SearchAllLoader) loader).loadMoreResults();
+            }
+        }
+
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
             if (position < mCursorCount) {
@@ -751,10 +810,18 @@ public class DirectoryFragment extends Fragment {
             }
 
             if (summary != null) {
+                final String docRootTitle = mRootTitles != null
+                        ? mRootTitles.get(DirectoryResult.getRootKey(docAuthority, docRootId))
+                        : null;
                 if (docSummary != null) {
                     summary.setText(docSummary);
                     summary.setVisibility(View.VISIBLE);
                     hasLine2 = true;
+                } else if (docRootTitle != null) {
+                    // Results come from several roots
+                    summary.setText(docRootTitle);
+                    summary.setVisibility(View.VISIBLE);
+                    hasLine2 = true;
                 } else {
                     summary.setVisibility(View.INVISIBLE);
                 }
@@ -782,7 +849,8 @@ public class DirectoryFragment extends Fragment {
 
             if (state.showSize) {
                 size.setVisibility(View.VISIBLE);
-                if (Document.MIME_TYPE_DIR.equals(docMimeType) || docSize == -1) {
+                // Directories have a size once the provider has added it up
+                if (docSize == -1) {
                     size.setText(null);
                 } else {
                     size.setText(Formatter.formatFileSize(context, docSize));
@@ -953,8 +1021,9 @@ public class DirectoryFragment extends Fragment {
     private boolean isDocumentEnabled(String docMimeType, int docFlags) {
         final State state = getDisplayState(DirectoryFragment.this);
 
-        // Directories are always enabled
-        if (Document.MIME_TYPE_DIR.equals(docMimeType)) {
+        // Directories and archives are always enabled
+        if (Document.MIME_TYPE_DIR.equals(docMimeType)
+                || (docFlags & Document.FLAG_ARCHIVE) != 0) {
             return true;
         }
 
@@ -29,6 +29,7 @@ import android.util.Log;
 
 import java.io.Closeable;
 import java.io.FileNotFoundException;
+import java.util.Map;
 
 import io.noobdev.neuteredsaf.DocumentsActivity.State;
 import io.noobdev.neuteredsaf.RecentsProvider.StateColumns;
@@ -48,6 +49,15 @@ class DirectoryResult implements Closeable {
 
     int mode = State.MODE_UNKNOWN;
     int sortOrder = State.SORT_ORDER_UNKNOWN;
+    /**
+     * Titles of the roots that the documents came from, by {@link #getRootKey(String, String)},
+     * or null if they all come from the same root.
+     */
+    Map<String, String> rootTitles;
+
+    static String getRootKey(String authority, String rootId) {
+        return authority + '\0' + rootId;
+    }
 
     @Override
     public void close() {
@@ -62,6 +72,9 @@ public class DirectoryLoader extends AsyncTaskLoader<DirectoryResult> {
 
     private static final String[] SEARCH_REJECT_MIMES = new String[] { Document.MIME_TYPE_DIR };
 
+    /** Number of search results to ask for at a time. */
+    private static final int SEARCH_PAGE_SIZE = 64;
+
     private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
 
     private final int mType;
@@ -73,6 +86,14 @@ public class DirectoryLoader extends AsyncTaskLoader<DirectoryResult> {
     private CancellationSignal mSignal;
     private DirectoryResult mResult;
 
+    /**
+     * Sorted view built by the last load. Its sort keys stay valid after its cursor is closed,
+     * so the next load can patch it instead of sorting from scratch.
+     */
+    private volatile SortingCursorWrapper mLastSorted;
+
+    private volatile int mSearchLimit = SEARCH_PAGE_SIZE;
+
     public DirectoryLoader(Context context, int type, RootInfo root, DocumentInfo doc, Uri uri,
             int userSortOrder) {
         // TODO: CXL
@@ -143,6 +164,8 @@ public class DirectoryLoader extends AsyncTaskLoader<DirectoryResult> {
         } else {
             if ((mDoc.flags & Document.FLAG_DIR_PREFERS_LAST_MODIFIED) != 0) {
                 result.sortOrder = State.SORT_ORDER_LAST_MODIFIED;
+            } else if ((mDoc.flags & Document.FLAG_DIR_PREFERS_SIZE) != 0) {
+                result.sortOrder = State.SORT_ORDER_SIZE;
             } else {
                 result.sortOrder = State.SORT_ORDER_DISPLAY_NAME;
             }
@@ -160,8 +183,14 @@ public class DirectoryLoader extends AsyncTaskLoader<DirectoryResult> {
         try {
             client = DocumentsApplication.acquireUnstableProviderOrThrow(resolver, authority);
 
+            Uri uri = mUri;
+            if (mType == DirectoryFragment.TYPE_SEARCH) {
+                uri = uri.buildUpon().appendQueryParameter(DocumentsContractCompat.QUERY_ARG_LIMIT,
+                        String.valueOf(mSearchLimit)).build();
+            }
+
             cursor = client.query(
-                    mUri, null, null, null, getQuerySortOrder(result.sortOrder), mSignal);
+                    uri, null, null, null, getQuerySortOrder(result.sortOrder), mSignal);
             cursor.registerContentObserver(mObserver);
 
             cursor = new RootCursorWrapper(mUri.getAuthority(), mRoot.rootId, cursor, -1);
@@ -171,7 +200,10 @@ public class DirectoryLoader extends AsyncTaskLoader<DirectoryResult> {
                 cursor = new FilteringCursorWrapper(cursor, null, SEARCH_REJECT_MIMES);
             } else {
                 // Normal directories should have sorting applied
-                cursor = new SortingCursorWrapper(cursor, result.sortOrder);
+                final SortingCursorWrapper sorted = SortingCursorWrapper.create(
+                        cursor, result.sortOrder, mLastSorted);
+                mLastSorted = sorted;
+                cursor = sorted;
             }
 
             result.client = client;
@@ -189,6 +221,17 @@ public class DirectoryLoader extends AsyncTaskLoader<DirectoryResult> {
         return result;
     }
 
+    /**
+     * Ask for another page of search results. Providers that support paging set
+     * {@link DocumentsContractCompat#EXTRA_HAS_MORE} when there are more results.
+     */
+    public void loadMoreResults() {
+        if (mType != DirectoryFragment.TYPE_SEARCH) return;
+
+        mSearchLimit += SEARCH_PAGE_SIZE;
+        onContentChanged();
+    }
+
     @Override
     public void cancelLoadInBackground() {
         super.cancelLoadInBackground();
@@ -247,6 +290,7 @@ public class DirectoryLoader extends AsyncTaskLoader<DirectoryResult> {
 
         IOUtils.closeQuietly(mResult);
         mResult = null;
+        mLastSorted = null;
 
         getContext().getContentResolver().unregisterContentObserver(mObserver);
     }
@@ -66,6 +66,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.Executor;
 
 import io.noobdev.neuteredsaf.RecentsProvider.ResumeColumns;
@@ -467,6 +468,7 @@ public class DocumentsActivity extends AppCompatActivity {
 
         final MenuItem createDir = menu.findItem(R.id.menu_create_dir);
         final MenuItem search = menu.findItem(R.id.menu_search);
+        final MenuItem searchAll = menu.findItem(R.id.menu_search_all_roots);
         final MenuItem sort = menu.findItem(R.id.menu_sort);
         final MenuItem sortSize = menu.findItem(R.id.menu_sort_size);
         final MenuItem grid = menu.findItem(R.id.menu_grid);
@@ -520,6 +522,8 @@ public class DocumentsActivity extends AppCompatActivity {
 
         // TODO: close any search in-progress when hiding
         search.setVisible(searchVisible);
+        searchAll.setVisible(searchVisible);
+        searchAll.setChecked(mState.searchAllRoots);
 
         return true;
     }
@@ -539,6 +543,14 @@ public class DocumentsActivity extends AppCompatActivity {
             return true;
         } else if (id == R.id.menu_search) {
             return false;
+        } else if (id == R.id.menu_search_all_roots) {
+            mState.searchAllRoots = !mState.searchAllRoots;
+            if (mState.currentSearch != null) {
+                onCurrentDirectoryChanged(ANIM_NONE);
+            } else {
+                invalidateOptionsMenu();
+            }
+            return true;
         } else if (id == R.id.menu_sort_name) {
             setUserSortOrder(State.SORT_ORDER_DISPLAY_NAME);
             return true;
@@ -739,7 +751,10 @@ public class DocumentsActivity extends AppCompatActivity {
             // Open default root if nothing is selected
             onRootPicked(getCurrentRoot(), false);
         } else {
-            if (mState.currentSearch != null) {
+            if (mState.currentSearch != null && mState.searchAllRoots) {
+                // Ongoing search across all roots
+                DirectoryFragment.showSearchAll(fm, mState.currentSearch, anim);
+            } else if (mState.currentSearch != null) {
                 // Ongoing search
                 DirectoryFragment.showSearch(fm, root, mState.currentSearch, anim);
             } else {
@@ -833,7 +848,9 @@ public class DocumentsActivity extends AppCompatActivity {
 
     public void onDocumentPicked(DocumentInfo doc) {
         final FragmentManager fm = getFragmentManager();
-        if (doc.isDirectory()) {
+        // Archives are opened like directories unless they are what the caller wants
+        if (doc.isDirectory() || (doc.isArchive()
+                && !MimePredicate.mimeMatches(mState.acceptMimes, doc.mimeType))) {
             mState.stack.push(doc);
             mState.stackTouched = true;
             onCurrentDirectoryChanged(ANIM_DOWN);
@@ -1019,6 +1036,10 @@ public class DocumentsActivity extends AppCompatActivity {
         public DocumentStack stack = new DocumentStack();
         /** Currently active search, overriding any stack. */
         public String currentSearch;
+        /** Identifies the searches made from this activity to providers. */
+        public String searchSession = UUID.randomUUID().toString();
+        /** Whether searches cover all roots instead of the current one. */
+        public boolean searchAllRoots = false;
 
         /** Instance state for every shown directory */
         public HashMap<String, SparseArray<Parcelable>> dirState = Maps.newHashMap();
@@ -1053,6 +1074,8 @@ public class DocumentsActivity extends AppCompatActivity {
             out.writeInt(restored ? 1 : 0);
             DurableUtils.writeToParcel(out, stack);
             out.writeString(currentSearch);
+            out.writeString(searchSession);
+            out.writeInt(searchAllRoots ? 1 : 0);
             out.writeMap(dirState);
         }
 
@@ -1070,6 +1093,8 @@ public class DocumentsActivity extends AppCompatActivity {
                 state.restored = in.readInt() != 0;
                 DurableUtils.readFromParcel(in, state.stack);
                 state.currentSearch = in.readString();
+                state.searchSession = in.readString();
+                state.searchAllRoots = in.readInt() != 0;
                 in.readMap(state.dirState, null);
                 return state;
             }
@@ -254,14 +254,13 @@ public class IconUtils {
         }
 
         // Otherwise look for partial match
-        final String typeOnly = mimeType.split("/")[0];
-        if ("audio".equals(typeOnly)) {
+        if (mimeType.startsWith("audio/")) {
             return ContextCompat.getDrawable(context, R.drawable.ic_doc_audio);
-        } else if ("image".equals(typeOnly)) {
+        } else if (mimeType.startsWith("image/")) {
             return ContextCompat.getDrawable(context, R.drawable.ic_doc_image);
-        } else if ("text".equals(typeOnly)) {
+        } else if (mimeType.startsWith("text/")) {
             return ContextCompat.getDrawable(context, R.drawable.ic_doc_text);
-        } else if ("video".equals(typeOnly)) {
+        } else if (mimeType.startsWith("video/")) {
             return ContextCompat.getDrawable(context, R.drawable.ic_doc_video);
         } else {
             return ContextCompat.getDrawable(context, R.drawable.ic_doc_generic);
@@ -0,0 +1,459 @@
+package io.noobdev.neuteredsaf;
+
+import android.content.AsyncTaskLoader;
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.MergeCursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.noobdev.neuteredsaf.DocumentsActivity.State;
+import io.noobdev.neuteredsaf.compat.ContentProviderClientCompat;
+import io.noobdev.neuteredsaf.compat.DocumentsContractCompat;
+import io.noobdev.neuteredsaf.compat.DocumentsContractCompat.Document;
+import io.noobdev.neuteredsaf.compat.DocumentsContractCompat.Root;
+import io.noobdev.neuteredsaf.compat.IOUtils;
+import io.noobdev.neuteredsaf.internal.annotations.GuardedBy;
+import io.noobdev.neuteredsaf.model.RootInfo;
+
+/**
+ * Searches all roots that support searching at once and merges their results. Each root is
+ * queried on its own thread and gets its own deadline: results from roots that answered in
+ * time are delivered right away and roots that are still searching are merged in once they
+ * answer, so one slow volume doesn't hold back the others.
+ */
+public class SearchAllLoader extends AsyncTaskLoader<DirectoryResult> {
+    private static final String TAG = "SearchAllLoader";
+
+    private static final String[] SEARCH_REJECT_MIMES = new String[] { Document.MIME_TYPE_DIR };
+
+    /** How long to wait for each root before delivering the results that are there. */
+    private static final long ROOT_DEADLINE_MILLIS = 500;
+
+    /** Number of search results to ask each root for at a time. */
+    private static final int SEARCH_PAGE_SIZE = 64;
+
+    /**
+     * Providers usually have a single {@link ProviderExecutor} thread for all of their roots,
+     * which would search them one after the other.
+     */
+    private static final Executor sExecutor = AsyncTask.THREAD_POOL_EXECUTOR;
+
+    private final State mState;
+    private final String mQuery;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mContentChanged = new Runnable() {
+        @Override
+        public void run() {
+            onContentChanged();
+        }
+    };
+
+    /** Created by the first load. */
+    private List<RootSearch> mSearches;
+    private DirectoryResult mResult;
+
+    private volatile int mSearchLimit = SEARCH_PAGE_SIZE;
+
+    public SearchAllLoader(Context context, State state, String query) {
+        super(context);
+        mState = state;
+        mQuery = query;
+    }
+
+    /**
+     * Latest results of the search in one root. Each result holds its own reference to the
+     * cursors it shows, so a cursor stays open while any result that was loaded with it does,
+     * even after a newer one arrived.
+     */
+    private class RootSearch extends ContentObserver {
+        private final RootInfo mRoot;
+
+        @GuardedBy("this")
+        private SharedCursor mCursor;
+        @GuardedBy("this")
+        private FutureTask<Cursor> mPending;
+        @GuardedBy("this")
+        private long mPendingSince;
+        /** Set when the root's results changed since they were last queried. */
+        @GuardedBy("this")
+        private boolean mStale = true;
+        /** Set while a load is waiting for the pending query. */
+        @GuardedBy("this")
+        private boolean mAwaited;
+        @GuardedBy("this")
+        private boolean mClosed;
+
+        RootSearch(RootInfo root) {
+            super(null);
+            mRoot = root;
+        }
+
+        /**
+         * Query the root again if its results changed.
+         */
+        synchronized void startIfStale(final int limit) {
+            if (!mStale || mPending != null || mClosed) {
+                return;
+            }
+            mStale = false;
+            mPendingSince = SystemClock.uptimeMillis();
+            mPending = new FutureTask<Cursor>(new Callable<Cursor>() {
+                @Override
+                public Cursor call() throws Exception {
+                    return query(limit);
+                }
+            }) {
+                @Override
+                protected void done() {
+                    onQueryDone(this);
+                }
+            };
+            sExecutor.execute(mPending);
+        }
+
+        private Cursor query(int limit) throws Exception {
+            final ContentResolver resolver = getContext().getContentResolver();
+            final Bundle queryArgs = new Bundle();
+            queryArgs.putString(DocumentsContractCompat.QUERY_ARG_LIMIT, String.valueOf(limit));
+            queryArgs.putString(DocumentsContractCompat.QUERY_ARG_SESSION, mState.searchSession);
+            final Uri uri = DocumentsContractCompat.buildSearchDocumentsUri(
+                    mRoot.authority, mRoot.rootId, mQuery, queryArgs);
+
+            ContentProviderClient client = null;
+            try {
+                client = DocumentsApplication.acquireUnstableProviderOrThrow(
+                        resolver, mRoot.authority);
+                final Cursor cursor = client.query(uri, null, null, null, null);
+                cursor.registerContentObserver(this);
+                return new RootCursorWrapper(mRoot.authority, mRoot.rootId, cursor, -1);
+            } finally {
+                ContentProviderClientCompat.releaseQuietly(client);
+            }
+        }
+
+        private void onQueryDone(FutureTask<Cursor> task) {
+            synchronized (this) {
+                if (mClosed) {
+                    closeResult(task);
+                    return;
+                }
+                if (mAwaited) {
+                    // The load that is waiting picks it up
+                    return;
+                }
+            }
+            mHandler.post(mContentChanged);
+        }
+
+        /**
+         * Wait for the pending query until this root's deadline.
+         *
+         * @return whether the root is still searching
+         */
+        boolean await() {
+            final FutureTask<Cursor> pending;
+            final long remaining;
+            synchronized (this) {
+                pending = mPending;
+                if (pending == null) {
+                    return mCursor != null && isLoading(mCursor.cursor);
+                }
+                remaining = mPendingSince + ROOT_DEADLINE_MILLIS - SystemClock.uptimeMillis();
+                mAwaited = true;
+            }
+
+            try {
+                pending.get(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // Handled below
+            } catch (InterruptedException e) {
+                // Handled below
+            } catch (ExecutionException e) {
+                // Handled below
+            } finally {
+                synchronized (this) {
+                    mAwaited = false;
+                }
+            }
+
+            synchronized (this) {
+                if (!pending.isDone()) {
+                    return true;
+                }
+                mPending = null;
+                try {
+                    final Cursor cursor = pending.get();
+                    if (mCursor != null) {
+                        mCursor.release();
+                    }
+                    mCursor = new SharedCursor(cursor);
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "Failed to search " + mRoot.rootId, e);
+                } catch (ExecutionException e) {
+                    Log.w(TAG, "Failed to search " + mRoot.rootId, e);
+                }
+                return mCursor != null && isLoading(mCursor.cursor);
+            }
+        }
+
+        /**
+         * @return a new reference to the latest cursor, which the caller must close, or null
+         */
+        synchronized RetainedCursor retainCursor() {
+            if (mCursor == null) {
+                return null;
+            }
+            mCursor.acquire();
+            return new RetainedCursor(mCursor);
+        }
+
+        synchronized void markStale() {
+            mStale = true;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            markStale();
+            mHandler.post(mContentChanged);
+        }
+
+        void close() {
+            final FutureTask<Cursor> pending;
+            synchronized (this) {
+                mClosed = true;
+                pending = mPending;
+                mPending = null;
+                if (mCursor != null) {
+                    mCursor.release();
+                }
+                mCursor = null;
+            }
+            if (pending != null && pending.isDone()) {
+                closeResult(pending);
+            }
+        }
+
+        private void closeResult(FutureTask<Cursor> task) {
+            try {
+                IOUtils.closeQuietly(task.get());
+            } catch (InterruptedException e) {
+                // Nothing to close
+            } catch (ExecutionException e) {
+                // Nothing to close
+            }
+        }
+    }
+
+    /**
+     * Cursor of a root that is closed once its {@link RootSearch} and every result reading it
+     * have released it.
+     */
+    private static class SharedCursor {
+        final Cursor cursor;
+
+        @GuardedBy("this")
+        private int mRefCount = 1;
+
+        SharedCursor(Cursor cursor) {
+            this.cursor = cursor;
+        }
+
+        synchronized void acquire() {
+            mRefCount++;
+        }
+
+        void release() {
+            synchronized (this) {
+                if (--mRefCount > 0) return;
+            }
+            IOUtils.closeQuietly(cursor);
+        }
+    }
+
+    /**
+     * One reference to a root's cursor. Closing it, which happens when the merged cursor is
+     * closed, only releases the reference.
+     */
+    private static class RetainedCursor extends CursorWrapper {
+        private final SharedCursor mShared;
+        private boolean mReleased;
+
+        RetainedCursor(SharedCursor shared) {
+            super(shared.cursor);
+            mShared = shared;
+        }
+
+        @Override
+        public void close() {
+            if (!mReleased) {
+                mReleased = true;
+                mShared.release();
+            }
+        }
+    }
+
+    private static boolean isLoading(Cursor cursor) {
+        final Bundle extras = cursor != null ? cursor.getExtras() : null;
+        return extras != null && extras.getBoolean(DocumentsContractCompat.EXTRA_LOADING, false);
+    }
+
+    private static boolean hasMore(Cursor cursor) {
+        final Bundle extras = cursor != null ? cursor.getExtras() : null;
+        return extras != null && extras.getBoolean(DocumentsContractCompat.EXTRA_HAS_MORE, false);
+    }
+
+    @Override
+    public DirectoryResult loadInBackground() {
+        final List<RootSearch> searches;
+        synchronized (this) {
+            if (mSearches == null) {
+                mSearches = Lists.newArrayList();
+                for (RootInfo root :
+                        DocumentsApplication.getRootsCache(getContext())
+                                .getMatchingRootsBlocking(mState)) {
+                    if ((root.flags & Root.FLAG_SUPPORTS_SEARCH) != 0) {
+                        mSearches.add(new RootSearch(root));
+                    }
+                }
+            }
+            searches = mSearches;
+        }
+
+        final int limit = mSearchLimit;
+        for (RootSearch search : searches) {
+            search.startIfStale(limit);
+        }
+
+        boolean loading = false;
+        boolean hasMore = false;
+        final ArrayList<Cursor> cursors = Lists.newArrayList();
+        // Resolved here so that the adapter doesn't have to wait for the roots cache
+        final HashMap<String, String> rootTitles = Maps.newHashMap();
+        for (RootSearch search : searches) {
+            rootTitles.put(DirectoryResult.getRootKey(search.mRoot.authority,
+                    search.mRoot.rootId), search.mRoot.title);
+            loading |= search.await();
+            final RetainedCursor cursor = search.retainCursor();
+            if (cursor != null) {
+                hasMore |= hasMore(cursor);
+                cursors.add(cursor);
+            }
+        }
+
+        final Bundle extras = new Bundle();
+        extras.putBoolean(DocumentsContractCompat.EXTRA_LOADING, loading);
+        extras.putBoolean(DocumentsContractCompat.EXTRA_HAS_MORE, hasMore);
+        final MergeCursor merged = new MergeCursor(cursors.toArray(new Cursor[cursors.size()])) {
+            @Override
+            public Bundle getExtras() {
+                return extras;
+            }
+        };
+
+        final DirectoryResult result = new DirectoryResult();
+        // Search always uses ranking from provider
+        result.sortOrder = State.SORT_ORDER_UNKNOWN;
+        // Filter directories out of search results, for now
+        result.cursor = new FilteringCursorWrapper(merged, null, SEARCH_REJECT_MIMES);
+        result.rootTitles = rootTitles;
+        return result;
+    }
+
+    /**
+     * Ask every root for another page of search results.
+     */
+    public void loadMoreResults() {
+        mSearchLimit += SEARCH_PAGE_SIZE;
+        synchronized (this) {
+            if (mSearches != null) {
+                for (RootSearch search : mSearches) {
+                    search.markStale();
+                }
+            }
+        }
+        onContentChanged();
+    }
+
+    @Override
+    public void deliverResult(DirectoryResult result) {
+        if (isReset()) {
+            IOUtils.closeQuietly(result);
+            return;
+        }
+        DirectoryResult oldResult = mResult;
+        mResult = result;
+
+        if (isStarted()) {
+            super.deliverResult(result);
+        }
+
+        if (oldResult != null && oldResult != result) {
+            IOUtils.closeQuietly(oldResult);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (mResult != null) {
+            deliverResult(mResult);
+        }
+        if (takeContentChanged() || mResult == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    public void onCanceled(DirectoryResult result) {
+        IOUtils.closeQuietly(result);
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+
+        // Ensure the loader is stopped
+        onStopLoading();
+
+        IOUtils.closeQuietly(mResult);
+        mResult = null;
+
+        mHandler.removeCallbacks(mContentChanged);
+        synchronized (this) {
+            if (mSearches != null) {
+                for (RootSearch search : mSearches) {
+                    search.close();
+                }
+                mSearches = null;
+            }
+        }
+    }
+}
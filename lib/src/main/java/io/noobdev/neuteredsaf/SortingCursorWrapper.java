@@ -23,23 +23,67 @@ import android.database.AbstractCursor;
 import android.database.Cursor;
 import android.os.Bundle;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import io.noobdev.neuteredsaf.compat.DocumentsContractCompat.Document;
 import io.noobdev.neuteredsaf.model.DocumentInfo;
 import io.noobdev.neuteredsaf.DocumentsActivity.State;
+import io.noobdev.neuteredsaf.providers.DirectoryDelta;
+import io.noobdev.neuteredsaf.providers.ProviderConstants;
 
 /**
  * Cursor wrapper that presents a sorted view of the underlying cursor. Handles
  * common {@link Document} sorting modes, such as ordering directories first.
+ * <p>
+ * If the underlying cursor comes from a live directory listing (see
+ * {@link ProviderConstants#EXTRA_LISTING_DELTAS}), the sorted view can be patched from the one
+ * built for an older generation of the same listing with {@link #create}.
  */
 public class SortingCursorWrapper extends AbstractCursor {
     private final Cursor mCursor;
 
+    private final int mSortOrder;
     private final int[] mPosition;
     private final String[] mValueString;
     private final long[] mValueLong;
 
+    /** Live listing that the underlying cursor was built from, if any. */
+    private final long mListingToken;
+    /** Generation of the live listing or -1 if the cursor didn't come from one. */
+    private final int mListingGeneration;
+
+    /**
+     * Sort {@code cursor}, reusing the work done for {@code previous} if {@code cursor} is a
+     * newer generation of the same live directory listing.
+     *
+     * @param previous sorted view of an older cursor, which may have been closed, or null
+     */
+    public static SortingCursorWrapper create(Cursor cursor, int sortOrder,
+            SortingCursorWrapper previous) {
+        if (previous != null && previous.mSortOrder == sortOrder
+                && previous.mListingGeneration >= 0) {
+            final SortingCursorWrapper patched = patch(cursor, previous);
+            if (patched != null) {
+                return patched;
+            }
+        }
+        return new SortingCursorWrapper(cursor, sortOrder);
+    }
+
     public SortingCursorWrapper(Cursor cursor, int sortOrder) {
         mCursor = cursor;
+        mSortOrder = sortOrder;
+
+        final Bundle extras = cursor.getExtras();
+        if (extras != null && extras.containsKey(ProviderConstants.EXTRA_LISTING_TOKEN)) {
+            mListingToken = extras.getLong(ProviderConstants.EXTRA_LISTING_TOKEN);
+            mListingGeneration = extras.getInt(ProviderConstants.EXTRA_LISTING_GENERATION);
+        } else {
+            mListingToken = 0;
+            mListingGeneration = -1;
+        }
 
         final int count = cursor.getCount();
         mPosition = new int[count];
@@ -62,23 +106,10 @@ public class SortingCursorWrapper extends AbstractCursor {
             cursor.moveToNext();
             mPosition[i] = i;
 
-            switch (sortOrder) {
-                case State.SORT_ORDER_DISPLAY_NAME:
-                    final String mimeType = getCursorString(cursor, Document.COLUMN_MIME_TYPE);
-                    final String displayName = getCursorString(
-                            cursor, Document.COLUMN_DISPLAY_NAME);
-                    if (Document.MIME_TYPE_DIR.equals(mimeType)) {
-                        mValueString[i] = DocumentInfo.DIR_PREFIX + displayName;
-                    } else {
-                        mValueString[i] = displayName;
-                    }
-                    break;
-                case State.SORT_ORDER_LAST_MODIFIED:
-                    mValueLong[i] = getCursorLong(cursor, Document.COLUMN_LAST_MODIFIED);
-                    break;
-                case State.SORT_ORDER_SIZE:
-                    mValueLong[i] = getCursorLong(cursor, Document.COLUMN_SIZE);
-                    break;
+            if (mValueString != null) {
+                mValueString[i] = getSortString(cursor);
+            } else {
+                mValueLong[i] = getSortLong(cursor, sortOrder);
             }
         }
 
@@ -96,6 +127,171 @@ public class SortingCursorWrapper extends AbstractCursor {
         }
     }
 
+    private SortingCursorWrapper(Cursor cursor, int sortOrder, int[] position,
+            String[] valueString, long[] valueLong, long listingToken, int listingGeneration) {
+        mCursor = cursor;
+        mSortOrder = sortOrder;
+        mPosition = position;
+        mValueString = valueString;
+        mValueLong = valueLong;
+        mListingToken = listingToken;
+        mListingGeneration = listingGeneration;
+    }
+
+    /**
+     * Patch the sorted view of {@code previous} with the deltas published in the extras of
+     * {@code cursor}. Removed rows are dropped and the positions of the remaining rows are
+     * shifted. Added and changed rows are read from {@code cursor} and binary inserted, so
+     * only those rows are compared.
+     *
+     * @return the patched view or null if {@code cursor} isn't a newer generation of the same
+     *         listing or the deltas that are needed aren't available anymore
+     */
+    private static SortingCursorWrapper patch(Cursor cursor, SortingCursorWrapper previous) {
+        final Bundle extras = cursor.getExtras();
+        if (extras == null || !extras.containsKey(ProviderConstants.EXTRA_LISTING_TOKEN)
+                || extras.getLong(ProviderConstants.EXTRA_LISTING_TOKEN)
+                        != previous.mListingToken) {
+            return null;
+        }
+        extras.setClassLoader(DirectoryDelta.class.getClassLoader());
+        final int generation = extras.getInt(ProviderConstants.EXTRA_LISTING_GENERATION);
+        final ArrayList<DirectoryDelta> allDeltas =
+                extras.getParcelableArrayList(ProviderConstants.EXTRA_LISTING_DELTAS);
+        if (generation < previous.mListingGeneration || allDeltas == null) {
+            return null;
+        }
+
+        final List<DirectoryDelta> deltas = new ArrayList<>();
+        for (DirectoryDelta delta : allDeltas) {
+            if (delta.generation > previous.mListingGeneration) {
+                deltas.add(delta);
+            }
+        }
+        if (deltas.size() != generation - previous.mListingGeneration
+                || (!deltas.isEmpty()
+                        && deltas.get(0).generation != previous.mListingGeneration + 1)) {
+            return null;
+        }
+
+        final int count = cursor.getCount();
+        int size = previous.mPosition.length;
+        final int capacity = Math.max(size, count);
+        final int[] position = Arrays.copyOf(previous.mPosition, capacity);
+        final String[] valueString = previous.mValueString != null
+                ? Arrays.copyOf(previous.mValueString, capacity) : null;
+        final long[] valueLong = previous.mValueLong != null
+                ? Arrays.copyOf(previous.mValueLong, capacity) : null;
+
+        // Rows that were added or changed and have to be read and inserted at the end
+        int[] dirty = new int[16];
+        int dirtyCount = 0;
+        int listingSize = size;
+
+        for (DirectoryDelta delta : deltas) {
+            if (delta.removed.length > 0) {
+                int kept = 0;
+                for (int i = 0; i < dirtyCount; i++) {
+                    final int shifted = shiftPosition(delta.removed, dirty[i]);
+                    if (shifted >= 0) {
+                        dirty[kept++] = shifted;
+                    }
+                }
+                dirtyCount = kept;
+            }
+
+            if (delta.removed.length > 0 || delta.changed.length > 0) {
+                int kept = 0;
+                for (int i = 0; i < size; i++) {
+                    final int shifted = shiftPosition(delta.removed, position[i]);
+                    if (shifted < 0) {
+                        continue;
+                    }
+                    if (Arrays.binarySearch(delta.changed, shifted) >= 0) {
+                        if (dirtyCount == dirty.length) {
+                            dirty = Arrays.copyOf(dirty, dirtyCount * 2);
+                        }
+                        dirty[dirtyCount++] = shifted;
+                        continue;
+                    }
+                    position[kept] = shifted;
+                    if (valueString != null) {
+                        valueString[kept] = valueString[i];
+                    } else {
+                        valueLong[kept] = valueLong[i];
+                    }
+                    kept++;
+                }
+                size = kept;
+            }
+
+            listingSize -= delta.removed.length;
+            for (int i = 0; i < delta.added; i++) {
+                if (dirtyCount == dirty.length) {
+                    dirty = Arrays.copyOf(dirty, dirtyCount * 2);
+                }
+                dirty[dirtyCount++] = listingSize++;
+            }
+        }
+
+        if (listingSize != count || size + dirtyCount != count) {
+            return null;
+        }
+
+        for (int i = 0; i < dirtyCount; i++) {
+            final int row = dirty[i];
+            if (!cursor.moveToPosition(row)) {
+                return null;
+            }
+            if (valueString != null) {
+                insert(position, valueString, size, row, getSortString(cursor));
+            } else {
+                insert(position, valueLong, size, row, getSortLong(cursor, previous.mSortOrder));
+            }
+            size++;
+        }
+
+        return new SortingCursorWrapper(cursor, previous.mSortOrder,
+                Arrays.copyOf(position, count),
+                valueString != null ? Arrays.copyOf(valueString, count) : null,
+                valueLong != null ? Arrays.copyOf(valueLong, count) : null,
+                previous.mListingToken, generation);
+    }
+
+    /**
+     * @return {@code position} after the rows at {@code removed} are dropped or -1 if the row
+     *         itself was removed
+     */
+    private static int shiftPosition(int[] removed, int position) {
+        if (removed.length == 0) {
+            return position;
+        }
+        final int index = Arrays.binarySearch(removed, position);
+        if (index >= 0) {
+            return -1;
+        }
+        // index is -(number of removed rows before position) - 1
+        return position + index + 1;
+    }
+
+    private static String getSortString(Cursor cursor) {
+        final String mimeType = getCursorString(cursor, Document.COLUMN_MIME_TYPE);
+        final String displayName = getCursorString(cursor, Document.COLUMN_DISPLAY_NAME);
+        if (Document.MIME_TYPE_DIR.equals(mimeType)) {
+            return DocumentInfo.DIR_PREFIX + displayName;
+        } else {
+            return displayName;
+        }
+    }
+
+    private static long getSortLong(Cursor cursor, int sortOrder) {
+        if (sortOrder == State.SORT_ORDER_LAST_MODIFIED) {
+            return getCursorLong(cursor, Document.COLUMN_LAST_MODIFIED);
+        } else {
+            return getCursorLong(cursor, Document.COLUMN_SIZE);
+        }
+    }
+
     @Override
     public Bundle getExtras() {
         return mCursor.getExtras();
@@ -252,4 +448,50 @@ public class SortingCursorWrapper extends AbstractCursor {
             value[left] = pivotValue;
         }
     }
+
+    /**
+     * Insert a row into the first {@code size} entries of a sorted two column dataset, after
+     * any rows with an equal value, like {@link #binarySort(int[], String[])} would.
+     */
+    private static void insert(int[] position, String[] value, int size, int pivotPosition,
+            String pivotValue) {
+        int left = 0;
+        int right = size;
+        while (left < right) {
+            final int mid = (left + right) >>> 1;
+            if (DocumentInfo.compareToIgnoreCaseNullable(pivotValue, value[mid]) < 0) {
+                right = mid;
+            } else {
+                left = mid + 1;
+            }
+        }
+
+        System.arraycopy(position, left, position, left + 1, size - left);
+        System.arraycopy(value, left, value, left + 1, size - left);
+        position[left] = pivotPosition;
+        value[left] = pivotValue;
+    }
+
+    /**
+     * Insert a row into the first {@code size} entries of a sorted two column dataset, after
+     * any rows with an equal value, like {@link #binarySort(int[], long[])} would.
+     */
+    private static void insert(int[] position, long[] value, int size, int pivotPosition,
+            long pivotValue) {
+        int left = 0;
+        int right = size;
+        while (left < right) {
+            final int mid = (left + right) >>> 1;
+            if (Long.valueOf(pivotValue).compareTo(value[mid]) > 0) {
+                right = mid;
+            } else {
+                left = mid + 1;
+            }
+        }
+
+        System.arraycopy(position, left, position, left + 1, size - left);
+        System.arraycopy(value, left, value, left + 1, size - left);
+        position[left] = pivotPosition;
+        value[left] = pivotValue;
+    }
 }
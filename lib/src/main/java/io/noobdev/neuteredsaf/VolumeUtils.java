@@ -23,6 +23,12 @@ public final class VolumeUtils {
         public boolean isPrimary;
         public String id;
         public String mountPoint;
+        /**
+         * Type of the filesystem that holds the volume's files or null if unknown. For a
+         * removable volume served through sdcardfs or FUSE, this is the type of the block
+         * device mounted underneath rather than that of the mount point.
+         */
+        public String fsType;
     }
 
     // Like getmntent()...
@@ -40,6 +46,7 @@ public final class VolumeUtils {
         ArrayList<MountEntry> mountEntries = new ArrayList<>();
         ArrayList<Volume> volumes = new ArrayList<>();
         HashMap<String, String> sdcardfsMap = new HashMap<>();
+        HashMap<Volume, String> backingTypes = new HashMap<>();
 
         FileReader fr = null;
         BufferedReader br = null;
@@ -88,9 +95,19 @@ public final class VolumeUtils {
                     } else {
                         volume.mountPoint = entry.dir;
                     }
+                    backingTypes.put(volume, entry.type);
                     volumes.add(volume);
                 }
             }
+
+            for (Volume v : volumes) {
+                v.fsType = findFsType(mountEntries, v.mountPoint);
+                // Since Android 6, removable volumes are only mounted at /storage through
+                // sdcardfs or FUSE, which pass everything through to the block device's mount
+                if (isStackedFsType(v.fsType) && backingTypes.containsKey(v)) {
+                    v.fsType = backingTypes.get(v);
+                }
+            }
         } catch (FileNotFoundException e) {
             Log.e(TAG, "/proc/mounts does not exist", e);
         } catch (IOException e) {
@@ -102,4 +119,26 @@ public final class VolumeUtils {
 
         return volumes.toArray(new Volume[volumes.size()]);
     }
+
+    private static boolean isStackedFsType(String type) {
+        return "sdcardfs".equals(type) || "fuse".equals(type) || "esdfs".equals(type);
+    }
+
+    /**
+     * Find the type of the filesystem that {@code path} is on, from the mount with the longest
+     * mount point containing it.
+     */
+    private static String findFsType(ArrayList<MountEntry> mountEntries, String path) {
+        MountEntry best = null;
+        for (MountEntry entry : mountEntries) {
+            final String dir = entry.dir;
+            if (path.startsWith(dir) && (path.length() == dir.length() || dir.endsWith("/")
+                    || path.charAt(dir.length()) == '/')) {
+                if (best == null || dir.length() >= best.dir.length()) {
+                    best = entry;
+                }
+            }
+        }
+        return best != null ? best.type : null;
+    }
 }
@@ -252,6 +252,27 @@ public final class DocumentsContractCompat {
          * @see #FLAG_DIR_PREFERS_GRID
          */
         public static final int FLAG_DIR_HIDE_GRID_TITLES = 1 << 16;
+
+        /**
+         * Flag indicating that a directory prefers its contents be sorted by
+         * {@link #COLUMN_SIZE}, largest first. Only valid when
+         * {@link #COLUMN_MIME_TYPE} is {@link #MIME_TYPE_DIR}. Not part of the
+         * platform contract.
+         *
+         * @see #COLUMN_FLAGS
+         */
+        public static final int FLAG_DIR_PREFERS_SIZE = 1 << 24;
+
+        /**
+         * Flag indicating that a document is an archive whose contents can be
+         * listed with {@link DocumentsContractCompat#buildChildDocumentsUri}
+         * like a directory, even though its {@link #COLUMN_MIME_TYPE} is the
+         * type of the archive. The documents inside it are read-only. Not part
+         * of the platform contract.
+         *
+         * @see #COLUMN_FLAGS
+         */
+        public static final int FLAG_ARCHIVE = 1 << 15;
     }
 
     /**
@@ -404,6 +425,32 @@ public final class DocumentsContractCompat {
         public static final int FLAG_ADVANCED = 1 << 17;
     }
 
+    /**
+     * Columns of the status of a copy or move started with
+     * {@link #EXTRA_TRANSFER_ID}. Query {@link #buildTransferUri(String, String)}
+     * for a single row while the transfer is running, and no rows otherwise.
+     * Not part of the platform contract.
+     */
+    public final static class Transfer {
+        private Transfer() {
+        }
+
+        /**
+         * Number of bytes copied so far.
+         * <p>
+         * Type: INTEGER (long)
+         */
+        public static final String COLUMN_BYTES_TRANSFERRED = "bytes_transferred";
+
+        /**
+         * Number of bytes to copy in total, or null if it isn't known yet.
+         * Moves within a volume don't copy anything.
+         * <p>
+         * Type: INTEGER (long)
+         */
+        public static final String COLUMN_TOTAL_BYTES = "total_bytes";
+    }
+
     /**
      * Optional boolean flag included in a directory {@link Cursor#getExtras()}
      * indicating that a document provider is still loading data. For example, a
@@ -432,15 +479,110 @@ public final class DocumentsContractCompat {
      */
     public static final String EXTRA_ERROR = "error";
 
+    /**
+     * Optional boolean flag included in a search {@link Cursor#getExtras()}
+     * indicating that the provider stopped searching because it found as many
+     * results as were asked for with {@link #QUERY_ARG_LIMIT}. Query again with
+     * a higher limit to get more results.
+     */
+    public static final String EXTRA_HAS_MORE = "has_more";
+
+    /**
+     * Search argument with the number of results the caller would like to get.
+     * Providers may return more or stop earlier.
+     *
+     * @see #buildSearchDocumentsUri(String, String, String, Bundle)
+     */
+    public static final String QUERY_ARG_LIMIT = "limit";
+
+    /**
+     * Search argument identifying a sequence of searches made by one client,
+     * such as the queries typed into one search box. Providers may reuse the
+     * work done for the previous query of the same session, eg. by filtering
+     * its results when the new query narrows it down, and may stop the
+     * previous search once a new one arrives.
+     *
+     * @see #buildSearchDocumentsUri(String, String, String, Bundle)
+     */
+    public static final String QUERY_ARG_SESSION = "session";
+
+    /**
+     * Search argument asking for ranked results when set to {@code "true"}.
+     * Providers that support it match names loosely (eg. the query's
+     * characters in order) and return the best {@link #QUERY_ARG_LIMIT}
+     * matches, best first, once they have looked at every document. Results
+     * may change while {@link #EXTRA_LOADING} is set.
+     *
+     * @see #buildSearchDocumentsUri(String, String, String, Bundle)
+     */
+    public static final String QUERY_ARG_RANKED = "ranked";
+
+    /**
+     * Search argument asking to search inside documents instead of their
+     * names when set to {@code "true"}. Providers that support it only look
+     * inside documents that seem to be text and may cap the work done with
+     * {@link #QUERY_ARG_MAX_FILE_SIZE} and {@link #QUERY_ARG_MAX_TOTAL_BYTES}.
+     *
+     * @see #buildSearchDocumentsUri(String, String, String, Bundle)
+     */
+    public static final String QUERY_ARG_CONTENT = "content";
+
+    /**
+     * Content search argument with the size in bytes of the largest document
+     * to look inside.
+     */
+    public static final String QUERY_ARG_MAX_FILE_SIZE = "max_file_size";
+
+    /**
+     * Content search argument with the number of bytes to read, across all
+     * documents, before giving up.
+     */
+    public static final String QUERY_ARG_MAX_TOTAL_BYTES = "max_total_bytes";
+
     public static final String METHOD_CREATE_DOCUMENT = "android:createDocument";
+    public static final String METHOD_GET_CHECKSUM = "android:getChecksum";
+    public static final String METHOD_COPY_DOCUMENT = "android:copyDocument";
+    public static final String METHOD_MOVE_DOCUMENT = "android:moveDocument";
+    public static final String METHOD_CANCEL_TRANSFER = "android:cancelTransfer";
 
     public static final String EXTRA_URI = "uri";
 
+    /**
+     * Name of the {@link java.security.MessageDigest} algorithm for
+     * {@link #METHOD_GET_CHECKSUM}, such as {@code SHA-256} or {@code MD5}.
+     */
+    public static final String EXTRA_ALGORITHM = "algorithm";
+
+    /**
+     * Checksum returned by {@link #METHOD_GET_CHECKSUM}, as lowercase hex.
+     */
+    public static final String EXTRA_CHECKSUM = "checksum";
+
+    /**
+     * Boolean for {@link #METHOD_GET_CHECKSUM} that makes the provider read
+     * the document instead of returning a cached checksum.
+     */
+    public static final String EXTRA_BYPASS_CACHE = "bypass_cache";
+
+    /**
+     * Directory to copy or move a document into, for
+     * {@link #METHOD_COPY_DOCUMENT} and {@link #METHOD_MOVE_DOCUMENT}.
+     */
+    public static final String EXTRA_TARGET_URI = "android.content.extra.TARGET_URI";
+
+    /**
+     * Optional caller-chosen ID of a copy or move, which is used to follow its
+     * progress with {@link #buildTransferUri(String, String)} and to cancel it
+     * with {@link #METHOD_CANCEL_TRANSFER}.
+     */
+    public static final String EXTRA_TRANSFER_ID = "transfer_id";
+
     private static final String PATH_ROOT = "root";
     private static final String PATH_DOCUMENT = "document";
     private static final String PATH_CHILDREN = "children";
     private static final String PATH_SEARCH = "search";
     private static final String PATH_TREE = "tree";
+    private static final String PATH_TRANSFER = "transfer";
 
     private static final String PARAM_QUERY = "query";
 
@@ -535,6 +677,33 @@ public final class DocumentsContractCompat {
                 .build();
     }
 
+    /**
+     * Build URI representing the status of a copy or move. When queried, a
+     * provider will return a row with columns defined by {@link Transfer}
+     * while the transfer is running. Changes are notified on this URI as the
+     * transfer progresses.
+     *
+     * @see DocumentsProviderCompat#queryTransfer(String, String[])
+     * @see #EXTRA_TRANSFER_ID
+     */
+    public static Uri buildTransferUri(String authority, String transferId) {
+        return new Uri.Builder().scheme(ContentResolver.SCHEME_CONTENT).authority(authority)
+                .appendPath(PATH_TRANSFER).appendPath(transferId).build();
+    }
+
+    /**
+     * Extract the transfer ID from the given URI.
+     *
+     * @see #buildTransferUri(String, String)
+     */
+    public static String getTransferId(Uri transferUri) {
+        final List<String> paths = transferUri.getPathSegments();
+        if (paths.size() >= 2 && PATH_TRANSFER.equals(paths.get(0))) {
+            return paths.get(1);
+        }
+        throw new IllegalArgumentException("Invalid URI: " + transferUri);
+    }
+
     /**
      * Build URI representing a search for matching documents under a specific
      * root in a document provider. When queried, a provider will return zero or
@@ -551,6 +720,26 @@ public final class DocumentsContractCompat {
                 .appendQueryParameter(PARAM_QUERY, query).build();
     }
 
+    /**
+     * Build URI representing a search with additional arguments, such as
+     * {@link #QUERY_ARG_LIMIT}. Arguments are passed as strings.
+     *
+     * @see DocumentsProviderCompat#querySearchDocuments(String, String, String[],
+     *      Bundle, android.os.CancellationSignal)
+     * @see #getSearchDocumentsQueryArgs(Uri)
+     */
+    public static Uri buildSearchDocumentsUri(
+            String authority, String rootId, String query, Bundle queryArgs) {
+        final Uri.Builder builder = buildSearchDocumentsUri(authority, rootId, query).buildUpon();
+        for (String key : queryArgs.keySet()) {
+            final Object value = queryArgs.get(key);
+            if (value != null) {
+                builder.appendQueryParameter(key, String.valueOf(value));
+            }
+        }
+        return builder.build();
+    }
+
     public static boolean isTreeUri(Uri uri) {
         final List<String> paths = uri.getPathSegments();
         return (paths.size() >= 2 && PATH_TREE.equals(paths.get(0)));
@@ -601,6 +790,22 @@ public final class DocumentsContractCompat {
         return searchDocumentsUri.getQueryParameter(PARAM_QUERY);
     }
 
+    /**
+     * Extract the additional search arguments from the given URI. All values are
+     * strings.
+     *
+     * @see #buildSearchDocumentsUri(String, String, String, Bundle)
+     */
+    public static Bundle getSearchDocumentsQueryArgs(Uri searchDocumentsUri) {
+        final Bundle queryArgs = new Bundle();
+        for (String key : searchDocumentsUri.getQueryParameterNames()) {
+            if (!PARAM_QUERY.equals(key)) {
+                queryArgs.putString(key, searchDocumentsUri.getQueryParameter(key));
+            }
+        }
+        return queryArgs;
+    }
+
     public static Bitmap getDocumentThumbnail(
             ContentProviderClient client, Uri documentUri, Point size)
             throws RemoteException, IOException {
@@ -671,6 +876,90 @@ public final class DocumentsContractCompat {
         return out.getParcelable(DocumentsContractCompat.EXTRA_URI);
     }
 
+    /**
+     * Copy a document into a directory of the same provider, without passing
+     * its contents through the caller.
+     *
+     * @param transferId ID to follow the progress of the copy with or null
+     * @return URI of the copy
+     * @see #buildTransferUri(String, String)
+     */
+    public static Uri copyDocument(ContentProviderClient client, Uri sourceDocumentUri,
+            Uri targetParentDocumentUri, String transferId) throws RemoteException {
+        return transferDocument(client, METHOD_COPY_DOCUMENT, sourceDocumentUri,
+                targetParentDocumentUri, transferId);
+    }
+
+    /**
+     * Move a document into a directory of the same provider, without passing
+     * its contents through the caller.
+     *
+     * @param transferId ID to follow the progress of the move with or null
+     * @return URI of the document at its new location
+     * @see #buildTransferUri(String, String)
+     */
+    public static Uri moveDocument(ContentProviderClient client, Uri sourceDocumentUri,
+            Uri targetParentDocumentUri, String transferId) throws RemoteException {
+        return transferDocument(client, METHOD_MOVE_DOCUMENT, sourceDocumentUri,
+                targetParentDocumentUri, transferId);
+    }
+
+    private static Uri transferDocument(ContentProviderClient client, String method,
+            Uri sourceDocumentUri, Uri targetParentDocumentUri, String transferId)
+            throws RemoteException {
+        final Bundle in = new Bundle();
+        in.putParcelable(DocumentsContractCompat.EXTRA_URI, sourceDocumentUri);
+        in.putParcelable(DocumentsContractCompat.EXTRA_TARGET_URI, targetParentDocumentUri);
+        in.putString(DocumentsContractCompat.EXTRA_TRANSFER_ID, transferId);
+
+        final Bundle out = client.call(method, null, in);
+        return out.getParcelable(DocumentsContractCompat.EXTRA_URI);
+    }
+
+    /**
+     * Cancel a running copy or move. The call that started it fails with
+     * {@link android.os.OperationCanceledException}.
+     */
+    public static void cancelTransfer(ContentProviderClient client, String transferId)
+            throws RemoteException {
+        final Bundle in = new Bundle();
+        in.putString(DocumentsContractCompat.EXTRA_TRANSFER_ID, transferId);
+        client.call(METHOD_CANCEL_TRANSFER, null, in);
+    }
+
+    /**
+     * Compute the checksum of a document inside the provider, without copying
+     * its contents to the caller. The provider may return a cached checksum
+     * if the document looks unchanged, which misses changes that keep its size
+     * and last modified time.
+     *
+     * @param algorithm name of a {@link java.security.MessageDigest} algorithm
+     * @return the checksum as lowercase hex
+     */
+    public static String getDocumentChecksum(ContentProviderClient client, Uri documentUri,
+            String algorithm) throws RemoteException {
+        return getDocumentChecksum(client, documentUri, algorithm, false);
+    }
+
+    /**
+     * Compute the checksum of a document inside the provider.
+     *
+     * @param algorithm name of a {@link java.security.MessageDigest} algorithm
+     * @param bypassCache whether to always read the document, eg. to verify
+     *            it
+     * @return the checksum as lowercase hex
+     */
+    public static String getDocumentChecksum(ContentProviderClient client, Uri documentUri,
+            String algorithm, boolean bypassCache) throws RemoteException {
+        final Bundle in = new Bundle();
+        in.putParcelable(DocumentsContractCompat.EXTRA_URI, documentUri);
+        in.putString(DocumentsContractCompat.EXTRA_ALGORITHM, algorithm);
+        in.putBoolean(DocumentsContractCompat.EXTRA_BYPASS_CACHE, bypassCache);
+
+        final Bundle out = client.call(METHOD_GET_CHECKSUM, null, in);
+        return out.getString(DocumentsContractCompat.EXTRA_CHECKSUM);
+    }
+
     /**
      * Open the given image for thumbnail purposes, using any embedded EXIF
      * thumbnail if available, and providing orientation hints from the parent
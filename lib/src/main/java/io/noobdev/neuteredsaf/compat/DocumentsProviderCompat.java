@@ -40,12 +40,17 @@ import io.noobdev.neuteredsaf.compat.DocumentsContractCompat.Document;
 import io.noobdev.neuteredsaf.compat.DocumentsContractCompat.Root;
 
 import static io.noobdev.neuteredsaf.compat.DocumentsContractCompat.METHOD_CREATE_DOCUMENT;
+import static io.noobdev.neuteredsaf.compat.DocumentsContractCompat.METHOD_CANCEL_TRANSFER;
+import static io.noobdev.neuteredsaf.compat.DocumentsContractCompat.METHOD_COPY_DOCUMENT;
+import static io.noobdev.neuteredsaf.compat.DocumentsContractCompat.METHOD_GET_CHECKSUM;
+import static io.noobdev.neuteredsaf.compat.DocumentsContractCompat.METHOD_MOVE_DOCUMENT;
 import static io.noobdev.neuteredsaf.compat.DocumentsContractCompat.buildDocumentUri;
 import static io.noobdev.neuteredsaf.compat.DocumentsContractCompat
         .buildDocumentUriMaybeUsingTree;
 import static io.noobdev.neuteredsaf.compat.DocumentsContractCompat.getDocumentId;
 import static io.noobdev.neuteredsaf.compat.DocumentsContractCompat.getRootId;
 import static io.noobdev.neuteredsaf.compat.DocumentsContractCompat.getSearchDocumentsQuery;
+import static io.noobdev.neuteredsaf.compat.DocumentsContractCompat.getSearchDocumentsQueryArgs;
 import static io.noobdev.neuteredsaf.compat.DocumentsContractCompat.getTreeDocumentId;
 import static io.noobdev.neuteredsaf.compat.DocumentsContractCompat.isTreeUri;
 
@@ -128,6 +133,7 @@ public abstract class DocumentsProviderCompat extends ContentProvider {
     private static final int MATCH_CHILDREN = 6;
     private static final int MATCH_DOCUMENT_TREE = 7;
     private static final int MATCH_CHILDREN_TREE = 8;
+    private static final int MATCH_TRANSFER = 9;
 
     private String mAuthority;
 
@@ -148,6 +154,7 @@ public abstract class DocumentsProviderCompat extends ContentProvider {
         mMatcher.addURI(mAuthority, "document/*/children", MATCH_CHILDREN);
         mMatcher.addURI(mAuthority, "tree/*/document/*", MATCH_DOCUMENT_TREE);
         mMatcher.addURI(mAuthority, "tree/*/document/*/children", MATCH_CHILDREN_TREE);
+        mMatcher.addURI(mAuthority, "transfer/*", MATCH_TRANSFER);
 
         super.attachInfo(context, info);
     }
@@ -310,6 +317,26 @@ public abstract class DocumentsProviderCompat extends ContentProvider {
         throw new UnsupportedOperationException("Search not supported");
     }
 
+    /**
+     * Return documents that match the given query under the requested root,
+     * like {@link #querySearchDocuments(String, String, String[])}, with
+     * additional arguments from the search Uri. Providers that search in the
+     * background can return the results found so far, set
+     * {@link DocumentsContractCompat#EXTRA_LOADING} and send change
+     * notifications as more results are found. The default implementation
+     * ignores the extra arguments.
+     *
+     * @param queryArgs string arguments, such as
+     *            {@link DocumentsContractCompat#QUERY_ARG_LIMIT}.
+     * @param signal used by the caller to signal if the request should be
+     *            cancelled. May be null.
+     * @see DocumentsContractCompat#getSearchDocumentsQueryArgs(Uri)
+     */
+    public Cursor querySearchDocuments(String rootId, String query, String[] projection,
+            Bundle queryArgs, CancellationSignal signal) throws FileNotFoundException {
+        return querySearchDocuments(rootId, query, projection);
+    }
+
     /**
      * Return concrete MIME type of the requested document. Must match the value
      * of {@link Document#COLUMN_MIME_TYPE} for this document. The default
@@ -378,6 +405,111 @@ public abstract class DocumentsProviderCompat extends ContentProvider {
         throw new UnsupportedOperationException("Thumbnails not supported");
     }
 
+    /**
+     * Copy a document into a directory and return the
+     * {@link Document#COLUMN_DOCUMENT_ID} of the copy. Directories are copied
+     * with all of their contents.
+     *
+     * @param sourceDocumentId the document to copy.
+     * @param targetParentDocumentId the directory to copy the document into.
+     * @param transferId ID chosen by the caller to follow the progress of the
+     *            copy and to cancel it, or null.
+     * @throws android.os.OperationCanceledException if the copy was
+     *             cancelled.
+     * @see #queryTransfer(String, String[])
+     * @see #cancelTransfer(String)
+     */
+    @SuppressWarnings("unused")
+    public String copyDocument(String sourceDocumentId, String targetParentDocumentId,
+            String transferId) throws FileNotFoundException {
+        throw new UnsupportedOperationException("Copy not supported");
+    }
+
+    /**
+     * Move a document into a directory and return its new
+     * {@link Document#COLUMN_DOCUMENT_ID}.
+     *
+     * @param sourceDocumentId the document to move.
+     * @param targetParentDocumentId the directory to move the document into.
+     * @param transferId ID chosen by the caller to follow the progress of the
+     *            move and to cancel it, or null.
+     * @throws android.os.OperationCanceledException if the move was
+     *             cancelled.
+     * @see #queryTransfer(String, String[])
+     * @see #cancelTransfer(String)
+     */
+    @SuppressWarnings("unused")
+    public String moveDocument(String sourceDocumentId, String targetParentDocumentId,
+            String transferId) throws FileNotFoundException {
+        throw new UnsupportedOperationException("Move not supported");
+    }
+
+    /**
+     * Return the status of a running copy or move, with columns defined by
+     * {@link DocumentsContractCompat.Transfer}. Transfer IDs are chosen by
+     * callers, so only transfers started by the calling app should be found.
+     *
+     * @param transferId the ID passed to
+     *            {@link #copyDocument(String, String, String)} or
+     *            {@link #moveDocument(String, String, String)}.
+     * @param projection list of {@link DocumentsContractCompat.Transfer}
+     *            columns to put into the cursor. If {@code null} all supported
+     *            columns should be included.
+     */
+    @SuppressWarnings("unused")
+    public Cursor queryTransfer(String transferId, String[] projection) {
+        throw new UnsupportedOperationException("Transfers not supported");
+    }
+
+    /**
+     * Cancel a running copy or move. Does nothing if the transfer already
+     * finished. Like {@link #queryTransfer(String, String[])}, this should
+     * only find transfers started by the calling app.
+     */
+    @SuppressWarnings("unused")
+    public void cancelTransfer(String transferId) {
+        throw new UnsupportedOperationException("Transfers not supported");
+    }
+
+    /**
+     * Open a document for reading as an {@link AssetFileDescriptor}, which can
+     * refer to a range of a larger file. This is only used by
+     * {@link ContentResolver#openTypedAssetFileDescriptor(Uri, String, Bundle)},
+     * since the other ways of opening a document need a whole file.
+     *
+     * @param documentId the document to return.
+     * @param mimeTypeFilter MIME type that the caller accepts.
+     * @param opts options from the caller. May be null.
+     * @param signal used by the caller to signal if the request should be
+     *            cancelled. May be null.
+     * @return the document or null to open it with
+     *         {@link #openDocument(String, String, CancellationSignal)}.
+     */
+    @SuppressWarnings("unused")
+    public AssetFileDescriptor openTypedDocument(String documentId, String mimeTypeFilter,
+            Bundle opts, CancellationSignal signal) throws FileNotFoundException {
+        return null;
+    }
+
+    /**
+     * Return the checksum of the requested document. Providers with local
+     * access to the contents can avoid streaming them to the caller, and may
+     * cache checksums of documents that didn't change.
+     *
+     * @param documentId the document to hash.
+     * @param algorithm name of a {@link java.security.MessageDigest}
+     *            algorithm. If the algorithm is not supported, the provider
+     *            must throw {@link IllegalArgumentException}.
+     * @param bypassCache whether the caller wants the document read even if
+     *            a cached checksum looks valid.
+     * @return the checksum as lowercase hex.
+     */
+    @SuppressWarnings("unused")
+    public String getDocumentChecksum(String documentId, String algorithm,
+            boolean bypassCache) throws FileNotFoundException {
+        throw new UnsupportedOperationException("Checksums not supported");
+    }
+
     /**
      * Implementation is provided by the parent class. Cannot be overriden.
      *
@@ -389,13 +521,24 @@ public abstract class DocumentsProviderCompat extends ContentProvider {
     @Override
     public final Cursor query(@NonNull Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
+        return query(uri, projection, selection, selectionArgs, sortOrder, null);
+    }
+
+    /**
+     * Implementation is provided by the parent class. Cannot be overriden.
+     *
+     * @see #querySearchDocuments(String, String, String[], Bundle, CancellationSignal)
+     */
+    @Override
+    public final Cursor query(@NonNull Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder, CancellationSignal signal) {
         try {
             switch (mMatcher.match(uri)) {
                 case MATCH_ROOTS:
                     return queryRoots(projection);
                 case MATCH_SEARCH:
-                    return querySearchDocuments(
-                            getRootId(uri), getSearchDocumentsQuery(uri), projection);
+                    return querySearchDocuments(getRootId(uri), getSearchDocumentsQuery(uri),
+                            projection, getSearchDocumentsQueryArgs(uri), signal);
                 case MATCH_DOCUMENT:
                 case MATCH_DOCUMENT_TREE:
                     enforceTree(uri);
@@ -404,6 +547,10 @@ public abstract class DocumentsProviderCompat extends ContentProvider {
                 case MATCH_CHILDREN_TREE:
                     enforceTree(uri);
                     return queryChildDocuments(getDocumentId(uri), projection, sortOrder);
+                case MATCH_TRANSFER:
+                    return queryTransfer(
+                            io.noobdev.neuteredsaf.compat.DocumentsContractCompat.getTransferId(uri),
+                            projection);
                 default:
                     throw new UnsupportedOperationException("Unsupported Uri " + uri);
             }
@@ -503,6 +650,13 @@ public abstract class DocumentsProviderCompat extends ContentProvider {
             return super.call(method, arg, extras);
         }
 
+        if (METHOD_CANCEL_TRANSFER.equals(method)) {
+            // Refers to a transfer rather than to a document
+            cancelTransfer(extras.getString(
+                    io.noobdev.neuteredsaf.compat.DocumentsContractCompat.EXTRA_TRANSFER_ID));
+            return new Bundle();
+        }
+
         final Uri documentUri = extras.getParcelable(io.noobdev.neuteredsaf.compat.DocumentsContractCompat.EXTRA_URI);
         final String authority = documentUri.getAuthority();
         final String documentId = io.noobdev.neuteredsaf.compat.DocumentsContractCompat.getDocumentId(documentUri);
@@ -527,6 +681,36 @@ public abstract class DocumentsProviderCompat extends ContentProvider {
                         newDocumentId);
                 out.putParcelable(io.noobdev.neuteredsaf.compat.DocumentsContractCompat.EXTRA_URI, newDocumentUri);
 
+            } else if (METHOD_COPY_DOCUMENT.equals(method)
+                    || METHOD_MOVE_DOCUMENT.equals(method)) {
+                final Uri targetUri = extras.getParcelable(
+                        io.noobdev.neuteredsaf.compat.DocumentsContractCompat.EXTRA_TARGET_URI);
+                if (!mAuthority.equals(targetUri.getAuthority())) {
+                    throw new SecurityException("Requested authority " + targetUri.getAuthority()
+                            + " doesn't match provider " + mAuthority);
+                }
+                enforceTree(targetUri);
+
+                final String targetId = getDocumentId(targetUri);
+                final String transferId = extras.getString(
+                        io.noobdev.neuteredsaf.compat.DocumentsContractCompat.EXTRA_TRANSFER_ID);
+                final String newDocumentId = METHOD_COPY_DOCUMENT.equals(method)
+                        ? copyDocument(documentId, targetId, transferId)
+                        : moveDocument(documentId, targetId, transferId);
+                out.putParcelable(io.noobdev.neuteredsaf.compat.DocumentsContractCompat.EXTRA_URI,
+                        buildDocumentUriMaybeUsingTree(targetUri, newDocumentId));
+
+            } else if (METHOD_GET_CHECKSUM.equals(method)) {
+                final String algorithm = extras.getString(
+                        io.noobdev.neuteredsaf.compat.DocumentsContractCompat.EXTRA_ALGORITHM);
+                if (algorithm == null) {
+                    throw new IllegalArgumentException("Missing algorithm");
+                }
+                final boolean bypassCache = extras.getBoolean(
+                        io.noobdev.neuteredsaf.compat.DocumentsContractCompat.EXTRA_BYPASS_CACHE);
+                out.putString(io.noobdev.neuteredsaf.compat.DocumentsContractCompat.EXTRA_CHECKSUM,
+                        getDocumentChecksum(documentId, algorithm, bypassCache));
+
             } else {
                 throw new UnsupportedOperationException("Method not supported " + method);
             }
@@ -604,7 +788,9 @@ public abstract class DocumentsProviderCompat extends ContentProvider {
             final Point sizeHint = opts.getParcelable(ContentResolver.EXTRA_SIZE);
             return openDocumentThumbnail(getDocumentId(uri), sizeHint, null);
         } else {
-            return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+            final AssetFileDescriptor afd =
+                    openTypedDocument(getDocumentId(uri), mimeTypeFilter, opts, null);
+            return afd != null ? afd : super.openTypedAssetFile(uri, mimeTypeFilter, opts);
         }
     }
 
@@ -623,7 +809,10 @@ public abstract class DocumentsProviderCompat extends ContentProvider {
             final Point sizeHint = opts.getParcelable(ContentResolver.EXTRA_SIZE);
             return openDocumentThumbnail(getDocumentId(uri), sizeHint, signal);
         } else {
-            return super.openTypedAssetFile(uri, mimeTypeFilter, opts, signal);
+            final AssetFileDescriptor afd =
+                    openTypedDocument(getDocumentId(uri), mimeTypeFilter, opts, signal);
+            return afd != null
+                    ? afd : super.openTypedAssetFile(uri, mimeTypeFilter, opts, signal);
         }
     }
 }
@@ -1,6 +1,12 @@
 package io.noobdev.neuteredsaf.compat;
 
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+
 import java.io.FileDescriptor;
+import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
@@ -10,7 +16,17 @@ public final class OsCompat {
     public static int SEEK_END;
     public static int SEEK_SET;
 
+    public static final int S_IFMT = 0170000;
+    public static final int S_IFDIR = 0040000;
+    public static final int S_IFREG = 0100000;
+
     private static Method sLseek;
+    private static Method sStat;
+    private static Field sStDev;
+    private static Field sStIno;
+    private static Field sStMode;
+    private static Field sStSize;
+    private static Field sStMtime;
     private static Object sOs;
 
     static {
@@ -46,6 +62,27 @@ public final class OsCompat {
         } catch (NullPointerException e) {
             e.printStackTrace();
         }
+
+        // Get stat method (only needed before android.system.Os was public). The os object is
+        // a subclass of ForwardingOs, which may only inherit stat(), so don't look for it with
+        // getDeclaredMethod(). Failing here must not affect lseek.
+        if (sOs != null && Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                final Method stat = sOs.getClass().getMethod("stat", String.class);
+                // Looked up once, since stat() is called for every file that is listed
+                final Class<?> classStructStat = stat.getReturnType();
+                sStDev = classStructStat.getField("st_dev");
+                sStIno = classStructStat.getField("st_ino");
+                sStMode = classStructStat.getField("st_mode");
+                sStSize = classStructStat.getField("st_size");
+                sStMtime = classStructStat.getField("st_mtime");
+                sStat = stat;
+            } catch (NoSuchMethodException e) {
+                e.printStackTrace();
+            } catch (NoSuchFieldException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     public static class ExecutionFailedException extends Exception {
@@ -72,4 +109,65 @@ public final class OsCompat {
             throw new ExecutionFailedException(e);
         }
     }
+
+    /**
+     * Subset of {@code struct stat} that the providers care about. Timestamps are in seconds.
+     */
+    public static class StructStatCompat {
+        public final long st_dev;
+        public final long st_ino;
+        public final int st_mode;
+        public final long st_size;
+        public final long st_mtime;
+
+        public StructStatCompat(long st_dev, long st_ino, int st_mode, long st_size,
+                                long st_mtime) {
+            this.st_dev = st_dev;
+            this.st_ino = st_ino;
+            this.st_mode = st_mode;
+            this.st_size = st_size;
+            this.st_mtime = st_mtime;
+        }
+    }
+
+    public static boolean S_ISDIR(int mode) {
+        return (mode & S_IFMT) == S_IFDIR;
+    }
+
+    public static boolean S_ISREG(int mode) {
+        return (mode & S_IFMT) == S_IFREG;
+    }
+
+    /**
+     * Single stat() syscall, following symlinks. Callers should fall back to the {@link
+     * java.io.File} accessors if this fails.
+     */
+    public static StructStatCompat stat(String path) throws ExecutionFailedException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                final StructStat st = Os.stat(path);
+                return new StructStatCompat(
+                        st.st_dev, st.st_ino, st.st_mode, st.st_size, st.st_mtime);
+            } catch (ErrnoException e) {
+                throw new ExecutionFailedException(e);
+            }
+        }
+
+        if (sStat == null) {
+            throw new ExecutionFailedException("stat() is not available");
+        }
+        try {
+            final Object st = sStat.invoke(sOs, path);
+            return new StructStatCompat(
+                    sStDev.getLong(st),
+                    sStIno.getLong(st),
+                    sStMode.getInt(st),
+                    sStSize.getLong(st),
+                    sStMtime.getLong(st));
+        } catch (IllegalAccessException e) {
+            throw new ExecutionFailedException(e);
+        } catch (InvocationTargetException e) {
+            throw new ExecutionFailedException(e);
+        }
+    }
 }
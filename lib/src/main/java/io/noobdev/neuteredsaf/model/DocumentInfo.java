@@ -227,6 +227,10 @@ public class DocumentInfo implements Durable, Parcelable {
         return Document.MIME_TYPE_DIR.equals(mimeType);
     }
 
+    public boolean isArchive() {
+        return (flags & Document.FLAG_ARCHIVE) != 0;
+    }
+
     public boolean isGridPreferred() {
         return (flags & Document.FLAG_DIR_PREFERS_GRID) != 0;
     }
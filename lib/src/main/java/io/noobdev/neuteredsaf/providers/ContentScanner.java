@@ -0,0 +1,219 @@
+package io.noobdev.neuteredsaf.providers;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.noobdev.neuteredsaf.compat.IOUtils;
+
+/**
+ * Looks for a string inside the contents of files for content search. Files are searched with
+ * Boyer-Moore-Horspool on the UTF-8 bytes of the query, ignoring ASCII case. Files that look
+ * binary, either by MIME type or because they contain NUL bytes near the start, are skipped.
+ * <p>
+ * Files up to {@link #REGION_SIZE} bytes are read into a direct buffer of {@link #BUFFER_SIZE}
+ * bytes that each thread reuses, since a mapping stays until it is garbage collected and
+ * several walker threads mapping every small file would run out of address space on 32-bit
+ * devices. Only larger files are memory-mapped, in regions.
+ * <p>
+ * The number of bytes scanned is counted across all files so that a search can be capped. Only
+ * the bytes that were actually checked count, so binary files that are rejected early barely
+ * use up the budget. Safe for concurrent use.
+ */
+final class ContentScanner {
+    private static final String TAG = "ContentScanner";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Largest region mapped at once. Smaller files are read instead of mapped. */
+    private static final int REGION_SIZE = 8 * 1024 * 1024;
+    /** Size of the buffer that files which aren't mapped are read into. */
+    private static final int BUFFER_SIZE = 256 * 1024;
+    /** Number of bytes at the start of a file that are checked for NUL bytes. */
+    private static final int BINARY_CHECK_SIZE = 512;
+
+    /** Non-text types that are still worth scanning (after the NUL byte check). */
+    private static final String[] TEXT_APPLICATION_TYPES = new String[] {
+            "application/octet-stream",
+            "application/javascript",
+            "application/json",
+            "application/xml",
+            "application/x-javascript",
+            "application/x-sh",
+            "application/x-shellscript",
+    };
+
+    private static final ThreadLocal<ByteBuffer> sBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    final long maxFileSize;
+    final long maxTotalBytes;
+
+    private final byte[] mPattern;
+    /** Horspool shifts by the (case folded) last byte of the window. */
+    private final int[] mShifts = new int[256];
+    private final AtomicLong mBytesScanned = new AtomicLong();
+
+    /**
+     * @param maxFileSize larger files are skipped
+     * @param maxTotalBytes files are skipped once this many bytes have been scanned
+     */
+    ContentScanner(String query, long maxFileSize, long maxTotalBytes) {
+        this.maxFileSize = maxFileSize;
+        this.maxTotalBytes = maxTotalBytes;
+
+        mPattern = query.getBytes(UTF_8);
+        for (int i = 0; i < mPattern.length; i++) {
+            mPattern[i] = foldAscii(mPattern[i]);
+        }
+        for (int i = 0; i < mShifts.length; i++) {
+            mShifts[i] = mPattern.length;
+        }
+        for (int i = 0; i < mPattern.length - 1; i++) {
+            mShifts[mPattern[i] & 0xff] = mPattern.length - 1 - i;
+        }
+    }
+
+    long getBytesScanned() {
+        return mBytesScanned.get();
+    }
+
+    /**
+     * @return whether the total budget was used up
+     */
+    boolean isExhausted() {
+        return mBytesScanned.get() >= maxTotalBytes;
+    }
+
+    /**
+     * @return whether a file with these attributes would be scanned, without opening it
+     */
+    boolean isCandidate(DirectoryEntry entry) {
+        if (entry.isDirectory() || entry.size < mPattern.length || entry.size > maxFileSize) {
+            return false;
+        }
+        final String mimeType = entry.mimeType;
+        if (mimeType.startsWith("text/")) {
+            return true;
+        }
+        for (String type : TEXT_APPLICATION_TYPES) {
+            if (type.equals(mimeType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Scan a file that passed {@link #isCandidate(DirectoryEntry)}.
+     *
+     * @return whether the file contains the query
+     */
+    boolean matches(File file) {
+        if (mPattern.length == 0) {
+            return true;
+        }
+
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            final FileChannel channel = in.getChannel();
+            final long size = Math.min(channel.size(), maxFileSize);
+            final boolean map = size > REGION_SIZE || mPattern.length > BUFFER_SIZE;
+            final int regionSize = map ? REGION_SIZE : BUFFER_SIZE;
+
+            // Regions overlap by the pattern length so that matches across them are found
+            final long step = regionSize - mPattern.length + 1;
+            for (long offset = 0; offset < size; offset += step) {
+                int length = (int) Math.min(regionSize, size - offset);
+                if (length < mPattern.length || isExhausted()) {
+                    break;
+                }
+                final ByteBuffer region;
+                if (map) {
+                    region = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                } else {
+                    region = read(channel, offset, length);
+                    length = region.limit();
+                    if (length < mPattern.length) {
+                        break;
+                    }
+                }
+                if (offset == 0 && looksBinary(region, length)) {
+                    mBytesScanned.addAndGet(Math.min(length, BINARY_CHECK_SIZE));
+                    return false;
+                }
+                final int index = indexOf(region, length);
+                if (index >= 0) {
+                    mBytesScanned.addAndGet(index + mPattern.length);
+                    return true;
+                }
+                mBytesScanned.addAndGet(length);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to scan " + file + ": " + e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return false;
+    }
+
+    /**
+     * Read up to {@code length} bytes at {@code offset} into this thread's buffer. The buffer's
+     * limit is the number of bytes read, which is less if the file shrank.
+     */
+    private static ByteBuffer read(FileChannel channel, long offset, int length)
+            throws IOException {
+        final ByteBuffer buffer = sBuffer.get();
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static boolean looksBinary(ByteBuffer region, int length) {
+        final int end = Math.min(length, BINARY_CHECK_SIZE);
+        for (int i = 0; i < end; i++) {
+            if (region.get(i) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int indexOf(ByteBuffer region, int length) {
+        final byte[] pattern = mPattern;
+        final int last = pattern.length - 1;
+        int start = 0;
+        while (start <= length - pattern.length) {
+            int i = last;
+            while (foldAscii(region.get(start + i)) == pattern[i]) {
+                if (i == 0) {
+                    return start;
+                }
+                i--;
+            }
+            start += mShifts[foldAscii(region.get(start + last)) & 0xff];
+        }
+        return -1;
+    }
+
+    private static byte foldAscii(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+}
@@ -0,0 +1,67 @@
+package io.noobdev.neuteredsaf.providers;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.Arrays;
+
+/**
+ * One step in the history of a watched directory's listing, as published in the extras of a
+ * child documents cursor. Rows keep their relative order between steps: removed rows are
+ * dropped, new rows are appended to the end and changed rows stay where they were.
+ *
+ * @see ProviderConstants#EXTRA_LISTING_DELTAS
+ */
+public final class DirectoryDelta implements Parcelable {
+    /** Generation of the listing that this step produces from the previous generation. */
+    public final int generation;
+    /** Ascending positions of the rows removed from the previous listing. */
+    public final int[] removed;
+    /** Number of rows appended to the end of the listing. */
+    public final int added;
+    /** Ascending positions, in the new listing, of the rows whose attributes changed. */
+    public final int[] changed;
+
+    public DirectoryDelta(int generation, int[] removed, int added, int[] changed) {
+        this.generation = generation;
+        this.removed = removed;
+        this.added = added;
+        this.changed = changed;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(generation);
+        dest.writeIntArray(removed);
+        dest.writeInt(added);
+        dest.writeIntArray(changed);
+    }
+
+    public static final Creator<DirectoryDelta> CREATOR = new Creator<DirectoryDelta>() {
+        @Override
+        public DirectoryDelta createFromParcel(Parcel in) {
+            final int generation = in.readInt();
+            final int[] removed = in.createIntArray();
+            final int added = in.readInt();
+            final int[] changed = in.createIntArray();
+            return new DirectoryDelta(generation, removed, added, changed);
+        }
+
+        @Override
+        public DirectoryDelta[] newArray(int size) {
+            return new DirectoryDelta[size];
+        }
+    };
+
+    @Override
+    public String toString() {
+        return "DirectoryDelta{generation=" + generation + ", removed="
+                + Arrays.toString(removed) + ", added=" + added + ", changed="
+                + Arrays.toString(changed) + "}";
+    }
+}
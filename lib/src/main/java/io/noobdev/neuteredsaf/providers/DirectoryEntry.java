@@ -0,0 +1,96 @@
+package io.noobdev.neuteredsaf.providers;
+
+import java.io.File;
+
+import io.noobdev.neuteredsaf.compat.DocumentsContractCompat.Document;
+import io.noobdev.neuteredsaf.compat.OsCompat;
+import io.noobdev.neuteredsaf.compat.OsCompat.ExecutionFailedException;
+import io.noobdev.neuteredsaf.compat.OsCompat.StructStatCompat;
+
+/**
+ * Immutable attributes of a single file, gathered with one stat() call.
+ */
+final class DirectoryEntry {
+    /** Dates before this are not published. */
+    private static final long MIN_LAST_MODIFIED = 31536000000L;
+    /** Archives of this type can be browsed. */
+    static final String ZIP_MIME_TYPE = "application/zip";
+
+    final String mimeType;
+    final int flags;
+    final long size;
+    /** -1 if the timestamp should not be published. */
+    final long lastModified;
+    /** Device and inode of the file (following symlinks) or 0 if unknown. */
+    final long dev;
+    final long ino;
+
+    private DirectoryEntry(String mimeType, int flags, long size, long lastModified, long dev,
+            long ino) {
+        this.mimeType = mimeType;
+        this.flags = flags;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.dev = dev;
+        this.ino = ino;
+    }
+
+    boolean isDirectory() {
+        return Document.MIME_TYPE_DIR.equals(mimeType);
+    }
+
+    /**
+     * Stat {@code name} inside {@code parent}. The entry is only writable if {@code writable}
+     * is set and the file has any write permission bits set.
+     * <p>
+     * Listings pass the parent's {@link File#canWrite()} as {@code writable}, which stands in
+     * for an access check on every child. That is close on external storage, where permissions
+     * are mostly synthesized for the whole volume. It isn't the same as the child's own
+     * {@link File#canWrite()} elsewhere: a writable file in a read-only directory is reported
+     * read-only, and write bits that only apply to another user count as writable.
+     */
+    static DirectoryEntry stat(File parent, String name, boolean writable) {
+        final File file = new File(parent, name);
+
+        boolean isDirectory;
+        long size;
+        long lastModified;
+        long dev = 0;
+        long ino = 0;
+        try {
+            final StructStatCompat st = OsCompat.stat(file.getPath());
+            isDirectory = OsCompat.S_ISDIR(st.st_mode);
+            size = st.st_size;
+            lastModified = st.st_mtime * 1000;
+            writable &= (st.st_mode & 0222) != 0;
+            dev = st.st_dev;
+            ino = st.st_ino;
+        } catch (ExecutionFailedException e) {
+            // No usable stat() or the file disappeared; fall back to the slow path
+            isDirectory = file.isDirectory();
+            size = file.length();
+            lastModified = file.lastModified();
+        }
+
+        int flags = 0;
+
+        if (writable) {
+            if (isDirectory) {
+                flags |= Document.FLAG_DIR_SUPPORTS_CREATE;
+            } else {
+                flags |= Document.FLAG_SUPPORTS_WRITE;
+            }
+        }
+
+        final String mimeType = isDirectory
+                ? Document.MIME_TYPE_DIR : MimeTypeCache.getTypeForName(name);
+        if (mimeType.startsWith("image/")) {
+            flags |= Document.FLAG_SUPPORTS_THUMBNAIL;
+        } else if (ZIP_MIME_TYPE.equals(mimeType)) {
+            flags |= Document.FLAG_ARCHIVE;
+        }
+
+        return new DirectoryEntry(mimeType, flags, size,
+                lastModified > MIN_LAST_MODIFIED ? lastModified : -1, dev, ino);
+    }
+}
@@ -0,0 +1,129 @@
+package io.noobdev.neuteredsaf.providers;
+
+import java.io.File;
+
+/**
+ * Names of the children of a directory, as returned by {@link File#list()}. The attributes of
+ * each child are only stat'ed when they are first requested and are then kept around so that
+ * later reads are free.
+ * <p>
+ * Safe for concurrent use: two threads may race to stat the same child, but
+ * {@link DirectoryEntry} is immutable, so either result may be published.
+ */
+final class DirectoryListing {
+    final String docId;
+    final File dir;
+    final boolean writable;
+
+    private final String[] mNames;
+    private final DirectoryEntry[] mEntries;
+
+    DirectoryListing(String docId, File dir, String[] names, boolean writable) {
+        this(docId, dir, names, new DirectoryEntry[names.length], writable);
+    }
+
+    private DirectoryListing(String docId, File dir, String[] names, DirectoryEntry[] entries,
+            boolean writable) {
+        this.docId = docId;
+        this.dir = dir;
+        this.writable = writable;
+        mNames = names;
+        mEntries = entries;
+    }
+
+    static DirectoryListing list(String docId, File dir) {
+        String[] names = dir.list();
+        if (names == null) {
+            names = new String[0];
+        }
+        return new DirectoryListing(docId, dir, names, dir.canWrite());
+    }
+
+    int size() {
+        return mNames.length;
+    }
+
+    String getName(int index) {
+        return mNames[index];
+    }
+
+    String getDocumentId(int index) {
+        return buildChildDocId(docId, mNames[index]);
+    }
+
+    DirectoryEntry getEntry(int index) {
+        DirectoryEntry entry = mEntries[index];
+        if (entry == null) {
+            entry = DirectoryEntry.stat(dir, mNames[index], writable);
+            mEntries[index] = entry;
+        }
+        return entry;
+    }
+
+    void materializeAll() {
+        for (int i = 0; i < mNames.length; i++) {
+            getEntry(i);
+        }
+    }
+
+    /**
+     * Rough number of bytes retained by this listing.
+     */
+    int estimateSize() {
+        // Object headers, array slots and the String objects with their chars
+        int size = 64 + 8 * mNames.length;
+        for (String name : mNames) {
+            size += 48 + 2 * name.length();
+        }
+        for (DirectoryEntry entry : mEntries) {
+            if (entry != null) {
+                size += 40;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Build the next listing of the same directory. The rows at {@code removed} are dropped,
+     * {@code added} are appended to the end and the rows at {@code changed} (positions in the
+     * new listing) will be stat'ed again. Attributes of all other rows are carried over.
+     *
+     * @param removed ascending positions in this listing
+     */
+    DirectoryListing splice(int[] removed, int[] changed, String[] added) {
+        final int kept = mNames.length - removed.length;
+        final String[] names = new String[kept + added.length];
+        final DirectoryEntry[] entries = new DirectoryEntry[names.length];
+
+        int src = 0;
+        int dst = 0;
+        for (int index : removed) {
+            final int n = index - src;
+            System.arraycopy(mNames, src, names, dst, n);
+            System.arraycopy(mEntries, src, entries, dst, n);
+            src = index + 1;
+            dst += n;
+        }
+        System.arraycopy(mNames, src, names, dst, mNames.length - src);
+        System.arraycopy(mEntries, src, entries, dst, mNames.length - src);
+
+        System.arraycopy(added, 0, names, kept, added.length);
+        for (int index : changed) {
+            entries[index] = null;
+        }
+
+        return new DirectoryListing(docId, dir, names, entries, writable);
+    }
+
+    /**
+     * Build the document ID of a direct child without going through the roots table.
+     */
+    static String buildChildDocId(String parentDocId, String name) {
+        final char last = parentDocId.charAt(parentDocId.length() - 1);
+        if (last == '\0' || last == '/') {
+            return parentDocId + name;
+        } else {
+            return parentDocId + '/' + name;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package io.noobdev.neuteredsaf.providers;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.noobdev.neuteredsaf.internal.annotations.GuardedBy;
+
+/**
+ * Live listing of a watched directory. Instead of listing the directory again after every
+ * change, the names of the children reported by inotify are checked one by one and applied to
+ * the previous listing. Each batch of changes bumps the generation and is recorded as a
+ * {@link DirectoryDelta} so that clients holding an older listing can patch it.
+ */
+final class DirectoryModel {
+    /** Number of deltas published with each listing. */
+    private static final int MAX_DELTAS = 16;
+    /**
+     * A listing that was patched while the directory's mtime also moved is listed again from
+     * scratch by the first flush or query after it has been unverified for this long.
+     */
+    private static final long MAX_UNVERIFIED_MILLIS = 30 * 1000;
+
+    private static final AtomicLong sNextToken = new AtomicLong(System.currentTimeMillis() << 16);
+
+    private final String mDocId;
+    private final File mDir;
+
+    @GuardedBy("this")
+    private long mToken;
+    @GuardedBy("this")
+    private DirectoryListing mListing;
+    @GuardedBy("this")
+    private final HashMap<String, Integer> mIndex = Maps.newHashMap();
+    @GuardedBy("this")
+    private int mGeneration;
+    @GuardedBy("this")
+    private final LinkedList<DirectoryDelta> mDeltas = Lists.newLinkedList();
+    /** mtime of the directory when changes were last applied. */
+    @GuardedBy("this")
+    private long mLastModified;
+    /**
+     * Uptime when changes were first applied together with an mtime change since the directory
+     * was last listed, or -1. Changes that inotify dropped in the same window as the ones it
+     * reported can't be told apart by the mtime.
+     */
+    @GuardedBy("this")
+    private long mUnverifiedSince = -1;
+
+    /** Children that were reported by inotify since changes were last applied. */
+    @GuardedBy("this")
+    private final HashSet<String> mPending = Sets.newHashSet();
+    /** Set if the directory must be listed again from scratch. */
+    @GuardedBy("this")
+    private boolean mInvalid = true;
+
+    /** Uptime when the directory stopped being observed. */
+    @GuardedBy("this")
+    private long mReleasedAt;
+    /** Estimated size when the directory stopped being observed. */
+    @GuardedBy("this")
+    private int mReleasedSize;
+
+    DirectoryModel(String docId, File dir) {
+        mDocId = docId;
+        mDir = dir;
+    }
+
+    synchronized void onChildChanged(String name) {
+        if (name == null) {
+            mInvalid = true;
+        } else if (!mInvalid) {
+            mPending.add(name);
+        }
+    }
+
+    synchronized void invalidate() {
+        mInvalid = true;
+    }
+
+    /**
+     * Mark the listing as no longer being kept up to date by inotify.
+     */
+    synchronized void release() {
+        mReleasedAt = SystemClock.uptimeMillis();
+        // Each child also costs a map entry and a boxed index
+        mReleasedSize = 128 + (mListing != null
+                ? mListing.estimateSize() + 64 * mListing.size() : 0);
+    }
+
+    /**
+     * Size of the listing as estimated by {@link #release()}. This doesn't change while the
+     * listing isn't observed.
+     */
+    synchronized int getReleasedSize() {
+        return mReleasedSize;
+    }
+
+    /**
+     * Check a listing that wasn't observed for a while before it is observed again. The
+     * directory must already be watched so that no changes are missed after the check.
+     *
+     * @return true if the listing can be reused as is, false if it will be listed again
+     */
+    synchronized boolean revalidate(long maxAgeMillis) {
+        if (!mInvalid && mListing != null
+                && SystemClock.uptimeMillis() - mReleasedAt <= maxAgeMillis
+                && mDir.lastModified() == mLastModified) {
+            return true;
+        }
+        mInvalid = true;
+        return false;
+    }
+
+    /**
+     * Get the current listing, applying all changes reported so far, and describe it in
+     * {@code extras}.
+     */
+    synchronized DirectoryListing snapshot(Bundle extras) {
+        applyPending();
+
+        extras.putLong(ProviderConstants.EXTRA_LISTING_TOKEN, mToken);
+        extras.putInt(ProviderConstants.EXTRA_LISTING_GENERATION, mGeneration);
+        extras.putParcelableArrayList(ProviderConstants.EXTRA_LISTING_DELTAS,
+                Lists.newArrayList(mDeltas));
+
+        return mListing;
+    }
+
+    /**
+     * Apply the changes reported so far to the listing.
+     */
+    synchronized void applyPending() {
+        // Catch changes that inotify didn't tell us about. This is the only recovery from a
+        // queue overflow: IN_Q_OVERFLOW comes without a watch descriptor, so FileObserver drops
+        // it before any observer sees it. If nothing is pending, an mtime change means events
+        // were lost. Otherwise the reported changes explain it, but lost ones may hide behind
+        // them, so such a listing is only trusted for a while.
+        final long lastModified = mDir.lastModified();
+        if (!mInvalid && lastModified != mLastModified) {
+            if (mPending.isEmpty()) {
+                mInvalid = true;
+            } else if (mUnverifiedSince < 0) {
+                mUnverifiedSince = SystemClock.uptimeMillis();
+            }
+        }
+        if (!mInvalid && mUnverifiedSince >= 0
+                && SystemClock.uptimeMillis() - mUnverifiedSince > MAX_UNVERIFIED_MILLIS) {
+            mInvalid = true;
+        }
+        mLastModified = lastModified;
+
+        if (mInvalid) {
+            relist();
+            return;
+        }
+        if (mPending.isEmpty()) {
+            return;
+        }
+
+        final int[] removed = new int[mPending.size()];
+        int removedCount = 0;
+        final int[] changed = new int[mPending.size()];
+        int changedCount = 0;
+        final ArrayList<String> added = Lists.newArrayList();
+
+        for (String name : mPending) {
+            final Integer index = mIndex.get(name);
+            final boolean exists = new File(mDir, name).exists();
+            if (index != null) {
+                if (exists) {
+                    changed[changedCount++] = index;
+                } else {
+                    removed[removedCount++] = index;
+                }
+            } else if (exists) {
+                added.add(name);
+            }
+        }
+        mPending.clear();
+        if (removedCount == 0 && changedCount == 0 && added.isEmpty()) {
+            return;
+        }
+
+        final int[] removedSorted = Arrays.copyOf(removed, removedCount);
+        Arrays.sort(removedSorted);
+        // Changed rows are shifted down by the number of removed rows before them
+        final int[] changedSorted = Arrays.copyOf(changed, changedCount);
+        Arrays.sort(changedSorted);
+        int shift = 0;
+        for (int i = 0; i < changedCount; i++) {
+            while (shift < removedCount && removedSorted[shift] < changedSorted[i]) {
+                shift++;
+            }
+            changedSorted[i] -= shift;
+        }
+
+        final DirectoryListing old = mListing;
+        mListing = old.splice(removedSorted, changedSorted,
+                added.toArray(new String[added.size()]));
+
+        if (removedCount > 0) {
+            for (int index : removedSorted) {
+                mIndex.remove(old.getName(index));
+            }
+            // Only rows after the first removed one moved
+            for (int i = removedSorted[0]; i < mListing.size() - added.size(); i++) {
+                mIndex.put(mListing.getName(i), i);
+            }
+        }
+        for (int i = mListing.size() - added.size(); i < mListing.size(); i++) {
+            mIndex.put(mListing.getName(i), i);
+        }
+
+        mGeneration++;
+        mDeltas.add(new DirectoryDelta(mGeneration, removedSorted, added.size(), changedSorted));
+        if (mDeltas.size() > MAX_DELTAS) {
+            mDeltas.removeFirst();
+        }
+    }
+
+    @GuardedBy("this")
+    private void relist() {
+        mListing = DirectoryListing.list(mDocId, mDir);
+        mIndex.clear();
+        for (int i = 0; i < mListing.size(); i++) {
+            mIndex.put(mListing.getName(i), i);
+        }
+
+        // Older listings can't be patched into this one
+        mToken = sNextToken.incrementAndGet();
+        mGeneration = 0;
+        mDeltas.clear();
+        mPending.clear();
+        mInvalid = false;
+        mUnverifiedSince = -1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DirectoryModel{token=" + mToken + ", generation=" + mGeneration
+                + ", size=" + (mListing != null ? mListing.size() : -1)
+                + ", pending=" + mPending.size() + ", invalid=" + mInvalid + "}";
+    }
+}
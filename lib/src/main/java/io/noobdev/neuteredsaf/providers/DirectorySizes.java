@@ -0,0 +1,352 @@
+package io.noobdev.neuteredsaf.providers;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import io.noobdev.neuteredsaf.compat.IOUtils;
+import io.noobdev.neuteredsaf.internal.annotations.GuardedBy;
+
+/**
+ * Recursive sizes of directories, computed in the background and stored in SQLite. A size is
+ * only used while the directory's mtime is the one it was computed for.
+ * <p>
+ * The mtime of a directory only changes when its own children are added, removed or renamed,
+ * so sizes are also marked stale along with all of their ancestors when files are written
+ * under them ({@link #invalidate(File)}). Stale sizes are still returned, but they are computed
+ * again; since subdirectories with up to date sizes aren't walked again, this only lists the
+ * directories along the path that changed.
+ * <p>
+ * Changes in directories that aren't observed, such as files rewritten in place deep down, leave
+ * no trace in any mtime, so sizes also go stale {@link #MAX_AGE_MILLIS} after they were
+ * computed, including sizes stored before a restart.
+ * <p>
+ * Each directory whose size is asked for is computed by its own task, so the subdirectories of
+ * a listing are walked in parallel. The tasks run on a few threads of their own, since each is a
+ * whole walk; directories that don't fit in the queue are computed when they are asked for
+ * again.
+ */
+final class DirectorySizes {
+    private static final String TAG = "DirectorySizes";
+
+    interface Callback {
+        /**
+         * Called on a worker thread when the size of {@code dir} was computed.
+         */
+        void onSizeChanged(File dir);
+    }
+
+    private static final int MAX_CACHED_SIZES = 4096;
+    /** Safety net for loops that can't be detected because stat() isn't usable. */
+    private static final int MAX_DEPTH = 128;
+    /** Sizes older than this are computed again, since not all changes can be noticed. */
+    private static final long MAX_AGE_MILLIS = 60 * 60 * 1000;
+    /** Number of sizes written per transaction. */
+    private static final int WRITE_BATCH = 256;
+
+    private static final int COMPUTE_THREADS = 2;
+    private static final int MAX_QUEUED = 256;
+    private static final ThreadPoolExecutor sExecutor;
+
+    static {
+        sExecutor = new ThreadPoolExecutor(COMPUTE_THREADS, COMPUTE_THREADS, 10,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(MAX_QUEUED));
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final String TABLE_SIZES = "sizes";
+
+    static class DatabaseHelper extends SQLiteOpenHelper {
+        private static final String DB_NAME = "directory_sizes.db";
+
+        private static final int VERSION_INITIAL = 1;
+        private static final int VERSION_COMPUTED_TIME = 2;
+
+        public DatabaseHelper(Context context) {
+            super(context, DB_NAME, null, VERSION_COMPUTED_TIME);
+            setWriteAheadLoggingEnabled(true);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_SIZES + " (" +
+                    "path TEXT NOT NULL PRIMARY KEY," +
+                    "mtime INTEGER NOT NULL," +
+                    "size INTEGER NOT NULL," +
+                    "computed INTEGER NOT NULL," +
+                    "stale INTEGER NOT NULL" +
+                    ")");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            Log.w(TAG, "Upgrading database; dropping sizes");
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_SIZES);
+            onCreate(db);
+        }
+    }
+
+    private static final class Size {
+        final long mtime;
+        final long size;
+        /** Wall clock time when the size was computed. */
+        final long computed;
+        final boolean stale;
+
+        Size(long mtime, long size, long computed, boolean stale) {
+            this.mtime = mtime;
+            this.size = size;
+            this.computed = computed;
+            this.stale = stale;
+        }
+
+        boolean isFresh(long now) {
+            // Also stale if the clock went back
+            return !stale && computed <= now && now - computed < MAX_AGE_MILLIS;
+        }
+    }
+
+    /** Size that was computed but not written yet. */
+    private static final class PendingSize {
+        final String path;
+        final long mtime;
+        final long size;
+        final long computed;
+
+        PendingSize(String path, long mtime, long size, long computed) {
+            this.path = path;
+            this.mtime = mtime;
+            this.size = size;
+            this.computed = computed;
+        }
+    }
+
+    /** Sizes that were looked up, including misses (as null values are not allowed). */
+    private static final Size MISSING = new Size(0, 0, 0, true);
+
+    private final DatabaseHelper mHelper;
+    private final Callback mCallback;
+
+    private final LruCache<String, Size> mCache = new LruCache<>(MAX_CACHED_SIZES);
+
+    /** Directories that are being computed. */
+    @GuardedBy("mComputing")
+    private final HashSet<String> mComputing = Sets.newHashSet();
+
+    DirectorySizes(DatabaseHelper helper, Callback callback) {
+        mHelper = helper;
+        mCallback = callback;
+    }
+
+    /**
+     * Get the size of a directory, computing it in the background if it is unknown or stale.
+     *
+     * @param mtime current mtime of the directory, as in {@link DirectoryEntry#lastModified}
+     * @return the size in bytes or null if it isn't known yet
+     */
+    Long getSize(File dir, long mtime) {
+        final String path = dir.getPath();
+        final Size size = lookup(path);
+        if (size != null && size.mtime == mtime) {
+            if (!size.isFresh(System.currentTimeMillis())) {
+                compute(dir);
+            }
+            return size.size;
+        }
+        compute(dir);
+        return null;
+    }
+
+    /**
+     * Mark the size of {@code dir} and of all of its ancestors stale after files changed in it.
+     */
+    void invalidate(File dir) {
+        final ArrayList<String> paths = Lists.newArrayList();
+        for (File d = dir; d != null; d = d.getParentFile()) {
+            final String path = d.getPath();
+            final Size size = lookup(path);
+            // New directories may not have a size yet while their ancestors do
+            if (size != null && !size.stale) {
+                mCache.put(path, new Size(size.mtime, size.size, size.computed, true));
+                paths.add(path);
+            }
+        }
+        if (paths.isEmpty()) {
+            return;
+        }
+
+        try {
+            final SQLiteDatabase db = mHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (String path : paths) {
+                    db.execSQL("UPDATE " + TABLE_SIZES + " SET stale = 1 WHERE path = ?",
+                            new Object[] { path });
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to invalidate sizes", e);
+        }
+    }
+
+    /**
+     * @return the stored size or null if there is none
+     */
+    private Size lookup(String path) {
+        Size size = mCache.get(path);
+        if (size == null) {
+            size = MISSING;
+            Cursor cursor = null;
+            try {
+                cursor = mHelper.getReadableDatabase().query(TABLE_SIZES,
+                        new String[] { "mtime", "size", "computed", "stale" }, "path = ?",
+                        new String[] { path }, null, null, null);
+                if (cursor.moveToFirst()) {
+                    size = new Size(cursor.getLong(0), cursor.getLong(1), cursor.getLong(2),
+                            cursor.getInt(3) != 0);
+                }
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to read size of " + path, e);
+            } finally {
+                IOUtils.closeQuietly(cursor);
+            }
+            mCache.put(path, size);
+        }
+        return size != MISSING ? size : null;
+    }
+
+    private void compute(final File dir) {
+        synchronized (mComputing) {
+            if (!mComputing.add(dir.getPath())) {
+                return;
+            }
+        }
+        try {
+            sExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final ArrayList<PendingSize> pending = Lists.newArrayList();
+                        final HashSet<String> visited = Sets.newHashSet();
+                        final File parent = dir.getParentFile();
+                        final DirectoryEntry entry = DirectoryEntry.stat(
+                                parent != null ? parent : dir, dir.getName(), false);
+                        walk(dir, entry.lastModified, System.currentTimeMillis(), 0, visited,
+                                pending);
+                        write(pending);
+                    } finally {
+                        synchronized (mComputing) {
+                            mComputing.remove(dir.getPath());
+                        }
+                    }
+                    mCallback.onSizeChanged(dir);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Too many walks queued; this one is retried when the size is asked for again
+            synchronized (mComputing) {
+                mComputing.remove(dir.getPath());
+            }
+        }
+    }
+
+    /**
+     * Add up the sizes of the files under {@code dir}. Subdirectories with fresh sizes aren't
+     * walked again.
+     *
+     * @param now wall clock time when the walk started
+     * @param visited device and inode of the directories walked so far, to stop symlink loops
+     * @return the size, which is only as fresh as the oldest subdirectory size it includes
+     */
+    private Size walk(File dir, long mtime, long now, int depth, HashSet<String> visited,
+            ArrayList<PendingSize> pending) {
+        final String[] names = dir.list();
+        long total = 0;
+        long computed = now;
+        if (names != null) {
+            for (String name : names) {
+                final DirectoryEntry entry = DirectoryEntry.stat(dir, name, false);
+                if (!entry.isDirectory()) {
+                    total += entry.size;
+                    continue;
+                }
+                if (depth >= MAX_DEPTH || (entry.ino != 0
+                        && !visited.add(entry.dev + ":" + entry.ino))) {
+                    continue;
+                }
+                final File child = new File(dir, name);
+                Size size = lookup(child.getPath());
+                if (size == null || !size.isFresh(now) || size.mtime != entry.lastModified) {
+                    size = walk(child, entry.lastModified, now, depth + 1, visited, pending);
+                }
+                total += size.size;
+                computed = Math.min(computed, size.computed);
+            }
+        }
+
+        final String path = dir.getPath();
+        final Size size = new Size(mtime, total, computed, false);
+        mCache.put(path, size);
+        pending.add(new PendingSize(path, mtime, total, computed));
+        if (pending.size() >= WRITE_BATCH) {
+            write(pending);
+            pending.clear();
+        }
+        return size;
+    }
+
+    private void write(ArrayList<PendingSize> pending) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        try {
+            final SQLiteDatabase db = mHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                final SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO "
+                        + TABLE_SIZES + " (path, mtime, size, computed, stale)"
+                        + " VALUES (?, ?, ?, ?, 0)");
+                for (PendingSize size : pending) {
+                    insert.bindString(1, size.path);
+                    insert.bindLong(2, size.mtime);
+                    insert.bindLong(3, size.size);
+                    insert.bindLong(4, size.computed);
+                    insert.executeInsert();
+                }
+                insert.close();
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to write sizes", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        final int computing;
+        synchronized (mComputing) {
+            computing = mComputing.size();
+        }
+        return "DirectorySizes{cached=" + mCache.size() + ", computing=" + computing + "}";
+    }
+}
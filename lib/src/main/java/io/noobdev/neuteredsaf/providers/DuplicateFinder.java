@@ -0,0 +1,439 @@
+package io.noobdev.neuteredsaf.providers;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.noobdev.neuteredsaf.internal.annotations.GuardedBy;
+
+/**
+ * Finds files with the same contents on all volumes. The volumes are walked with
+ * {@link ParallelTreeWalker}s to group the files by size. Files that share their size are
+ * narrowed down by a hash of their first and last {@link #PARTIAL_SIZE} bytes and only the
+ * files that still share it are hashed in full, on a thread pool. Files are identified by device
+ * and inode first, so that hard links and volumes that overlap through bind mounts don't show a
+ * file as a duplicate of itself.
+ * <p>
+ * Groups of duplicates are published as soon as they are confirmed, largest files first.
+ * Hashes come from {@link FileHashes}, so files that didn't change aren't read again by later
+ * searches.
+ * <p>
+ * Like {@link TopFiles}, a search only runs while its results are shown and is cancelled when
+ * the last cursor is closed before it is done.
+ */
+final class DuplicateFinder {
+    private static final String TAG = "DuplicateFinder";
+
+    interface Callback {
+        /**
+         * Called on a worker thread when groups of duplicates were found or the search ended.
+         */
+        void onDuplicatesChanged();
+    }
+
+    /** Volume to search. */
+    static final class Volume {
+        final File path;
+        final String docId;
+
+        Volume(File path, String docId) {
+            this.path = path;
+            this.docId = docId;
+        }
+    }
+
+    static final class Duplicate {
+        final String docId;
+        final File file;
+        final long size;
+        final long mtime;
+
+        Duplicate(String docId, File file, long size, long mtime) {
+            this.docId = docId;
+            this.file = file;
+            this.size = size;
+            this.mtime = mtime;
+        }
+    }
+
+    /** Smaller files aren't worth the I/O. */
+    private static final long MIN_SIZE = 1024 * 1024;
+    /** Number of bytes hashed at each end of a file before hashing it in full. */
+    private static final int PARTIAL_SIZE = 64 * 1024;
+    /** A new search is started when the results are shown after this long. */
+    private static final long RESCAN_INTERVAL_MILLIS = 5 * 60 * 1000;
+    /** Minimum time between notifications about groups found while searching. */
+    private static final long NOTIFY_INTERVAL_MILLIS = 1000;
+
+    private static final int HASH_THREADS = 4;
+    private static final ThreadPoolExecutor sHashExecutor;
+
+    static {
+        sHashExecutor = new ThreadPoolExecutor(HASH_THREADS, HASH_THREADS, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        sHashExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private final FileHashes mHashes;
+    /** Runs the searches, which hand the hashing to {@link #sHashExecutor}. */
+    private final Executor mExecutor;
+    private final Callback mCallback;
+
+    /** Groups found by the last complete search, largest files first. */
+    @GuardedBy("this")
+    private List<List<Duplicate>> mGroups = Collections.emptyList();
+    @GuardedBy("this")
+    private Search mSearch;
+    /** Uptime when the last search started or 0 if a new one is needed. */
+    @GuardedBy("this")
+    private long mSearched;
+    @GuardedBy("this")
+    private int mRefCount;
+
+    DuplicateFinder(FileHashes hashes, Executor executor, Callback callback) {
+        mHashes = hashes;
+        mExecutor = executor;
+        mCallback = callback;
+    }
+
+    /**
+     * Start showing the duplicates, searching the volumes if they were never searched or the
+     * last search is too old. Every call must be followed by {@link #release()}.
+     */
+    synchronized void acquire(List<Volume> volumes) {
+        mRefCount++;
+        if (mSearch != null) {
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        if (mSearched != 0 && now - mSearched < RESCAN_INTERVAL_MILLIS) {
+            return;
+        }
+        mSearched = now;
+        mSearch = new Search(volumes);
+        mSearch.start();
+    }
+
+    void release() {
+        final Search search;
+        synchronized (this) {
+            mRefCount--;
+            if (mRefCount > 0 || mSearch == null) {
+                return;
+            }
+            search = mSearch;
+            mSearch = null;
+            mSearched = 0;
+        }
+        search.cancel();
+    }
+
+    /**
+     * Forget the results, eg. because the volumes changed.
+     */
+    void reset() {
+        final Search search;
+        synchronized (this) {
+            search = mSearch;
+            mSearch = null;
+            mSearched = 0;
+            mGroups = Collections.emptyList();
+        }
+        if (search != null) {
+            search.cancel();
+        }
+    }
+
+    synchronized boolean isSearching() {
+        return mSearch != null;
+    }
+
+    /**
+     * @return the groups of duplicates, largest files first. Until the first search is done,
+     *         these are the groups found so far.
+     */
+    synchronized List<List<Duplicate>> getGroups() {
+        if (mGroups.isEmpty() && mSearch != null) {
+            return mSearch.getGroups();
+        }
+        return mGroups;
+    }
+
+    /**
+     * One search of all volumes. The walks collect the candidates and the last walk to finish
+     * starts hashing them.
+     */
+    private class Search {
+        private final ArrayList<ParallelTreeWalker> mWalkers = Lists.newArrayList();
+        private final AtomicInteger mWalking = new AtomicInteger();
+
+        /** Candidates by size. */
+        @GuardedBy("this")
+        private final HashMap<Long, ArrayList<Duplicate>> mBySize = Maps.newHashMap();
+        /** Identities of the candidates, to add each file once however it can be reached. */
+        @GuardedBy("this")
+        private final HashSet<String> mSeen = Sets.newHashSet();
+        @GuardedBy("this")
+        private final ArrayList<List<Duplicate>> mFound = Lists.newArrayList();
+        private volatile boolean mCancelled;
+        /** Uptime of the last notification about found groups. Only used by the search thread. */
+        private long mLastNotify;
+
+        Search(List<Volume> volumes) {
+            for (Volume volume : volumes) {
+                mWalkers.add(new ParallelTreeWalker(volume.path, volume.docId,
+                        volume.path.getPath(), mVisitor));
+            }
+        }
+
+        void start() {
+            mWalking.set(mWalkers.size());
+            if (mWalkers.isEmpty()) {
+                finish();
+                return;
+            }
+            for (ParallelTreeWalker walker : mWalkers) {
+                walker.start();
+            }
+        }
+
+        void cancel() {
+            mCancelled = true;
+            for (ParallelTreeWalker walker : mWalkers) {
+                walker.cancel();
+            }
+        }
+
+        synchronized List<List<Duplicate>> getGroups() {
+            return new ArrayList<>(mFound);
+        }
+
+        private final ParallelTreeWalker.Visitor mVisitor = new ParallelTreeWalker.Visitor() {
+            @Override
+            public boolean onDirectory(File dir, String docId, long lastModified,
+                    String[] names, DirectoryEntry[] entries) {
+                for (int i = 0; i < names.length; i++) {
+                    final DirectoryEntry entry = entries[i];
+                    if (entry.isDirectory() || entry.size < MIN_SIZE
+                            || names[i].startsWith(".")) {
+                        continue;
+                    }
+                    final Duplicate candidate = new Duplicate(
+                            DirectoryListing.buildChildDocId(docId, names[i]),
+                            new File(dir, names[i]), entry.size, entry.lastModified);
+                    final String identity = getIdentity(candidate.file, entry);
+                    synchronized (Search.this) {
+                        if (identity != null && !mSeen.add(identity)) {
+                            continue;
+                        }
+                        ArrayList<Duplicate> sameSize = mBySize.get(entry.size);
+                        if (sameSize == null) {
+                            sameSize = Lists.newArrayListWithCapacity(2);
+                            mBySize.put(entry.size, sameSize);
+                        }
+                        sameSize.add(candidate);
+                    }
+                }
+                return !mCancelled;
+            }
+
+            @Override
+            public void onStopped(boolean finished) {
+                if (!finished) {
+                    // Cancelled
+                    return;
+                }
+                if (mWalking.decrementAndGet() == 0) {
+                    mExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            hashCandidates();
+                        }
+                    });
+                }
+            }
+        };
+
+        /**
+         * @return device and inode of the file, its canonical path if stat() isn't usable or
+         *         null if neither is known
+         */
+        private String getIdentity(File file, DirectoryEntry entry) {
+            if (entry.ino != 0) {
+                return entry.dev + ":" + entry.ino;
+            }
+            try {
+                return file.getCanonicalPath();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        private void hashCandidates() {
+            final ArrayList<ArrayList<Duplicate>> sameSizes = Lists.newArrayList();
+            synchronized (this) {
+                for (ArrayList<Duplicate> sameSize : mBySize.values()) {
+                    if (sameSize.size() > 1) {
+                        sameSizes.add(sameSize);
+                    }
+                }
+                mBySize.clear();
+                mSeen.clear();
+            }
+            // Largest first, since those waste the most space
+            Collections.sort(sameSizes, new Comparator<ArrayList<Duplicate>>() {
+                @Override
+                public int compare(ArrayList<Duplicate> lhs, ArrayList<Duplicate> rhs) {
+                    final long l = lhs.get(0).size;
+                    final long r = rhs.get(0).size;
+                    return l < r ? 1 : (l > r ? -1 : 0);
+                }
+            });
+
+            try {
+                for (ArrayList<Duplicate> sameSize : sameSizes) {
+                    if (mCancelled) {
+                        return;
+                    }
+                    for (List<Duplicate> samePartial : groupByHash(sameSize, false)) {
+                        final List<List<Duplicate>> confirmed = groupByHash(samePartial, true);
+                        if (confirmed.isEmpty()) {
+                            continue;
+                        }
+                        synchronized (this) {
+                            mFound.addAll(confirmed);
+                        }
+                        // Every notification requeries all groups, so don't send one per group.
+                        // The one at the end covers the groups that weren't notified.
+                        final long now = SystemClock.uptimeMillis();
+                        if (now - mLastNotify >= NOTIFY_INTERVAL_MILLIS && isCurrent()) {
+                            mLastNotify = now;
+                            mCallback.onDuplicatesChanged();
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            finish();
+        }
+
+        /**
+         * Hash files in parallel and group them by hash.
+         *
+         * @return groups of more than one file with the same hash
+         */
+        private List<List<Duplicate>> groupByHash(List<Duplicate> files, final boolean full)
+                throws InterruptedException {
+            final ArrayList<Callable<String>> tasks = Lists.newArrayList();
+            for (final Duplicate file : files) {
+                tasks.add(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return mCancelled ? null : getHash(file, full);
+                    }
+                });
+            }
+
+            final LinkedHashMapOfLists groups = new LinkedHashMapOfLists();
+            final List<Future<String>> hashes = sHashExecutor.invokeAll(tasks);
+            for (int i = 0; i < hashes.size(); i++) {
+                try {
+                    final String hash = hashes.get(i).get();
+                    if (hash != null) {
+                        groups.add(hash, files.get(i));
+                    }
+                } catch (ExecutionException e) {
+                    Log.w(TAG, "Failed to hash " + files.get(i).file, e);
+                }
+            }
+            return groups.getGroups();
+        }
+
+        private void finish() {
+            synchronized (DuplicateFinder.this) {
+                if (mSearch != this) {
+                    return;
+                }
+                mSearch = null;
+                synchronized (this) {
+                    mGroups = new ArrayList<>(mFound);
+                }
+            }
+            mCallback.onDuplicatesChanged();
+        }
+
+        private boolean isCurrent() {
+            synchronized (DuplicateFinder.this) {
+                return mSearch == this;
+            }
+        }
+    }
+
+    /** Groups values by key, keeping the order in which keys were first seen. */
+    private static final class LinkedHashMapOfLists {
+        private final Map<String, List<Duplicate>> mMap = Maps.newLinkedHashMap();
+
+        void add(String key, Duplicate value) {
+            List<Duplicate> list = mMap.get(key);
+            if (list == null) {
+                list = Lists.newArrayListWithCapacity(2);
+                mMap.put(key, list);
+            }
+            list.add(value);
+        }
+
+        List<List<Duplicate>> getGroups() {
+            final ArrayList<List<Duplicate>> groups = Lists.newArrayList();
+            for (List<Duplicate> list : mMap.values()) {
+                if (list.size() > 1) {
+                    groups.add(list);
+                }
+            }
+            return groups;
+        }
+    }
+
+    /**
+     * @return the stored or computed hash of a file or null if it couldn't be read
+     */
+    private String getHash(Duplicate file, boolean full) {
+        try {
+            return full
+                    ? mHashes.getDigest(file.file, file.size, file.mtime, FileHashes.SHA_1,
+                            false)
+                    : mHashes.getEdgeDigest(file.file, file.size, file.mtime, FileHashes.SHA_1,
+                            PARTIAL_SIZE);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to hash " + file.file + ": " + e);
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DuplicateFinder{groups=" + mGroups.size() + ", searching=" + (mSearch != null)
+                + ", ref=" + mRefCount + "}";
+    }
+}
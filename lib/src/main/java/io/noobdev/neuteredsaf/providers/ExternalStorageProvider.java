@@ -18,36 +18,66 @@ package io.noobdev.neuteredsaf.providers;
 
 import android.content.ContentResolver;
 import android.content.res.AssetFileDescriptor;
+import android.database.AbstractCursor;
 import android.database.Cursor;
+import android.database.CursorIndexOutOfBoundsException;
 import android.graphics.Point;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Binder;
+import android.os.Bundle;
 import android.os.CancellationSignal;
 import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.annotation.VisibleForTesting;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 import android.webkit.MimeTypeMap;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import io.noobdev.neuteredsaf.DocumentsApplication;
+import io.noobdev.neuteredsaf.MimePredicate;
 import io.noobdev.neuteredsaf.VolumeUtils;
 import io.noobdev.neuteredsaf.VolumeUtils.Volume;
+import io.noobdev.neuteredsaf.compat.DatabaseUtilsCompat;
 import io.noobdev.neuteredsaf.compat.DocumentsContractCompat;
 import io.noobdev.neuteredsaf.compat.DocumentsContractCompat.Document;
 import io.noobdev.neuteredsaf.compat.DocumentsContractCompat.Root;
+import io.noobdev.neuteredsaf.compat.DocumentsContractCompat.Transfer;
 import io.noobdev.neuteredsaf.compat.DocumentsProviderCompat;
+import io.noobdev.neuteredsaf.compat.IOUtils;
 import io.noobdev.neuteredsaf.compat.MatrixCursorCompat;
 import io.noobdev.neuteredsaf.compat.MatrixCursorCompat.RowBuilder;
 import io.noobdev.neuteredsaf.internal.annotations.GuardedBy;
@@ -78,33 +108,231 @@ public class ExternalStorageProvider extends DocumentsProviderCompat {
         public int flags;
         public String title;
         public String docId;
+        public File path;
+        /** Whether the filesystem can't contain symlinks. */
+        public boolean symlinkFree;
+        /** Filename index used for searches. Kept across volume updates. */
+        public FilenameIndex index;
+        /**
+         * Most recently modified files and largest files, found by the same walks. Kept across
+         * volume updates.
+         */
+        public TopFiles topFiles;
+
+        /** Cached free space in bytes or -1 if it hasn't been read yet. */
+        public volatile long freeBytes = -1;
+        /** Uptime when {@link #freeBytes} was read or 0 if it should be read again. */
+        public volatile long freeBytesTime;
+        public final AtomicBoolean freeBytesRefreshing = new AtomicBoolean();
+    }
+
+    /**
+     * Immutable snapshot of the active roots. It is replaced as a whole when the volumes change,
+     * so lookups never need to take {@link #mRootsLock}.
+     */
+    private static class Roots {
+        public final ArrayList<RootInfo> roots = Lists.newArrayList();
+        public final HashMap<String, RootInfo> idToRoot = Maps.newHashMap();
+        public final PathTrie<RootInfo> pathToRoot = new PathTrie<>();
     }
 
     public static final String ROOT_ID_PRIMARY_EMULATED = "primary";
 
+    /**
+     * Virtual root listing the most recently modified files of all volumes. Its only directory
+     * can't be changed, and its children are regular documents of the volumes.
+     */
+    public static final String ROOT_ID_RECENT = "recent";
+    private static final String DOC_ID_RECENT = ROOT_ID_RECENT + '\0';
+    /**
+     * Virtual root listing the largest files of all volumes, to find what takes up space.
+     */
+    public static final String ROOT_ID_LARGEST = "largest";
+    private static final String DOC_ID_LARGEST = ROOT_ID_LARGEST + '\0';
+    /**
+     * Virtual root listing the files of all volumes that have the same contents as another file.
+     */
+    public static final String ROOT_ID_DUPLICATES = "duplicates";
+    private static final String DOC_ID_DUPLICATES = ROOT_ID_DUPLICATES + '\0';
+    /** Number of files shown in the recent and largest roots, and kept for each volume. */
+    private static final int MAX_TOP_FILES = 64;
+    /**
+     * Number of files shown in the duplicates root. Each query stats every file it shows, so
+     * only the largest groups are shown, which are the ones that waste the most space anyway.
+     */
+    private static final int MAX_DUPLICATE_ROWS = 256;
+
+    private static final TopFiles.Ranking RANK_BY_LAST_MODIFIED = new TopFiles.Ranking() {
+        @Override
+        public long getKey(DirectoryEntry entry) {
+            return entry.lastModified;
+        }
+    };
+
+    private static final TopFiles.Ranking RANK_BY_SIZE = new TopFiles.Ranking() {
+        @Override
+        public long getKey(DirectoryEntry entry) {
+            return entry.size;
+        }
+    };
+
+    /** Rankings of {@link RootInfo#topFiles}, by their index. */
+    private static final int RANKING_RECENT = 0;
+    private static final int RANKING_LARGEST = 1;
+    private static final TopFiles.Ranking[] TOP_FILES_RANKINGS =
+            new TopFiles.Ranking[] { RANK_BY_LAST_MODIFIED, RANK_BY_SIZE };
+
+    /** Total number of zip entries kept in {@link #mZipIndexes}. */
+    private static final int MAX_CACHED_ZIP_ENTRIES = 64 * 1024;
+
+    /**
+     * Writes archive entries into pipes. A writer blocks for as long as its reader is slow, so
+     * each open entry gets its own thread instead of holding one of a shared pool.
+     */
+    private static final ThreadPoolExecutor sPipeExecutor;
+
+    static {
+        sPipeExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 10, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>());
+    }
+
+    /**
+     * Change notifications for a watched directory are held back until no events have arrived
+     * for this long...
+     */
+    private static final long DEFAULT_NOTIFY_QUIET_MILLIS = 200;
+    /** ...or until the oldest undelivered event is this old, whichever comes first. */
+    private static final long DEFAULT_NOTIFY_MAX_LATENCY_MILLIS = 1000;
+
+    private static volatile long sNotifyQuietMillis = DEFAULT_NOTIFY_QUIET_MILLIS;
+    private static volatile long sNotifyMaxLatencyMillis = DEFAULT_NOTIFY_MAX_LATENCY_MILLIS;
+
+    /**
+     * Directories stay watched for this long after their last cursor is closed, so that going
+     * back and forth between directories doesn't keep adding and removing inotify watches.
+     */
+    private static final long OBSERVER_LINGER_MILLIS = 10 * 1000;
+    /** Maximum number of lingering watches. The oldest ones are removed first. */
+    private static final int MAX_IDLE_OBSERVERS = 8;
+
+    /**
+     * Free space is read again in the background when it is older than this. statfs() can be
+     * slow on sleeping SD cards, so queryRoots() never waits for it after the first query.
+     */
+    private static final long FREE_SPACE_TTL_MILLIS = 5 * 1000;
+
+    /**
+     * Filesystems without symlinks. Document IDs on these can be checked for containment
+     * without resolving them. Emulated storage is left out since its backing filesystem can
+     * contain symlinks even if they can't be created through it.
+     */
+    private static final Set<String> SYMLINK_FREE_FS_TYPES = Sets.newHashSet(
+            "vfat", "msdos", "exfat", "texfat", "sdfat");
+
+    /** Number of search results to find if the caller didn't ask for a specific number. */
+    private static final int DEFAULT_SEARCH_LIMIT = 64;
+    /**
+     * Most results a ranked search keeps, since its whole ranking is allocated up front and
+     * returned at once.
+     */
+    private static final int MAX_RANKED_LIMIT = 1000;
+    /** Budgets of content searches if the caller didn't ask for specific ones. */
+    private static final long DEFAULT_CONTENT_MAX_FILE_SIZE = 16 * 1024 * 1024;
+    private static final long DEFAULT_CONTENT_MAX_TOTAL_BYTES = 512 * 1024 * 1024;
+    /**
+     * Number of paused searches kept for clients that passed a session token, so that their
+     * next query can build on them. The oldest ones are cancelled first.
+     */
+    private static final int MAX_IDLE_SEARCHES = 4;
+
+    /** Number of names to try when creating a document races with other writers. */
+    private static final int MAX_CREATE_ATTEMPTS = 8;
+
+    /** Budget and maximum age of the listings of directories that are no longer observed. */
+    private static final int LISTING_CACHE_MAX_BYTES = 4 * 1024 * 1024;
+    private static final long LISTING_CACHE_MAX_AGE_MILLIS = 60 * 1000;
+
+    /** Serializes updates to {@link #mRoots}. */
     private final Object mRootsLock = new Object();
 
-    @GuardedBy("mRootsLock")
-    private ArrayList<RootInfo> mRoots;
-    @GuardedBy("mRootsLock")
-    private HashMap<String, RootInfo> mIdToRoot;
-    @GuardedBy("mRootsLock")
-    private HashMap<String, File> mIdToPath;
+    private volatile Roots mRoots = new Roots();
 
     @GuardedBy("mObservers")
     private final Map<File, DirectoryObserver> mObservers = Maps.newHashMap();
+    /** Observers without any cursors, oldest first. They are also in {@link #mObservers}. */
+    @GuardedBy("mObservers")
+    private final LinkedHashMap<File, DirectoryObserver> mIdleObservers = Maps.newLinkedHashMap();
+    @GuardedBy("mObservers")
+    private final ListingCache mListingCache =
+            new ListingCache(LISTING_CACHE_MAX_BYTES, LISTING_CACHE_MAX_AGE_MILLIS);
+
+    /**
+     * Running searches by root ID and either query or client session token. Searches without a
+     * session token are shared by all cursors for the same query.
+     */
+    @GuardedBy("mSearchSessions")
+    private final HashMap<String, SearchSession> mSearchSessions = Maps.newHashMap();
+    /** Client searches without any cursors, oldest first. They are also in mSearchSessions. */
+    @GuardedBy("mSearchSessions")
+    private final LinkedHashMap<String, SearchSession> mIdleSearches = Maps.newLinkedHashMap();
+
+    /** Parsed central directories of zip archives by path, checked against size and mtime. */
+    private final LruCache<String, ZipIndex> mZipIndexes =
+            new LruCache<String, ZipIndex>(MAX_CACHED_ZIP_ENTRIES) {
+                @Override
+                protected int sizeOf(String key, ZipIndex value) {
+                    return value.size();
+                }
+            };
+
+    /**
+     * Running copies and moves that can be followed, by {@link #getTransferKey(String)}. IDs
+     * are chosen by callers, so each caller only sees its own transfers.
+     */
+    @GuardedBy("mTransfers")
+    private final HashMap<String, FileTransfer> mTransfers = Maps.newHashMap();
+
+    /** Delivers coalesced change notifications off the inotify thread. */
+    private Handler mNotifyHandler;
+
+    private FilenameIndex.DatabaseHelper mIndexDatabase;
+    private DirectorySizes mDirectorySizes;
+    private FileHashes mFileHashes;
+    private DuplicateFinder mDuplicates;
 
     public static String getAuthority() {
         return DocumentsApplication.getApplicationId() + AUTHORITY_SUFFIX;
     }
 
+    /**
+     * Set how change notifications for watched directories are coalesced. A notification is
+     * delivered once no filesystem events have arrived for {@code quietMillis}, but never later
+     * than {@code maxLatencyMillis} after the first event that hasn't been delivered yet. Pass 0
+     * for both to deliver a notification for every event.
+     */
+    public static void setNotifyCoalescing(long quietMillis, long maxLatencyMillis) {
+        if (quietMillis < 0 || maxLatencyMillis < 0) {
+            throw new IllegalArgumentException("Negative delay");
+        }
+        sNotifyQuietMillis = quietMillis;
+        sNotifyMaxLatencyMillis = maxLatencyMillis;
+    }
+
     @Override
     public boolean onCreate() {
         DocumentsApplication.setApplicationId(getContext());
 
-        mRoots = Lists.newArrayList();
-        mIdToRoot = Maps.newHashMap();
-        mIdToPath = Maps.newHashMap();
+        final HandlerThread notifyThread =
+                new HandlerThread(TAG + " notify", Process.THREAD_PRIORITY_BACKGROUND);
+        notifyThread.start();
+        mNotifyHandler = new Handler(notifyThread.getLooper());
+
+        mIndexDatabase = new FilenameIndex.DatabaseHelper(getContext());
+        mDirectorySizes = new DirectorySizes(new DirectorySizes.DatabaseHelper(getContext()),
+                mSizesCallback);
+        mFileHashes = new FileHashes(new FileHashes.DatabaseHelper(getContext()));
+        mDuplicates = new DuplicateFinder(mFileHashes,
+                AsyncTask.THREAD_POOL_EXECUTOR, mDuplicatesCallback);
 
         updateVolumes();
 
@@ -118,9 +346,8 @@ public class ExternalStorageProvider extends DocumentsProviderCompat {
     }
 
     private void updateVolumesLocked() {
-        mRoots.clear();
-        mIdToPath.clear();
-        mIdToRoot.clear();
+        final Roots previous = mRoots;
+        final Roots roots = new Roots();
 
         Volume[] volumes = VolumeUtils.getVolumes();
         for (Volume volume : volumes) {
@@ -134,36 +361,76 @@ public class ExternalStorageProvider extends DocumentsProviderCompat {
                 continue;
             }
 
-            if (mIdToPath.containsKey(rootId)) {
+            if (roots.idToRoot.containsKey(rootId)) {
                 Log.w(TAG, "Duplicate UUID " + rootId + "; skipping");
                 continue;
             }
 
-            try {
-                final File path = new File(volume.mountPoint);
-                mIdToPath.put(rootId, path);
-
-                final RootInfo root = new RootInfo();
-                root.rootId = rootId;
-                root.flags = Root.FLAG_SUPPORTS_CREATE | Root.FLAG_LOCAL_ONLY | Root.FLAG_ADVANCED
-                        | Root.FLAG_SUPPORTS_SEARCH | Root.FLAG_SUPPORTS_IS_CHILD;
-                if (ROOT_ID_PRIMARY_EMULATED.equals(rootId)) {
-                    // TODO: CXL
-                    //root.title = getContext().getString(R.string.root_internal_storage);
-                    root.title = "EMULATED";
-                    // TODO: CXL
-                } else {
-                    root.title = volume.id;
-                }
-                root.docId = getDocIdForFile(path);
-                mRoots.add(root);
-                mIdToRoot.put(rootId, root);
-            } catch (FileNotFoundException e) {
-                throw new IllegalStateException(e);
+            final File path = new File(volume.mountPoint);
+            if (!path.exists()) {
+                path.mkdirs();
             }
+
+            final RootInfo root = new RootInfo();
+            root.rootId = rootId;
+            root.flags = Root.FLAG_SUPPORTS_CREATE | Root.FLAG_LOCAL_ONLY | Root.FLAG_ADVANCED
+                    | Root.FLAG_SUPPORTS_SEARCH | Root.FLAG_SUPPORTS_IS_CHILD;
+            if (ROOT_ID_PRIMARY_EMULATED.equals(rootId)) {
+                // TODO: CXL
+                //root.title = getContext().getString(R.string.root_internal_storage);
+                root.title = "EMULATED";
+                // TODO: CXL
+            } else {
+                root.title = volume.id;
+            }
+            root.docId = rootId + '\0';
+            root.path = path;
+            root.symlinkFree = volume.fsType != null
+                    && SYMLINK_FREE_FS_TYPES.contains(volume.fsType);
+
+            if (!roots.pathToRoot.add(path.getAbsolutePath(), root)) {
+                Log.w(TAG, "Duplicate mount point " + path + "; skipping");
+                continue;
+            }
+            roots.roots.add(root);
+            roots.idToRoot.put(rootId, root);
+
+            final RootInfo old = previous.idToRoot.get(rootId);
+            if (old != null && old.path.equals(path)) {
+                root.index = old.index;
+                root.topFiles = old.topFiles;
+            } else {
+                root.index = new FilenameIndex(mIndexDatabase, rootId, path, root.docId,
+                        AsyncTask.THREAD_POOL_EXECUTOR);
+                root.topFiles = new TopFiles(rootId, path, root.docId, MAX_TOP_FILES,
+                        TOP_FILES_RANKINGS, mTopFilesCallback);
+            }
+        }
+
+        mRoots = roots;
+
+        boolean volumesChanged = roots.roots.size() != previous.roots.size();
+        for (RootInfo old : previous.roots) {
+            final RootInfo root = roots.idToRoot.get(old.rootId);
+            if (root == null || root.index != old.index) {
+                old.index.close();
+                old.topFiles.close();
+                volumesChanged = true;
+            }
+        }
+        if (volumesChanged) {
+            mDuplicates.reset();
         }
 
-        Log.d(TAG, "After updating volumes, found " + mRoots.size() + " active roots");
+        synchronized (mObservers) {
+            // Volumes may have been unmounted or replaced under the same paths
+            while (!mIdleObservers.isEmpty()) {
+                retireObserverLocked(mIdleObservers.values().iterator().next());
+            }
+            mListingCache.evictAll();
+        }
+
+        Log.d(TAG, "After updating volumes, found " + roots.roots.size() + " active roots");
 
         getContext().getContentResolver()
                 .notifyChange(DocumentsContractCompat.buildRootsUri(getAuthority()), null, false);
@@ -173,6 +440,10 @@ public class ExternalStorageProvider extends DocumentsProviderCompat {
         return projection != null ? projection : DEFAULT_ROOT_PROJECTION;
     }
 
+    private static final String[] DEFAULT_TRANSFER_PROJECTION = new String[] {
+            Transfer.COLUMN_BYTES_TRANSFERRED, Transfer.COLUMN_TOTAL_BYTES,
+    };
+
     private static String[] resolveDocumentProjection(String[] projection) {
         return projection != null ? projection : DEFAULT_DOCUMENT_PROJECTION;
     }
@@ -181,32 +452,19 @@ public class ExternalStorageProvider extends DocumentsProviderCompat {
         String path = file.getAbsolutePath();
 
         // Find the most-specific root path
-        Map.Entry<String, File> mostSpecific = null;
-        synchronized (mRootsLock) {
-            for (Map.Entry<String, File> root : mIdToPath.entrySet()) {
-                final String rootPath = root.getValue().getPath();
-                if (path.startsWith(rootPath) && (mostSpecific == null
-                        || rootPath.length() > mostSpecific.getValue().getPath().length())) {
-                    mostSpecific = root;
-                }
-            }
-        }
-
-        if (mostSpecific == null) {
+        final PathTrie.Match<RootInfo> match = mRoots.pathToRoot.findLongestPrefix(path);
+        if (match == null) {
             throw new FileNotFoundException("Failed to find root that contains " + path);
         }
 
         // Start at first char of path under root
-        final String rootPath = mostSpecific.getValue().getPath();
-        if (rootPath.equals(path)) {
-            path = "";
-        } else if (rootPath.endsWith("/")) {
-            path = path.substring(rootPath.length());
-        } else {
-            path = path.substring(rootPath.length() + 1);
+        int start = match.end;
+        while (start < path.length() && path.charAt(start) == '/') {
+            start++;
         }
+        path = path.substring(start);
 
-        return mostSpecific.getKey() + '\0' + path;
+        return match.value.rootId + '\0' + path;
     }
 
     private File getFileForDocId(String docId) throws FileNotFoundException {
@@ -214,17 +472,11 @@ public class ExternalStorageProvider extends DocumentsProviderCompat {
         final String tag = docId.substring(0, splitIndex);
         final String path = docId.substring(splitIndex + 1);
 
-        File target;
-        synchronized (mRootsLock) {
-            target = mIdToPath.get(tag);
-        }
-        if (target == null) {
+        final RootInfo root = mRoots.idToRoot.get(tag);
+        if (root == null) {
             throw new FileNotFoundException("No root for " + tag);
         }
-        if (!target.exists()) {
-            target.mkdirs();
-        }
-        target = new File(target, path);
+        final File target = new File(root.path, path);
         if (!target.exists()) {
             throw new FileNotFoundException("Missing file for " + docId + " at " + target);
         }
@@ -239,57 +491,140 @@ public class ExternalStorageProvider extends DocumentsProviderCompat {
             file = getFileForDocId(docId);
         }
 
-        int flags = 0;
-
-        if (file.canWrite()) {
-            if (file.isDirectory()) {
-                flags |= Document.FLAG_DIR_SUPPORTS_CREATE;
-            } else {
-                flags |= Document.FLAG_SUPPORTS_WRITE;
-            }
-        }
-
-        final String displayName = file.getName();
-        final String mimeType = getTypeForFile(file);
-        if (mimeType.startsWith("image/")) {
-            flags |= Document.FLAG_SUPPORTS_THUMBNAIL;
+        final DirectoryEntry entry = DirectoryEntry.stat(
+                file.getParentFile(), file.getName(), file.canWrite());
+        final RowBuilder row = includeEntry(result, docId, file.getName(), entry);
+        if (entry.isDirectory()) {
+            row.add(Document.COLUMN_SIZE, mDirectorySizes.getSize(file, entry.lastModified));
         }
+    }
 
+    /**
+     * Add a row for a document. Directories are added without a size.
+     */
+    private static RowBuilder includeEntry(MatrixCursorCompat result, String docId, String name,
+            DirectoryEntry entry) {
         final RowBuilder row = result.newRow();
         row.add(Document.COLUMN_DOCUMENT_ID, docId);
-        row.add(Document.COLUMN_DISPLAY_NAME, displayName);
-        row.add(Document.COLUMN_SIZE, file.length());
-        row.add(Document.COLUMN_MIME_TYPE, mimeType);
-        row.add(Document.COLUMN_FLAGS, flags);
-
-        // Only publish dates reasonably after epoch
-        long lastModified = file.lastModified();
-        if (lastModified > 31536000000L) {
-            row.add(Document.COLUMN_LAST_MODIFIED, lastModified);
+        row.add(Document.COLUMN_DISPLAY_NAME, name);
+        row.add(Document.COLUMN_SIZE, entry.isDirectory() ? null : entry.size);
+        row.add(Document.COLUMN_MIME_TYPE, entry.mimeType);
+        row.add(Document.COLUMN_FLAGS, entry.flags);
+        if (entry.lastModified != -1) {
+            row.add(Document.COLUMN_LAST_MODIFIED, entry.lastModified);
         }
+        return row;
     }
 
     @Override
     public Cursor queryRoots(String[] projection) throws FileNotFoundException {
         final MatrixCursorCompat result = new MatrixCursorCompat(resolveRootProjection(projection));
-        synchronized (mRootsLock) {
-            for (String rootId : mIdToPath.keySet()) {
-                final RootInfo root = mIdToRoot.get(rootId);
-                final File path = mIdToPath.get(rootId);
+        for (RootInfo root : mRoots.roots) {
+            final RowBuilder row = result.newRow();
+            row.add(Root.COLUMN_ROOT_ID, root.rootId);
+            row.add(Root.COLUMN_FLAGS, root.flags);
+            row.add(Root.COLUMN_TITLE, root.title);
+            row.add(Root.COLUMN_DOCUMENT_ID, root.docId);
+            row.add(Root.COLUMN_AVAILABLE_BYTES, getFreeSpace(root));
+        }
+        if (!mRoots.roots.isEmpty()) {
+            final RowBuilder row = result.newRow();
+            row.add(Root.COLUMN_ROOT_ID, ROOT_ID_RECENT);
+            row.add(Root.COLUMN_FLAGS, Root.FLAG_LOCAL_ONLY);
+            // TODO: CXL
+            row.add(Root.COLUMN_TITLE, "Recent");
+            row.add(Root.COLUMN_DOCUMENT_ID, DOC_ID_RECENT);
+
+            final RowBuilder largest = result.newRow();
+            largest.add(Root.COLUMN_ROOT_ID, ROOT_ID_LARGEST);
+            largest.add(Root.COLUMN_FLAGS, Root.FLAG_LOCAL_ONLY);
+            // TODO: CXL
+            largest.add(Root.COLUMN_TITLE, "Largest files");
+            largest.add(Root.COLUMN_DOCUMENT_ID, DOC_ID_LARGEST);
+
+            final RowBuilder duplicates = result.newRow();
+            duplicates.add(Root.COLUMN_ROOT_ID, ROOT_ID_DUPLICATES);
+            duplicates.add(Root.COLUMN_FLAGS, Root.FLAG_LOCAL_ONLY);
+            // TODO: CXL
+            duplicates.add(Root.COLUMN_TITLE, "Duplicates");
+            duplicates.add(Root.COLUMN_DOCUMENT_ID, DOC_ID_DUPLICATES);
+        }
+        return result;
+    }
 
-                final RowBuilder row = result.newRow();
-                row.add(Root.COLUMN_ROOT_ID, root.rootId);
-                row.add(Root.COLUMN_FLAGS, root.flags);
-                row.add(Root.COLUMN_TITLE, root.title);
-                row.add(Root.COLUMN_DOCUMENT_ID, root.docId);
-                row.add(Root.COLUMN_AVAILABLE_BYTES, path.getFreeSpace());
+    private long getFreeSpace(final RootInfo root) {
+        final long freeBytes = root.freeBytes;
+        if (freeBytes < 0) {
+            return refreshFreeSpace(root, false);
+        }
+
+        if (SystemClock.uptimeMillis() - root.freeBytesTime > FREE_SPACE_TTL_MILLIS
+                && root.freeBytesRefreshing.compareAndSet(false, true)) {
+            try {
+                AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        refreshFreeSpace(root, true);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The pool is saturated; the stale value is refreshed when it is asked for again
+                root.freeBytesRefreshing.set(false);
             }
         }
-        return result;
+        return freeBytes;
+    }
+
+    private long refreshFreeSpace(RootInfo root, boolean notifyIfChanged) {
+        final long freeBytes = root.path.getFreeSpace();
+        final long oldFreeBytes = root.freeBytes;
+        root.freeBytes = freeBytes;
+        root.freeBytesTime = SystemClock.uptimeMillis();
+        root.freeBytesRefreshing.set(false);
+
+        if (notifyIfChanged && freeBytes != oldFreeBytes) {
+            getContext().getContentResolver().notifyChange(
+                    DocumentsContractCompat.buildRootsUri(getAuthority()), null, false);
+        }
+        return freeBytes;
+    }
+
+    /**
+     * Make the next roots query refresh the free space of the volume containing {@code docId}.
+     */
+    private void invalidateFreeSpace(String docId) {
+        final int splitIndex = docId.indexOf('\0', 1);
+        final RootInfo root = mRoots.idToRoot.get(docId.substring(0, splitIndex));
+        if (root != null) {
+            root.freeBytesTime = 0;
+        }
     }
 
     @Override
     public boolean isChildDocument(String parentDocId, String docId) {
+        if (isVirtualDocId(parentDocId) || isVirtualDocId(docId)) {
+            // The recent, largest and duplicates roots don't support tree access
+            return false;
+        }
+
+        final int archiveSplit = getArchiveSplit(docId);
+        if (archiveSplit >= 0) {
+            if (getArchiveSplit(parentDocId) >= 0) {
+                return docId.startsWith(parentDocId + '/');
+            }
+            final String archiveDocId = docId.substring(0, archiveSplit);
+            return parentDocId.equals(archiveDocId) || isChildDocument(parentDocId, archiveDocId);
+        } else if (getArchiveSplit(parentDocId) >= 0) {
+            return false;
+        }
+
+        final Boolean isChild = isChildDocumentByPath(parentDocId, docId);
+        if (isChild != null) {
+            return isChild;
+        }
+
+        // This decides tree access, so resolve symlinks every time instead of trusting a cached
+        // resolution that a swapped symlink could have made stale
         try {
             final File parent = getFileForDocId(parentDocId).getCanonicalFile();
             final File doc = getFileForDocId(docId).getCanonicalFile();
@@ -300,6 +635,61 @@ public class ExternalStorageProvider extends DocumentsProviderCompat {
         }
     }
 
+    /**
+     * Check whether a document contains another by comparing their paths, which is only
+     * possible for normalized paths on a volume without symlinks.
+     *
+     * @return result or null if the documents must be resolved to tell
+     */
+    private Boolean isChildDocumentByPath(String parentDocId, String docId) {
+        final int split = parentDocId.indexOf('\0', 1);
+        if (split < 0 || docId.indexOf('\0', 1) != split
+                || !docId.regionMatches(0, parentDocId, 0, split)) {
+            return null;
+        }
+        final RootInfo root = mRoots.idToRoot.get(parentDocId.substring(0, split));
+        if (root == null || !root.symlinkFree) {
+            return null;
+        }
+
+        final int start = split + 1;
+        if (!isNormalPath(parentDocId, start) || !isNormalPath(docId, start)) {
+            return null;
+        }
+
+        final int parentLength = parentDocId.length() - start;
+        if (parentLength == 0) {
+            return true;
+        }
+        final int end = start + parentLength;
+        return docId.regionMatches(start, parentDocId, start, parentLength)
+                && (docId.length() == end || docId.charAt(end) == '/');
+    }
+
+    /**
+     * @return false if the path starting at {@code start} has empty, "." or ".." segments
+     */
+    private static boolean isNormalPath(String s, int start) {
+        final int length = s.length();
+        if (start == length) {
+            return true;
+        }
+        int segmentStart = start;
+        for (int i = start; i <= length; i++) {
+            if (i == length || s.charAt(i) == '/') {
+                final int segmentLength = i - segmentStart;
+                if (segmentLength == 0
+                        || (segmentLength == 1 && s.charAt(segmentStart) == '.')
+                        || (segmentLength == 2 && s.charAt(segmentStart) == '.'
+                                && s.charAt(segmentStart + 1) == '.')) {
+                    return false;
+                }
+                segmentStart = i + 1;
+            }
+        }
+        return true;
+    }
+
     @Override
     public String createDocument(String docId, String mimeType, String displayName)
             throws FileNotFoundException {
@@ -310,24 +700,155 @@ public class ExternalStorageProvider extends DocumentsProviderCompat {
             throw new IllegalArgumentException("Parent document isn't a directory");
         }
 
-        final File file = buildUniqueFile(parent, mimeType, displayName);
-        if (Document.MIME_TYPE_DIR.equals(mimeType)) {
-            if (!file.mkdir()) {
-                throw new IllegalStateException("Failed to mkdir " + file);
+        File file;
+        int attempts = 0;
+        while (true) {
+            file = buildUniqueFile(parent, mimeType, displayName);
+
+            final boolean created;
+            if (Document.MIME_TYPE_DIR.equals(mimeType)) {
+                created = file.mkdir();
+            } else {
+                try {
+                    created = file.createNewFile();
+                } catch (IOException e) {
+                    throw new IllegalStateException("Failed to touch " + file + ": " + e);
+                }
             }
-        } else {
-            try {
-                if (!file.createNewFile()) {
+            if (created) {
+                break;
+            }
+
+            // Somebody else may have taken the name after the parent was listed
+            if (!file.exists() || ++attempts >= MAX_CREATE_ATTEMPTS) {
+                if (Document.MIME_TYPE_DIR.equals(mimeType)) {
+                    throw new IllegalStateException("Failed to mkdir " + file);
+                } else {
                     throw new IllegalStateException("Failed to touch " + file);
                 }
-            } catch (IOException e) {
-                throw new IllegalStateException("Failed to touch " + file + ": " + e);
             }
         }
 
+        invalidateFreeSpace(docId);
         return getDocIdForFile(file);
     }
 
+    @Override
+    public String copyDocument(String sourceDocumentId, String targetParentDocumentId,
+            String transferId) throws FileNotFoundException {
+        return transferDocument(sourceDocumentId, targetParentDocumentId, transferId, false);
+    }
+
+    @Override
+    public String moveDocument(String sourceDocumentId, String targetParentDocumentId,
+            String transferId) throws FileNotFoundException {
+        return transferDocument(sourceDocumentId, targetParentDocumentId, transferId, true);
+    }
+
+    /**
+     * Copy or move a document into a directory, keeping its name unless it is taken.
+     */
+    private String transferDocument(String sourceDocId, String targetParentDocId,
+            String transferId, boolean move) throws FileNotFoundException {
+        if (isVirtualDocId(sourceDocId) || isVirtualDocId(targetParentDocId)
+                || getArchiveSplit(sourceDocId) >= 0 || getArchiveSplit(targetParentDocId) >= 0) {
+            throw new UnsupportedOperationException("Only files and directories can be copied");
+        }
+        final File source = getFileForDocId(sourceDocId);
+        final File parent = getFileForDocId(targetParentDocId);
+        if (!parent.isDirectory()) {
+            throw new IllegalArgumentException("Target document isn't a directory");
+        }
+        if (sourceDocId.equals(targetParentDocId)
+                || isChildDocument(sourceDocId, targetParentDocId)) {
+            throw new IllegalArgumentException("Can't copy or move a directory into itself");
+        }
+
+        final FileTransfer transfer = new FileTransfer(transferId, mTransferCallback);
+        final String transferKey = transferId != null ? getTransferKey(transferId) : null;
+        if (transferKey != null) {
+            synchronized (mTransfers) {
+                if (mTransfers.containsKey(transferKey)) {
+                    throw new IllegalStateException("Transfer " + transferId + " is running");
+                }
+                mTransfers.put(transferKey, transfer);
+            }
+        }
+        try {
+            final File target = buildUniqueFile(parent, getTypeForFile(source), source.getName());
+            try {
+                if (move) {
+                    transfer.move(source, target);
+                } else {
+                    transfer.copy(source, target);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to " + (move ? "move " : "copy ")
+                        + source + " to " + target, e);
+            }
+            invalidateFreeSpace(targetParentDocId);
+            if (move) {
+                invalidateFreeSpace(sourceDocId);
+            }
+            return getDocIdForFile(target);
+        } finally {
+            if (transferKey != null) {
+                synchronized (mTransfers) {
+                    mTransfers.remove(transferKey);
+                }
+                mTransferCallback.onProgress(transfer);
+            }
+        }
+    }
+
+    @Override
+    public Cursor queryTransfer(String transferId, String[] projection) {
+        final FileTransfer transfer;
+        synchronized (mTransfers) {
+            transfer = mTransfers.get(getTransferKey(transferId));
+        }
+        final MatrixCursorCompat result = new MatrixCursorCompat(
+                projection != null ? projection : DEFAULT_TRANSFER_PROJECTION);
+        if (transfer != null) {
+            final long total = transfer.getTotalBytes();
+            final RowBuilder row = result.newRow();
+            row.add(Transfer.COLUMN_BYTES_TRANSFERRED, transfer.getBytesTransferred());
+            row.add(Transfer.COLUMN_TOTAL_BYTES, total >= 0 ? total : null);
+        }
+        result.setNotificationUri(getContext().getContentResolver(),
+                DocumentsContractCompat.buildTransferUri(getAuthority(), transferId));
+        return result;
+    }
+
+    @Override
+    public void cancelTransfer(String transferId) {
+        final FileTransfer transfer;
+        synchronized (mTransfers) {
+            transfer = mTransfers.get(getTransferKey(transferId));
+        }
+        if (transfer != null) {
+            transfer.cancel();
+        }
+    }
+
+    /**
+     * Key of a transfer of the calling app. Must be called on the binder thread of the call.
+     */
+    private static String getTransferKey(String transferId) {
+        return Binder.getCallingUid() + ":" + transferId;
+    }
+
+    private final FileTransfer.Callback mTransferCallback = new FileTransfer.Callback() {
+        @Override
+        public void onProgress(FileTransfer transfer) {
+            if (transfer.id != null) {
+                getContext().getContentResolver().notifyChange(
+                        DocumentsContractCompat.buildTransferUri(getAuthority(), transfer.id),
+                        null, false);
+            }
+        }
+    };
+
     private static File buildFile(File parent, String name, String ext) {
         if (TextUtils.isEmpty(ext)) {
             return new File(parent, name);
@@ -353,8 +874,7 @@ public class ExternalStorageProvider extends DocumentsProviderCompat {
             if (lastDot >= 0) {
                 name = displayName.substring(0, lastDot);
                 ext = displayName.substring(lastDot + 1);
-                mimeTypeFromExt = MimeTypeMap.getSingleton().getMimeTypeFromExtension(
-                        ext.toLowerCase());
+                mimeTypeFromExt = MimeTypeCache.getTypeForExtension(ext);
             } else {
                 name = displayName;
                 ext = null;
@@ -362,7 +882,7 @@ public class ExternalStorageProvider extends DocumentsProviderCompat {
             }
 
             if (mimeTypeFromExt == null) {
-                mimeTypeFromExt = "application/octet-stream";
+                mimeTypeFromExt = MimeTypeCache.MIME_TYPE_DEFAULT;
             }
 
             final String extFromMimeType = MimeTypeMap.getSingleton().getExtensionFromMimeType(
@@ -377,24 +897,94 @@ public class ExternalStorageProvider extends DocumentsProviderCompat {
             }
         }
 
-        File file = buildFile(parent, name, ext);
+        final String[] children = parent.list();
+        if (children == null) {
+            throw new FileNotFoundException("Failed to list " + parent);
+        }
 
-        // If conflicting file, try adding counter suffix
-        int n = 0;
-        while (file.exists()) {
-            if (n++ >= 32) {
-                throw new FileNotFoundException("Failed to create unique file");
+        // If conflicting file, add the lowest free counter suffix. Names are compared ignoring
+        // case since most external storage filesystems are case insensitive.
+        final String plainName = TextUtils.isEmpty(ext) ? name : name + "." + ext;
+        final String prefix = name + " (";
+        final String suffix = TextUtils.isEmpty(ext) ? ")" : ")." + ext;
+        final BitSet taken = new BitSet();
+        for (String child : children) {
+            if (child.equalsIgnoreCase(plainName)) {
+                taken.set(0);
+            } else if (child.length() > prefix.length() + suffix.length()
+                    && child.regionMatches(true, 0, prefix, 0, prefix.length())
+                    && child.regionMatches(true, child.length() - suffix.length(),
+                            suffix, 0, suffix.length())) {
+                final int n = parseCounter(
+                        child, prefix.length(), child.length() - suffix.length());
+                // The lowest free counter is at most children.length, so larger ones don't
+                // matter and would only grow the bit set
+                if (n > 0 && n <= children.length) {
+                    taken.set(n);
+                }
             }
-            file = buildFile(parent, name + " (" + n + ")", ext);
         }
 
-        return file;
+        final int n = taken.nextClearBit(0);
+        if (n == 0) {
+            return buildFile(parent, name, ext);
+        } else {
+            return buildFile(parent, name + " (" + n + ")", ext);
+        }
+    }
+
+    /**
+     * Parse the counter of a name generated by {@link #buildUniqueFile}.
+     *
+     * @return counter or -1 if the characters between {@code start} and {@code end} aren't a
+     *         counter that {@link #buildUniqueFile} would generate
+     */
+    private static int parseCounter(String s, int start, int end) {
+        if (end - start > 9 || s.charAt(start) == '0') {
+            return -1;
+        }
+        int n = 0;
+        for (int i = start; i < end; i++) {
+            final char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            n = n * 10 + (c - '0');
+        }
+        return n;
     }
 
     @Override
     public Cursor queryDocument(String documentId, String[] projection)
             throws FileNotFoundException {
         final MatrixCursorCompat result = new MatrixCursorCompat(resolveDocumentProjection(projection));
+        if (isTopFilesDocId(documentId)) {
+            final boolean recent = DOC_ID_RECENT.equals(documentId);
+            final RowBuilder row = result.newRow();
+            row.add(Document.COLUMN_DOCUMENT_ID, documentId);
+            // TODO: CXL
+            row.add(Document.COLUMN_DISPLAY_NAME, recent ? "Recent" : "Largest files");
+            row.add(Document.COLUMN_MIME_TYPE, Document.MIME_TYPE_DIR);
+            row.add(Document.COLUMN_FLAGS, recent
+                    ? Document.FLAG_DIR_PREFERS_LAST_MODIFIED : Document.FLAG_DIR_PREFERS_SIZE);
+            return result;
+        } else if (DOC_ID_DUPLICATES.equals(documentId)) {
+            final RowBuilder row = result.newRow();
+            row.add(Document.COLUMN_DOCUMENT_ID, documentId);
+            // TODO: CXL
+            row.add(Document.COLUMN_DISPLAY_NAME, "Duplicates");
+            row.add(Document.COLUMN_MIME_TYPE, Document.MIME_TYPE_DIR);
+            // Copies have the same size, so this keeps them together
+            row.add(Document.COLUMN_FLAGS, Document.FLAG_DIR_PREFERS_SIZE);
+            return result;
+        }
+        final int archiveSplit = getArchiveSplit(documentId);
+        if (archiveSplit >= 0) {
+            final File archive = getFileForDocId(documentId.substring(0, archiveSplit));
+            includeArchiveEntry(result, documentId,
+                    getArchiveEntry(archive, documentId.substring(archiveSplit + 1)));
+            return result;
+        }
         includeFile(result, documentId, null);
         return result;
     }
@@ -403,41 +993,629 @@ public class ExternalStorageProvider extends DocumentsProviderCompat {
     public Cursor queryChildDocuments(
             String parentDocumentId, String[] projection, String sortOrder)
             throws FileNotFoundException {
+        if (isTopFilesDocId(parentDocumentId)) {
+            return queryTopFiles(parentDocumentId, projection);
+        } else if (DOC_ID_DUPLICATES.equals(parentDocumentId)) {
+            return queryDuplicates(projection);
+        }
+
+        final int archiveSplit = getArchiveSplit(parentDocumentId);
+        if (archiveSplit >= 0) {
+            return queryArchiveChildren(parentDocumentId,
+                    getFileForDocId(parentDocumentId.substring(0, archiveSplit)),
+                    parentDocumentId.substring(archiveSplit + 1), projection);
+        }
+
         final File parent = getFileForDocId(parentDocumentId);
-        final MatrixCursorCompat result = new DirectoryCursor(
-                resolveDocumentProjection(projection), parentDocumentId, parent);
-        for (File file : parent.listFiles()) {
-            includeFile(result, null, file);
+        if (isArchive(parent)) {
+            return queryArchiveChildren(parentDocumentId, parent, "", projection);
+        }
+        final Uri notifyUri = DocumentsContractCompat.buildChildDocumentsUri(
+                getAuthority(), parentDocumentId);
+
+        // While the directory is watched, its listing is kept up to date by the observer
+        final DirectoryObserver observer = startObserving(parent, parentDocumentId, notifyUri);
+        try {
+            final Bundle extras = new Bundle();
+            final DirectoryListing listing = observer.mModel.snapshot(extras);
+            // Stat here rather than while the client reads the rows. Sorting by name needs the
+            // type of every row, since directories go first, and only a stat can tell.
+            listing.materializeAll();
+            return new DirectoryCursor(
+                    resolveDocumentProjection(projection), listing, extras, notifyUri);
+        } catch (RuntimeException e) {
+            stopObserving(parent);
+            throw e;
+        }
+    }
+
+    private static boolean isTopFilesDocId(String docId) {
+        return DOC_ID_RECENT.equals(docId) || DOC_ID_LARGEST.equals(docId);
+    }
+
+    private static boolean isVirtualDocId(String docId) {
+        return isTopFilesDocId(docId) || DOC_ID_DUPLICATES.equals(docId);
+    }
+
+    private static int getRanking(String docId) {
+        return DOC_ID_RECENT.equals(docId) ? RANKING_RECENT : RANKING_LARGEST;
+    }
+
+    /**
+     * List the most recently modified or largest files of all volumes. Volumes are walked in
+     * the background while the cursor is open, and the cursor is updated as better files are
+     * found.
+     */
+    private Cursor queryTopFiles(String docId, String[] projection) {
+        final int ranking = getRanking(docId);
+        final ArrayList<TopFiles> lists = Lists.newArrayList();
+        final ArrayList<TopFiles.Entry> entries = Lists.newArrayList();
+        boolean loading = false;
+        for (RootInfo root : mRoots.roots) {
+            final TopFiles files = root.topFiles;
+            files.acquire();
+            lists.add(files);
+            loading |= files.isScanning();
+            entries.addAll(files.getEntries(ranking));
+        }
+        Collections.sort(entries, new Comparator<TopFiles.Entry>() {
+            @Override
+            public int compare(TopFiles.Entry lhs, TopFiles.Entry rhs) {
+                return lhs.key < rhs.key ? 1 : (lhs.key > rhs.key ? -1 : 0);
+            }
+        });
+
+        final VirtualDirectoryCursor cursor = new VirtualDirectoryCursor(
+                resolveDocumentProjection(projection), Math.min(entries.size(), MAX_TOP_FILES),
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        for (TopFiles files : lists) {
+                            files.release();
+                        }
+                    }
+                });
+        int count = 0;
+        for (TopFiles.Entry entry : entries) {
+            if (count == MAX_TOP_FILES) {
+                break;
+            }
+            final File parent = entry.file.getParentFile();
+            if (!entry.file.exists()) {
+                final RootInfo root = mRoots.idToRoot.get(
+                        entry.docId.substring(0, entry.docId.indexOf('\0', 1)));
+                if (root != null) {
+                    root.topFiles.remove(entry.docId);
+                }
+                continue;
+            }
+            includeEntry(cursor, entry.docId, entry.file.getName(),
+                    DirectoryEntry.stat(parent, entry.file.getName(), parent.canWrite()));
+            count++;
+        }
+        cursor.mExtras.putBoolean(DocumentsContractCompat.EXTRA_LOADING, loading);
+        cursor.setNotificationUri(getContext().getContentResolver(),
+                DocumentsContractCompat.buildChildDocumentsUri(getAuthority(), docId));
+        return cursor;
+    }
+
+    /**
+     * List the files that have copies, largest first. The volumes are searched in the
+     * background while the cursor is open, and the cursor is updated as copies are confirmed.
+     */
+    private Cursor queryDuplicates(String[] projection) {
+        final ArrayList<DuplicateFinder.Volume> volumes = Lists.newArrayList();
+        for (RootInfo root : mRoots.roots) {
+            volumes.add(new DuplicateFinder.Volume(root.path, root.docId));
+        }
+        mDuplicates.acquire(volumes);
+        final List<List<DuplicateFinder.Duplicate>> groups = mDuplicates.getGroups();
+
+        final VirtualDirectoryCursor cursor = new VirtualDirectoryCursor(
+                resolveDocumentProjection(projection),
+                Math.min(groups.size() * 2, MAX_DUPLICATE_ROWS), new Runnable() {
+                    @Override
+                    public void run() {
+                        mDuplicates.release();
+                    }
+                });
+        final ArrayList<DirectoryEntry> entries = Lists.newArrayList();
+        int count = 0;
+        for (List<DuplicateFinder.Duplicate> group : groups) {
+            if (count >= MAX_DUPLICATE_ROWS) {
+                break;
+            }
+            // Skip the files that were deleted or changed since they were hashed
+            entries.clear();
+            for (DuplicateFinder.Duplicate duplicate : group) {
+                final File parent = duplicate.file.getParentFile();
+                final DirectoryEntry entry = DirectoryEntry.stat(
+                        parent, duplicate.file.getName(), parent.canWrite());
+                entries.add(entry.size == duplicate.size
+                        && entry.lastModified == duplicate.mtime ? entry : null);
+            }
+            if (entries.size() - Collections.frequency(entries, null) < 2) {
+                continue;
+            }
+            for (int i = 0; i < group.size(); i++) {
+                final DirectoryEntry entry = entries.get(i);
+                if (entry != null) {
+                    final DuplicateFinder.Duplicate duplicate = group.get(i);
+                    includeEntry(cursor, duplicate.docId, duplicate.file.getName(), entry);
+                    count++;
+                }
+            }
+        }
+        cursor.mExtras.putBoolean(DocumentsContractCompat.EXTRA_LOADING,
+                mDuplicates.isSearching());
+        cursor.setNotificationUri(getContext().getContentResolver(),
+                DocumentsContractCompat.buildChildDocumentsUri(getAuthority(), DOC_ID_DUPLICATES));
+        return cursor;
+    }
+
+    /**
+     * Documents inside zip archives have the document ID of the archive, a second separator and
+     * the path of the entry.
+     *
+     * @return index of the separator before the entry path or -1 if the document isn't inside
+     *         an archive
+     */
+    private static int getArchiveSplit(String docId) {
+        final int split = docId.indexOf('\0', 1);
+        return split < 0 ? -1 : docId.indexOf('\0', split + 1);
+    }
+
+    private static boolean isArchive(File file) {
+        return DirectoryEntry.ZIP_MIME_TYPE.equals(MimeTypeCache.getTypeForName(file.getName()))
+                && file.isFile();
+    }
+
+    /**
+     * Get the index of an archive, reading its central directory if the archive isn't cached or
+     * changed since it was read.
+     */
+    private ZipIndex getZipIndex(File archive) throws FileNotFoundException {
+        final DirectoryEntry stat = DirectoryEntry.stat(
+                archive.getParentFile(), archive.getName(), false);
+        final String path = archive.getPath();
+        ZipIndex index = mZipIndexes.get(path);
+        if (index == null || index.fileSize != stat.size
+                || index.fileLastModified != stat.lastModified) {
+            try {
+                index = ZipIndex.read(archive, stat.size, stat.lastModified);
+            } catch (IOException e) {
+                throw new FileNotFoundException("Failed to read archive " + archive + ": " + e);
+            }
+            mZipIndexes.put(path, index);
+        }
+        return index;
+    }
+
+    private ZipIndex.Entry getArchiveEntry(File archive, String path)
+            throws FileNotFoundException {
+        final ZipIndex.Entry entry = getZipIndex(archive).getEntry(path);
+        if (entry == null) {
+            throw new FileNotFoundException("Missing entry " + path + " in " + archive);
+        }
+        return entry;
+    }
+
+    /**
+     * List a directory inside an archive. Only the archive's central directory is read.
+     *
+     * @param path path of the directory inside the archive or an empty string for its root
+     */
+    private Cursor queryArchiveChildren(String parentDocId, File archive, String path,
+            String[] projection) throws FileNotFoundException {
+        final List<ZipIndex.Entry> children = getZipIndex(archive).getChildren(path);
+        if (children == null) {
+            throw new FileNotFoundException("Missing directory " + path + " in " + archive);
+        }
+        // Entries are named relative to the archive, not to the parent directory
+        final String archiveDocId = path.isEmpty()
+                ? parentDocId : parentDocId.substring(0, getArchiveSplit(parentDocId));
+        final MatrixCursorCompat result = new MatrixCursorCompat(
+                resolveDocumentProjection(projection), children.size());
+        for (ZipIndex.Entry entry : children) {
+            includeArchiveEntry(result, archiveDocId + '\0' + entry.path, entry);
         }
         return result;
     }
 
+    private static void includeArchiveEntry(MatrixCursorCompat result, String docId,
+            ZipIndex.Entry entry) {
+        final String name = entry.getName();
+        final RowBuilder row = result.newRow();
+        row.add(Document.COLUMN_DOCUMENT_ID, docId);
+        row.add(Document.COLUMN_DISPLAY_NAME, name);
+        row.add(Document.COLUMN_SIZE, entry.isDirectory ? null : entry.size);
+        row.add(Document.COLUMN_MIME_TYPE, getTypeForArchiveEntry(entry));
+        // Read-only, and nested archives can't be browsed
+        row.add(Document.COLUMN_FLAGS, 0);
+        if (entry.lastModified != -1) {
+            row.add(Document.COLUMN_LAST_MODIFIED, entry.lastModified);
+        }
+    }
+
+    private static String getTypeForArchiveEntry(ZipIndex.Entry entry) {
+        return entry.isDirectory
+                ? Document.MIME_TYPE_DIR : MimeTypeCache.getTypeForName(entry.getName());
+    }
+
+    /**
+     * Stream an entry of an archive through a pipe, decompressing it if needed.
+     */
+    private ParcelFileDescriptor openArchiveEntry(final File archive, final ZipIndex index,
+            final ZipIndex.Entry entry) throws FileNotFoundException {
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Failed to create pipe: " + e);
+        }
+        sPipeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                InputStream in = null;
+                OutputStream out = null;
+                try {
+                    in = index.openStream(archive, entry);
+                    out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+                    final byte[] buffer = new byte[64 * 1024];
+                    int n;
+                    while ((n = in.read(buffer)) >= 0) {
+                        out.write(buffer, 0, n);
+                    }
+                } catch (IOException e) {
+                    // Also happens when the reader closes its end early
+                    Log.w(TAG, "Failed to copy " + entry.path + " from " + archive + ": " + e);
+                } finally {
+                    IOUtils.closeQuietly(in);
+                    if (out != null) {
+                        IOUtils.closeQuietly(out);
+                    } else {
+                        IOUtils.closeQuietly(pipe[1]);
+                    }
+                }
+            }
+        });
+        return pipe[0];
+    }
+
+    private final DirectorySizes.Callback mSizesCallback = new DirectorySizes.Callback() {
+        @Override
+        public void onSizeChanged(File dir) {
+            final DirectoryObserver observer;
+            synchronized (mObservers) {
+                observer = mObservers.get(dir.getParentFile());
+            }
+            // Listings are always observed, so there is nobody to tell otherwise
+            if (observer != null) {
+                observer.onChildSizeChanged(dir.getName());
+            }
+        }
+    };
+
+    private final TopFiles.Callback mTopFilesCallback = new TopFiles.Callback() {
+        @Override
+        public void onTopFilesChanged(TopFiles files, int ranking) {
+            final String docId = ranking == RANKING_RECENT ? DOC_ID_RECENT : DOC_ID_LARGEST;
+            getContext().getContentResolver().notifyChange(
+                    DocumentsContractCompat.buildChildDocumentsUri(getAuthority(), docId),
+                    null, false);
+        }
+    };
+
+    private final DuplicateFinder.Callback mDuplicatesCallback = new DuplicateFinder.Callback() {
+        @Override
+        public void onDuplicatesChanged() {
+            getContext().getContentResolver().notifyChange(
+                    DocumentsContractCompat.buildChildDocumentsUri(
+                            getAuthority(), DOC_ID_DUPLICATES), null, false);
+        }
+    };
+
     @Override
     public Cursor querySearchDocuments(String rootId, String query, String[] projection)
             throws FileNotFoundException {
-        final MatrixCursorCompat result = new MatrixCursorCompat(resolveDocumentProjection(projection));
+        return querySearchDocuments(rootId, query, projection, new Bundle(), null);
+    }
 
-        final File parent;
-        synchronized (mRootsLock) {
-            parent = mIdToPath.get(rootId);
+    @Override
+    public Cursor querySearchDocuments(String rootId, String query, String[] projection,
+            Bundle queryArgs, CancellationSignal signal) throws FileNotFoundException {
+        final int limit = (int) Math.min(Integer.MAX_VALUE, getLongArg(queryArgs,
+                DocumentsContractCompat.QUERY_ARG_LIMIT, DEFAULT_SEARCH_LIMIT));
+        final boolean ranked = Boolean.parseBoolean(
+                queryArgs.getString(DocumentsContractCompat.QUERY_ARG_RANKED));
+        final boolean content = Boolean.parseBoolean(
+                queryArgs.getString(DocumentsContractCompat.QUERY_ARG_CONTENT));
+        if (ranked && content) {
+            throw new IllegalArgumentException("Content searches can't be ranked");
+        }
+
+        final RootInfo root = mRoots.idToRoot.get(rootId);
+        if (root == null) {
+            throw new FileNotFoundException("No root for " + rootId);
+        }
+        // The index can only find substrings of names
+        if (!ranked && !content && root.index.getState() == FilenameIndex.STATE_READY) {
+            root.index.revalidate();
+            return queryIndex(root, query, projection, limit, signal);
+        }
+        root.index.build();
+
+        final String token = queryArgs.getString(DocumentsContractCompat.QUERY_ARG_SESSION);
+        final SearchSession session;
+        if (content) {
+            session = acquireSearchSession(root, query, token, 0, new ContentScanner(query,
+                    getLongArg(queryArgs, DocumentsContractCompat.QUERY_ARG_MAX_FILE_SIZE,
+                            DEFAULT_CONTENT_MAX_FILE_SIZE),
+                    getLongArg(queryArgs, DocumentsContractCompat.QUERY_ARG_MAX_TOTAL_BYTES,
+                            DEFAULT_CONTENT_MAX_TOTAL_BYTES)));
+        } else {
+            session = acquireSearchSession(root, query, token,
+                    ranked ? Math.min(limit, MAX_RANKED_LIMIT) : 0, null);
         }
+        try {
+            if (signal != null) {
+                // Stop walking as soon as the caller gives up rather than when it closes the
+                // cursor. A later query of the same session resumes it. Searches without a token
+                // are shared by everyone asking for the same query, so only pause those if no
+                // other cursor is reading them.
+                signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                    @Override
+                    public void onCancel() {
+                        synchronized (mSearchSessions) {
+                            if (session.token != null || session.mRefCount == 1) {
+                                session.pause();
+                            }
+                        }
+                    }
+                });
+                signal.throwIfCanceled();
+            }
+            session.requestLimit(limit);
 
-        final LinkedList<File> pending = new LinkedList<>();
-        pending.add(parent);
-        while (!pending.isEmpty() && result.getCount() < 24) {
-            final File file = pending.removeFirst();
-            if (file.isDirectory()) {
-                Collections.addAll(pending, file.listFiles());
+            final SearchSession.Snapshot snapshot = session.snapshot();
+            final SearchCursor cursor = new SearchCursor(
+                    resolveDocumentProjection(projection), snapshot.results.size(), session);
+            for (SearchSession.Result result : snapshot.results) {
+                includeEntry(cursor, result.docId, result.name, result.entry);
             }
-            if (file.getName().toLowerCase().contains(query)) {
-                includeFile(result, null, file);
+            cursor.mExtras.putBoolean(DocumentsContractCompat.EXTRA_LOADING, snapshot.loading);
+            cursor.mExtras.putBoolean(DocumentsContractCompat.EXTRA_HAS_MORE, snapshot.hasMore);
+            root.index.putStatus(cursor.mExtras);
+            session.putStatus(cursor.mExtras);
+            cursor.setNotificationUri(getContext().getContentResolver(),
+                    DocumentsContractCompat.buildSearchDocumentsUri(getAuthority(), rootId, query));
+            return cursor;
+        } catch (RuntimeException e) {
+            releaseSearchSession(session);
+            throw e;
+        } finally {
+            if (signal != null) {
+                signal.setOnCancelListener(null);
             }
         }
-        return result;
+    }
+
+    /**
+     * @return the positive number in {@code args} under {@code key} or {@code defaultValue}
+     */
+    private static long getLongArg(Bundle args, String key, long defaultValue) {
+        final String value = args.getString(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(1, Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + key + ": " + value);
+        }
+    }
+
+    /**
+     * Answer a search from the filename index of a root. The matches are stat'ed here, which
+     * also drops files that were deleted since they were indexed.
+     */
+    private Cursor queryIndex(RootInfo root, String query, String[] projection, int limit,
+            CancellationSignal signal) {
+        // Ask for one more to know whether there are more
+        final List<FilenameIndex.Match> matches = root.index.query(query, limit + 1, signal);
+
+        final SearchCursor cursor = new SearchCursor(
+                resolveDocumentProjection(projection), Math.min(matches.size(), limit), null);
+        for (int i = 0; i < matches.size() && i < limit; i++) {
+            final FilenameIndex.Match match = matches.get(i);
+            final File file = new File(root.path, match.path);
+            final File parent = file.getParentFile();
+            if (!file.exists()) {
+                root.index.markDirty(match.path.substring(0,
+                        Math.max(0, match.path.lastIndexOf('/'))));
+                continue;
+            }
+            includeEntry(cursor, root.docId + match.path, match.name,
+                    DirectoryEntry.stat(parent, match.name, parent.canWrite()));
+        }
+        cursor.mExtras.putBoolean(DocumentsContractCompat.EXTRA_HAS_MORE, matches.size() > limit);
+        root.index.putStatus(cursor.mExtras);
+        cursor.setNotificationUri(getContext().getContentResolver(),
+                DocumentsContractCompat.buildSearchDocumentsUri(
+                        getAuthority(), root.rootId, query));
+        return cursor;
+    }
+
+    /**
+     * Get the running search for {@code query} under a root or start a new one. Searches are
+     * shared by all cursors for the same query and cancelled when the last one is closed.
+     * <p>
+     * With a session token, each client has its own search per root instead. A query that
+     * narrows down the client's previous one filters its results and carries on where it
+     * stopped; any other query replaces it. The search is paused rather than cancelled when its
+     * last cursor is closed, since the client's next query will usually need it.
+     * <p>
+     * Ranked searches keep a fixed number of results, so asking for more starts a new search.
+     * Content searches with different budgets don't share work either.
+     *
+     * @param rankedLimit number of results for a ranked search or 0 for a substring search
+     * @param scanner scanner for a content search or null to search names
+     */
+    private SearchSession acquireSearchSession(RootInfo root, String query, String token,
+            int rankedLimit, ContentScanner scanner) {
+        final String rootId = root.rootId;
+        final String mode;
+        if (scanner != null) {
+            mode = "content:" + scanner.maxFileSize + ":" + scanner.maxTotalBytes;
+        } else if (rankedLimit > 0) {
+            mode = "ranked:" + rankedLimit;
+        } else {
+            mode = "name";
+        }
+        final String key = token != null
+                ? rootId + "\0\0" + token
+                : rootId + '\0' + mode + '\0' + query;
+        SearchSession superseded = null;
+        try {
+            synchronized (mSearchSessions) {
+                SearchSession session = mSearchSessions.get(key);
+                if (session != null && token != null && (!session.mode.equals(mode)
+                        || !query.equals(session.getQuery()) && !session.refine(query))) {
+                    superseded = session;
+                    mIdleSearches.remove(key);
+                    session = null;
+                }
+                if (session == null) {
+                    session = new SearchSession(rootId, key, token, mode, root.path,
+                            root.docId, root.path.getPath(), query, rankedLimit, scanner,
+                            mSearchCallback);
+                    mSearchSessions.put(key, session);
+                }
+                if (session.mRefCount == 0) {
+                    mIdleSearches.remove(key);
+                }
+                session.mRefCount++;
+                return session;
+            }
+        } finally {
+            if (superseded != null) {
+                superseded.cancel();
+            }
+        }
+    }
+
+    private void releaseSearchSession(SearchSession session) {
+        final SearchSession evicted;
+        synchronized (mSearchSessions) {
+            session.mRefCount--;
+            if (session.mRefCount > 0) return;
+
+            if (mSearchSessions.get(session.key) != session) {
+                // Superseded and already cancelled
+                return;
+            } else if (session.token == null) {
+                mSearchSessions.remove(session.key);
+                evicted = session;
+            } else {
+                session.pause();
+                mIdleSearches.put(session.key, session);
+                if (mIdleSearches.size() <= MAX_IDLE_SEARCHES) return;
+
+                evicted = mIdleSearches.values().iterator().next();
+                mIdleSearches.remove(evicted.key);
+                mSearchSessions.remove(evicted.key);
+            }
+        }
+        evicted.cancel();
+    }
+
+    private final SearchSession.Callback mSearchCallback = new SearchSession.Callback() {
+        @Override
+        public void onSearchChanged(SearchSession session) {
+            getContext().getContentResolver().notifyChange(
+                    DocumentsContractCompat.buildSearchDocumentsUri(
+                            getAuthority(), session.rootId, session.getQuery()), null, false);
+        }
+    };
+
+    /**
+     * Files of the recent, largest or duplicates root. Volumes are only walked for these while
+     * there are open cursors.
+     */
+    private static class VirtualDirectoryCursor extends MatrixCursorCompat {
+        private final Bundle mExtras = new Bundle();
+        private final Runnable mRelease;
+        private boolean mReleased;
+
+        /**
+         * @param release stops the walks that the cursor was waiting for
+         */
+        public VirtualDirectoryCursor(String[] columnNames, int initialCapacity,
+                Runnable release) {
+            super(columnNames, initialCapacity);
+            mRelease = release;
+        }
+
+        @Override
+        public Bundle getExtras() {
+            return mExtras;
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            synchronized (this) {
+                if (mReleased) return;
+                mReleased = true;
+            }
+            mRelease.run();
+        }
+    }
+
+    /**
+     * Search results. If they were found by a {@link SearchSession}, the session is kept alive
+     * until the cursor is closed.
+     */
+    private class SearchCursor extends MatrixCursorCompat {
+        private final Bundle mExtras = new Bundle();
+        private final SearchSession mSession;
+        private boolean mReleased;
+
+        /**
+         * @param session search that found the results or null if they came from the index
+         */
+        public SearchCursor(String[] columnNames, int initialCapacity, SearchSession session) {
+            super(columnNames, initialCapacity);
+            mSession = session;
+        }
+
+        @Override
+        public Bundle getExtras() {
+            return mExtras;
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            synchronized (this) {
+                if (mReleased || mSession == null) return;
+                mReleased = true;
+            }
+            releaseSearchSession(mSession);
+        }
     }
 
     @Override
     public String getDocumentType(String documentId) throws FileNotFoundException {
+        if (isVirtualDocId(documentId)) {
+            return Document.MIME_TYPE_DIR;
+        }
+        final int archiveSplit = getArchiveSplit(documentId);
+        if (archiveSplit >= 0) {
+            final File archive = getFileForDocId(documentId.substring(0, archiveSplit));
+            return getTypeForArchiveEntry(
+                    getArchiveEntry(archive, documentId.substring(archiveSplit + 1)));
+        }
         final File file = getFileForDocId(documentId);
         return getTypeForFile(file);
     }
@@ -446,11 +1624,27 @@ public class ExternalStorageProvider extends DocumentsProviderCompat {
     public ParcelFileDescriptor openDocument(
             String documentId, String mode, CancellationSignal signal)
             throws FileNotFoundException {
+        final int archiveSplit = getArchiveSplit(documentId);
+        if (archiveSplit >= 0) {
+            if (ParcelFileDescriptorCompat.parseMode(mode)
+                    != ParcelFileDescriptor.MODE_READ_ONLY) {
+                throw new UnsupportedOperationException("Archive entries are read-only");
+            }
+            final File archive = getFileForDocId(documentId.substring(0, archiveSplit));
+            final ZipIndex index = getZipIndex(archive);
+            final ZipIndex.Entry entry = index.getEntry(documentId.substring(archiveSplit + 1));
+            if (entry == null || entry.isDirectory) {
+                throw new FileNotFoundException("Missing file for " + documentId);
+            }
+            return openArchiveEntry(archive, index, entry);
+        }
+
         final File file = getFileForDocId(documentId);
         final int pfdMode = ParcelFileDescriptorCompat.parseMode(mode);
         if (pfdMode == ParcelFileDescriptor.MODE_READ_ONLY) {
             return ParcelFileDescriptor.open(file, pfdMode);
         } else {
+            invalidateFreeSpace(documentId);
             try {
                 return ParcelFileDescriptor.open(file, pfdMode);
             } catch (IOException e) {
@@ -459,6 +1653,41 @@ public class ExternalStorageProvider extends DocumentsProviderCompat {
         }
     }
 
+    /**
+     * Entries of archives that are stored without compression are returned as a range of the
+     * archive, so they can be read without copying.
+     */
+    @Override
+    public AssetFileDescriptor openTypedDocument(String documentId, String mimeTypeFilter,
+            Bundle opts, CancellationSignal signal) throws FileNotFoundException {
+        final int archiveSplit = getArchiveSplit(documentId);
+        if (archiveSplit < 0) {
+            return null;
+        }
+        final File archive = getFileForDocId(documentId.substring(0, archiveSplit));
+        final ZipIndex index = getZipIndex(archive);
+        final ZipIndex.Entry entry = index.getEntry(documentId.substring(archiveSplit + 1));
+        if (entry == null || entry.isDirectory || entry.encrypted
+                || entry.method != ZipIndex.METHOD_STORED
+                || !MimePredicate.mimeMatches(mimeTypeFilter, getTypeForArchiveEntry(entry))) {
+            return null;
+        }
+
+        final long offset;
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(archive);
+            offset = index.getDataOffset(in.getChannel(), entry);
+        } catch (IOException e) {
+            throw new FileNotFoundException("Failed to open " + documentId + ": " + e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return new AssetFileDescriptor(
+                ParcelFileDescriptor.open(archive, ParcelFileDescriptor.MODE_READ_ONLY),
+                offset, entry.size);
+    }
+
     @Override
     public AssetFileDescriptor openDocumentThumbnail(
             String documentId, Point sizeHint, CancellationSignal signal)
@@ -467,39 +1696,77 @@ public class ExternalStorageProvider extends DocumentsProviderCompat {
         return DocumentsContractCompat.openImageThumbnail(file);
     }
 
+    /**
+     * Hash a file in-process. Digests are cached by path, size and mtime, so checking a file
+     * that was already checked doesn't read it again. That is best-effort: mtimes only have a
+     * resolution of seconds (two on FAT), so a file rewritten in place with the same size, or
+     * one whose mtime was restored, keeps its old digest unless the caller bypasses the cache.
+     * Calls aren't serialized, so several files can be hashed in parallel from different
+     * threads.
+     */
+    @Override
+    public String getDocumentChecksum(String documentId, String algorithm, boolean bypassCache)
+            throws FileNotFoundException {
+        final File file = getFileForDocId(documentId);
+        final DirectoryEntry entry = DirectoryEntry.stat(file.getParentFile(), file.getName(),
+                false);
+        if (entry.isDirectory()) {
+            throw new IllegalArgumentException("Can't hash directory " + documentId);
+        }
+        try {
+            return mFileHashes.getDigest(file, entry.size, entry.lastModified, algorithm,
+                    bypassCache);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to hash " + documentId, e);
+        }
+    }
+
     private static String getTypeForFile(File file) {
         if (file.isDirectory()) {
             return Document.MIME_TYPE_DIR;
         } else {
-            return getTypeForName(file.getName());
+            return MimeTypeCache.getTypeForName(file.getName());
         }
     }
 
-    private static String getTypeForName(String name) {
-        final int lastDot = name.lastIndexOf('.');
-        if (lastDot >= 0) {
-            final String extension = name.substring(lastDot + 1).toLowerCase();
-            final String mime = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
-            if (mime != null) {
-                return mime;
-            }
-        }
-
-        return "application/octet-stream";
-    }
-
-    private void startObserving(File file, Uri notifyUri) {
+    private DirectoryObserver startObserving(File file, String docId, Uri notifyUri) {
         synchronized (mObservers) {
             DirectoryObserver observer = mObservers.get(file);
-            if (observer == null) {
-                observer = new DirectoryObserver(
-                        file, getContext().getContentResolver(), notifyUri);
+            if (observer != null && observer.mRefCount == 0) {
+                // Still lingering, so the listing is up to date
+                mIdleObservers.remove(file);
+            } else if (observer == null) {
+                DirectoryModel model = mListingCache.take(file);
+                final boolean cached = model != null;
+                if (!cached) {
+                    model = new DirectoryModel(docId, file);
+                }
+
+                observer = new DirectoryObserver(file, model, getContext().getContentResolver(),
+                        notifyUri, mNotifyHandler);
+                observer.mSizes = mDirectorySizes;
+                final int split = docId.indexOf('\0', 1);
+                final RootInfo root = mRoots.idToRoot.get(docId.substring(0, split));
+                if (root != null) {
+                    observer.mIndex = root.index;
+                    observer.mIndexPath = docId.substring(split + 1);
+                    observer.mTopFiles = root.topFiles;
+                    observer.mDocId = docId;
+                }
                 observer.startWatching();
                 mObservers.put(file, observer);
+
+                if (cached) {
+                    mListingCache.revalidate(model);
+                }
             }
             observer.mRefCount++;
 
             if (LOG_INOTIFY) Log.d(TAG, "after start: " + observer);
+
+            return observer;
         }
     }
 
@@ -510,57 +1777,295 @@ public class ExternalStorageProvider extends DocumentsProviderCompat {
 
             observer.mRefCount--;
             if (observer.mRefCount == 0) {
-                mObservers.remove(file);
-                observer.stopWatching();
+                observer.mIdleSince = SystemClock.uptimeMillis();
+                mIdleObservers.put(file, observer);
+                if (mIdleObservers.size() > MAX_IDLE_OBSERVERS) {
+                    retireObserverLocked(mIdleObservers.values().iterator().next());
+                }
+                if (mIdleObservers.size() == 1) {
+                    mNotifyHandler.removeCallbacks(mRetireIdleObservers);
+                    mNotifyHandler.postDelayed(mRetireIdleObservers, OBSERVER_LINGER_MILLIS);
+                }
             }
 
             if (LOG_INOTIFY) Log.d(TAG, "after stop: " + observer);
         }
     }
 
+    /**
+     * Stop watching a lingering directory and move its listing to {@link #mListingCache}.
+     */
+    @GuardedBy("mObservers")
+    private void retireObserverLocked(DirectoryObserver observer) {
+        mIdleObservers.remove(observer.mFile);
+        mObservers.remove(observer.mFile);
+        observer.stopWatching();
+        mListingCache.release(observer.mFile, observer.mModel);
+
+        if (LOG_INOTIFY) Log.d(TAG, "after retire: " + observer);
+    }
+
+    private final Runnable mRetireIdleObservers = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mObservers) {
+                final long now = SystemClock.uptimeMillis();
+                while (!mIdleObservers.isEmpty()) {
+                    final DirectoryObserver observer = mIdleObservers.values().iterator().next();
+                    if (now - observer.mIdleSince < OBSERVER_LINGER_MILLIS) {
+                        // The rest are newer
+                        mNotifyHandler.removeCallbacks(this);
+                        mNotifyHandler.postAtTime(this,
+                                observer.mIdleSince + OBSERVER_LINGER_MILLIS);
+                        return;
+                    }
+                    retireObserverLocked(observer);
+                }
+            }
+        }
+    };
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Notify coalescing: quiet=" + sNotifyQuietMillis + "ms, maxLatency="
+                + sNotifyMaxLatencyMillis + "ms");
+        synchronized (mObservers) {
+            writer.println("Listing cache: " + mListingCache.dumpStats());
+            writer.println("Directory sizes: " + mDirectorySizes);
+            writer.println("Duplicates: " + mDuplicates);
+            writer.println("Observers (" + mObservers.size() + ", "
+                    + mIdleObservers.size() + " lingering):");
+            for (DirectoryObserver observer : mObservers.values()) {
+                writer.println("  " + observer);
+            }
+        }
+        for (RootInfo root : mRoots.roots) {
+            writer.println("Index: " + root.index);
+            writer.println("Top files: " + root.topFiles);
+        }
+        synchronized (mSearchSessions) {
+            writer.println("Searches (" + mSearchSessions.size() + ", "
+                    + mIdleSearches.size() + " idle):");
+            for (SearchSession session : mSearchSessions.values()) {
+                writer.println("  " + session + ", ref=" + session.mRefCount);
+            }
+        }
+        synchronized (mTransfers) {
+            writer.println("Transfers (" + mTransfers.size() + "):");
+            for (FileTransfer transfer : mTransfers.values()) {
+                writer.println("  " + transfer);
+            }
+        }
+    }
+
     private static class DirectoryObserver extends FileObserver {
-        private static final int NOTIFY_EVENTS = ATTRIB | CLOSE_WRITE | MOVED_FROM | MOVED_TO
-                | CREATE | DELETE | DELETE_SELF | MOVE_SELF;
+        /**
+         * Events that change the listing. MODIFY keeps the size of files that are being written
+         * up to date before they are closed; bursts of writes are coalesced like other events.
+         */
+        private static final int NOTIFY_EVENTS = ATTRIB | MODIFY | CLOSE_WRITE | MOVED_FROM
+                | MOVED_TO | CREATE | DELETE | DELETE_SELF | MOVE_SELF;
+        /** Events that may change what paths resolve to. */
+        private static final int PATH_EVENTS = MOVED_FROM | MOVED_TO | CREATE | DELETE
+                | DELETE_SELF | MOVE_SELF;
+        /** Events that may change which children are the most recently modified or largest. */
+        private static final int FILE_EVENTS = CLOSE_WRITE | MOVED_FROM | MOVED_TO | DELETE;
 
         private final File mFile;
         private final ContentResolver mResolver;
         private final Uri mNotifyUri;
+        private final Handler mHandler;
+        private final DirectoryModel mModel;
 
         private int mRefCount = 0;
+        /** Uptime when the last cursor was closed. */
+        private long mIdleSince;
+
+        /** Index of the directory's root and its path relative to the root. */
+        private FilenameIndex mIndex;
+        private String mIndexPath;
+        /** Recursive directory sizes, which need to be updated when files change. */
+        private DirectorySizes mSizes;
+        /** Recent and largest files of the directory's root and the directory's document ID. */
+        private TopFiles mTopFiles;
+        private String mDocId;
+
+        /** Uptime of the oldest event that hasn't been delivered yet, or -1 if none. */
+        @GuardedBy("this")
+        private long mPendingSince = -1;
+        @GuardedBy("this")
+        private long mRawEvents;
+        @GuardedBy("this")
+        private long mDeliveredNotifications;
+        /** Whether children were created, moved or deleted since the last notification. */
+        @GuardedBy("this")
+        private boolean mPathsChanged;
+        /** Children that were written, moved or deleted since the last notification. */
+        @GuardedBy("this")
+        private HashSet<String> mChangedFiles = Sets.newHashSet();
+
+        private final Runnable mFlush = new Runnable() {
+            @Override
+            public void run() {
+                final boolean pathsChanged;
+                final HashSet<String> changedFiles;
+                synchronized (DirectoryObserver.this) {
+                    if (mPendingSince < 0) return;
+                    mPendingSince = -1;
+                    mDeliveredNotifications++;
+                    pathsChanged = mPathsChanged;
+                    mPathsChanged = false;
+                    changedFiles = mChangedFiles;
+                    if (!changedFiles.isEmpty()) {
+                        mChangedFiles = Sets.newHashSet();
+                    }
+                }
+                // Do the work now rather than in the queries that the notification triggers
+                mModel.applyPending();
+                if (pathsChanged && mIndex != null) {
+                    mIndex.markDirty(mIndexPath);
+                }
+                if (!changedFiles.isEmpty() && mSizes != null) {
+                    mSizes.invalidate(mFile);
+                }
+                if (mTopFiles != null) {
+                    for (String name : changedFiles) {
+                        mTopFiles.onFileChanged(mFile, mDocId, name);
+                    }
+                }
+                mResolver.notifyChange(mNotifyUri, null, false);
+            }
+        };
 
-        public DirectoryObserver(File file, ContentResolver resolver, Uri notifyUri) {
+        public DirectoryObserver(File file, DirectoryModel model, ContentResolver resolver,
+                Uri notifyUri, Handler handler) {
             super(file.getAbsolutePath(), NOTIFY_EVENTS);
             mFile = file;
             mResolver = resolver;
             mNotifyUri = notifyUri;
+            mHandler = handler;
+            mModel = model;
         }
 
         @Override
         public void onEvent(int event, String path) {
             if ((event & NOTIFY_EVENTS) != 0) {
                 if (LOG_INOTIFY) Log.d(TAG, "onEvent() " + event + " at " + path);
-                mResolver.notifyChange(mNotifyUri, null, false);
+
+                if ((event & (DELETE_SELF | MOVE_SELF)) != 0) {
+                    mModel.invalidate();
+                } else {
+                    mModel.onChildChanged(path);
+                }
+
+                final long now = SystemClock.uptimeMillis();
+                synchronized (this) {
+                    mRawEvents++;
+                    mPathsChanged |= (event & PATH_EVENTS) != 0;
+                    if ((event & FILE_EVENTS) != 0 && path != null) {
+                        mChangedFiles.add(path);
+                    }
+                    scheduleFlushLocked(now);
+                }
+            }
+        }
+
+        /**
+         * Publish the new size of a child directory like a change to the child.
+         */
+        public void onChildSizeChanged(String name) {
+            mModel.onChildChanged(name);
+            final long now = SystemClock.uptimeMillis();
+            synchronized (this) {
+                scheduleFlushLocked(now);
+            }
+        }
+
+        @GuardedBy("this")
+        private void scheduleFlushLocked(long now) {
+            if (mPendingSince < 0) {
+                mPendingSince = now;
+            }
+            // Push the flush back with every event, but not past the latency bound
+            final long deadline = Math.min(now + sNotifyQuietMillis,
+                    mPendingSince + sNotifyMaxLatencyMillis);
+            mHandler.removeCallbacks(mFlush);
+            mHandler.postAtTime(mFlush, deadline);
+        }
+
+        @Override
+        public void stopWatching() {
+            super.stopWatching();
+            // Nobody is listening anymore
+            mHandler.removeCallbacks(mFlush);
+            synchronized (this) {
+                mPendingSince = -1;
             }
         }
 
         @Override
-        public String toString() {
-            return "DirectoryObserver{file=" + mFile.getAbsolutePath() + ", ref=" + mRefCount + "}";
+        public synchronized String toString() {
+            return "DirectoryObserver{file=" + mFile.getAbsolutePath() + ", ref=" + mRefCount
+                    + ", raw=" + mRawEvents + ", delivered=" + mDeliveredNotifications
+                    + ", pending=" + (mPendingSince >= 0) + ", model=" + mModel + "}";
         }
     }
 
-    private class DirectoryCursor extends MatrixCursorCompat {
+    /**
+     * Cursor over a {@link DirectoryListing}. Rows that haven't been stat'ed yet are stat'ed
+     * when they are first moved to.
+     */
+    private class DirectoryCursor extends AbstractCursor {
+        private static final int COLUMN_NONE = 0;
+        private static final int COLUMN_DOCUMENT_ID = 1;
+        private static final int COLUMN_DISPLAY_NAME = 2;
+        private static final int COLUMN_MIME_TYPE = 3;
+        private static final int COLUMN_FLAGS = 4;
+        private static final int COLUMN_SIZE = 5;
+        private static final int COLUMN_LAST_MODIFIED = 6;
+
+        private final String[] mColumnNames;
+        private final int[] mColumns;
+        private final DirectoryListing mListing;
+        private final Bundle mExtras;
         private final File mFile;
 
-        public DirectoryCursor(String[] columnNames, String docId, File file) {
-            super(columnNames);
+        private DirectoryEntry mEntry;
+
+        /**
+         * The caller must have started observing the directory. Observation is stopped when the
+         * cursor is closed.
+         */
+        public DirectoryCursor(String[] columnNames, DirectoryListing listing, Bundle extras,
+                Uri notifyUri) {
+            mColumnNames = columnNames;
+            mColumns = new int[columnNames.length];
+            for (int i = 0; i < columnNames.length; i++) {
+                mColumns[i] = getColumn(columnNames[i]);
+            }
+            mListing = listing;
+            mExtras = extras;
+            mFile = listing.dir;
 
-            final Uri notifyUri = DocumentsContractCompat.buildChildDocumentsUri(
-                    getAuthority(), docId);
             setNotificationUri(getContext().getContentResolver(), notifyUri);
+        }
 
-            mFile = file;
-            startObserving(mFile, notifyUri);
+        private int getColumn(String columnName) {
+            if (Document.COLUMN_DOCUMENT_ID.equals(columnName)) {
+                return COLUMN_DOCUMENT_ID;
+            } else if (Document.COLUMN_DISPLAY_NAME.equals(columnName)) {
+                return COLUMN_DISPLAY_NAME;
+            } else if (Document.COLUMN_MIME_TYPE.equals(columnName)) {
+                return COLUMN_MIME_TYPE;
+            } else if (Document.COLUMN_FLAGS.equals(columnName)) {
+                return COLUMN_FLAGS;
+            } else if (Document.COLUMN_SIZE.equals(columnName)) {
+                return COLUMN_SIZE;
+            } else if (Document.COLUMN_LAST_MODIFIED.equals(columnName)) {
+                return COLUMN_LAST_MODIFIED;
+            } else {
+                return COLUMN_NONE;
+            }
         }
 
         @Override
@@ -568,5 +2073,103 @@ public class ExternalStorageProvider extends DocumentsProviderCompat {
             super.close();
             stopObserving(mFile);
         }
+
+        @Override
+        public Bundle getExtras() {
+            return mExtras;
+        }
+
+        @Override
+        public boolean onMove(int oldPosition, int newPosition) {
+            mEntry = mListing.getEntry(newPosition);
+            return true;
+        }
+
+        @Override
+        public int getCount() {
+            return mListing.size();
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mColumnNames;
+        }
+
+        private Object get(int column) {
+            if (column < 0 || column >= mColumns.length) {
+                throw new CursorIndexOutOfBoundsException("Requested column: "
+                        + column + ", # of columns: " + mColumns.length);
+            }
+            if (mPos < 0) {
+                throw new CursorIndexOutOfBoundsException("Before first row.");
+            }
+            if (mPos >= mListing.size()) {
+                throw new CursorIndexOutOfBoundsException("After last row.");
+            }
+            switch (mColumns[column]) {
+                case COLUMN_DOCUMENT_ID:
+                    return mListing.getDocumentId(mPos);
+                case COLUMN_DISPLAY_NAME:
+                    return mListing.getName(mPos);
+                case COLUMN_MIME_TYPE:
+                    return mEntry.mimeType;
+                case COLUMN_FLAGS:
+                    return mEntry.flags;
+                case COLUMN_SIZE:
+                    if (mEntry.isDirectory()) {
+                        return mDirectorySizes.getSize(
+                                new File(mFile, mListing.getName(mPos)), mEntry.lastModified);
+                    }
+                    return mEntry.size;
+                case COLUMN_LAST_MODIFIED:
+                    return mEntry.lastModified != -1 ? mEntry.lastModified : null;
+                default:
+                    return null;
+            }
+        }
+
+        @Override
+        public String getString(int column) {
+            final Object value = get(column);
+            return value != null ? value.toString() : null;
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            final Object value = get(column);
+            if (value == null) return 0;
+            if (value instanceof Number) return ((Number) value).longValue();
+            return Long.parseLong(value.toString());
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return getLong(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return getLong(column);
+        }
+
+        @Override
+        public int getType(int column) {
+            return DatabaseUtilsCompat.getTypeOfObject(get(column));
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return get(column) == null;
+        }
     }
 }
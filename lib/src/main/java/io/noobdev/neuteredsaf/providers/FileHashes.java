@@ -0,0 +1,231 @@
+package io.noobdev.neuteredsaf.providers;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import io.noobdev.neuteredsaf.compat.IOUtils;
+
+/**
+ * Digests of file contents, stored in SQLite by path, size and mtime so that files that didn't
+ * change are never read twice. Files are read into a direct buffer of {@link #BUFFER_SIZE}
+ * bytes that each thread reuses. Mapping the files instead would leave their regions mapped
+ * until they are garbage collected, which runs out of address space on 32-bit devices when
+ * several threads hash large files.
+ * <p>
+ * Besides digests of whole files, this keeps digests of only the start and end of files, which
+ * are used to rule out most files with the same size before hashing them in full. Safe for
+ * concurrent use; the same file may end up being hashed twice if it is asked for concurrently.
+ */
+final class FileHashes {
+    private static final String TAG = "FileHashes";
+
+    static final String SHA_1 = "SHA-1";
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> sBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    private static final String TABLE_HASHES = "hashes";
+
+    static class DatabaseHelper extends SQLiteOpenHelper {
+        private static final String DB_NAME = "file_hashes.db";
+
+        private static final int VERSION_INITIAL = 1;
+        private static final int VERSION_ALGORITHMS = 2;
+
+        public DatabaseHelper(Context context) {
+            super(context, DB_NAME, null, VERSION_ALGORITHMS);
+            setWriteAheadLoggingEnabled(true);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_HASHES + " (" +
+                    "path TEXT NOT NULL," +
+                    "algorithm TEXT NOT NULL," +
+                    "size INTEGER NOT NULL," +
+                    "mtime INTEGER NOT NULL," +
+                    "digest TEXT NOT NULL," +
+                    "PRIMARY KEY (path, algorithm)" +
+                    ")");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            Log.w(TAG, "Upgrading database; dropping hashes");
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_HASHES);
+            onCreate(db);
+        }
+    }
+
+    private final DatabaseHelper mHelper;
+
+    FileHashes(DatabaseHelper helper) {
+        mHelper = helper;
+    }
+
+    /**
+     * Get the digest of a whole file, hashing it if there is no stored digest for its current
+     * size and mtime. Changes that keep both aren't noticed.
+     *
+     * @param size current size of the file, as in {@link DirectoryEntry#size}
+     * @param mtime current mtime of the file, as in {@link DirectoryEntry#lastModified}
+     * @param algorithm name of a {@link MessageDigest} algorithm
+     * @param bypassCache whether to hash the file even if there is a stored digest
+     * @return the digest as lowercase hex
+     * @throws IllegalArgumentException if the algorithm isn't supported
+     */
+    String getDigest(File file, long size, long mtime, String algorithm, boolean bypassCache)
+            throws IOException {
+        final MessageDigest digest = newDigest(algorithm);
+        final String key = digest.getAlgorithm();
+        String hex = bypassCache ? null : lookup(file, size, mtime, key);
+        if (hex == null) {
+            hex = hashRange(digest, file, 0, size);
+            store(file, size, mtime, key, hex);
+        }
+        return hex;
+    }
+
+    /**
+     * Get the digest of the first and last {@code edgeSize} bytes of a file. Files that differ
+     * here can't have the same contents.
+     *
+     * @see #getDigest(File, long, long, String, boolean)
+     */
+    String getEdgeDigest(File file, long size, long mtime, String algorithm, long edgeSize)
+            throws IOException {
+        final MessageDigest digest = newDigest(algorithm);
+        final String key = digest.getAlgorithm() + "/edges:" + edgeSize;
+        String hex = lookup(file, size, mtime, key);
+        if (hex == null) {
+            final long head = Math.min(size, edgeSize);
+            final long tailStart = Math.max(head, size - edgeSize);
+            FileInputStream in = null;
+            try {
+                in = new FileInputStream(file);
+                final FileChannel channel = in.getChannel();
+                update(digest, channel, 0, head);
+                update(digest, channel, tailStart, size);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+            hex = toHex(digest.digest());
+            store(file, size, mtime, key, hex);
+        }
+        return hex;
+    }
+
+    private static String hashRange(MessageDigest digest, File file, long start, long end)
+            throws IOException {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            update(digest, in.getChannel(), start, end);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Hash the bytes from {@code start} to {@code end} of a file.
+     */
+    private static void update(MessageDigest digest, FileChannel channel, long start, long end)
+            throws IOException {
+        final ByteBuffer buffer = sBuffer.get();
+        long position = start;
+        while (position < end) {
+            buffer.clear();
+            if (end - position < buffer.capacity()) {
+                buffer.limit((int) (end - position));
+            }
+            final int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("File shrank while hashing it");
+            }
+            buffer.flip();
+            digest.update(buffer);
+            position += n;
+        }
+    }
+
+    /**
+     * @return the stored digest or null if there is none for this size and mtime
+     */
+    private String lookup(File file, long size, long mtime, String key) {
+        Cursor cursor = null;
+        try {
+            cursor = mHelper.getReadableDatabase().query(TABLE_HASHES,
+                    new String[] { "digest" },
+                    "path = ? AND algorithm = ? AND size = ? AND mtime = ?",
+                    new String[] { file.getPath(), key, String.valueOf(size),
+                            String.valueOf(mtime) },
+                    null, null, null);
+            if (cursor.moveToFirst()) {
+                return cursor.getString(0);
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to read digest of " + file, e);
+        } finally {
+            IOUtils.closeQuietly(cursor);
+        }
+        return null;
+    }
+
+    private void store(File file, long size, long mtime, String key, String hex) {
+        final String path = file.getPath();
+        try {
+            final SQLiteDatabase db = mHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                // Digests of other algorithms are useless once the file changed
+                db.execSQL("DELETE FROM " + TABLE_HASHES
+                        + " WHERE path = ? AND (size != ? OR mtime != ?)",
+                        new Object[] { path, size, mtime });
+                db.execSQL("INSERT OR REPLACE INTO " + TABLE_HASHES
+                        + " (path, algorithm, size, mtime, digest) VALUES (?, ?, ?, ?, ?)",
+                        new Object[] { path, key, size, mtime, hex });
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to store digest of " + path, e);
+        }
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unsupported algorithm " + algorithm, e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        final char[] digits = "0123456789abcdef".toCharArray();
+        final char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = digits[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = digits[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
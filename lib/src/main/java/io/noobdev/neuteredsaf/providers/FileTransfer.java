@@ -0,0 +1,275 @@
+package io.noobdev.neuteredsaf.providers;
+
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.common.collect.Sets;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.noobdev.neuteredsaf.compat.IOUtils;
+
+/**
+ * A copy or move of a file or directory tree within the provider. Moves are done with a single
+ * rename when the source and target are on the same volume, which takes no time regardless of
+ * size. Otherwise files are copied with {@link FileChannel#transferTo(long, long,
+ * java.nio.channels.WritableByteChannel)}, which lets the kernel move the data between the
+ * files without it passing through a Java buffer.
+ * <p>
+ * Files are copied in chunks of {@link #CHUNK_SIZE} bytes so that progress can be reported and
+ * cancellation noticed. A copy that fails or is cancelled is deleted again. One transfer only
+ * runs once; the status methods are safe to call from other threads.
+ */
+final class FileTransfer {
+    private static final String TAG = "FileTransfer";
+
+    interface Callback {
+        /**
+         * Called on the transferring thread when more bytes were copied, at most every
+         * {@link #NOTIFY_INTERVAL_MILLIS}.
+         */
+        void onProgress(FileTransfer transfer);
+    }
+
+    private static final long CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final long NOTIFY_INTERVAL_MILLIS = 250;
+    /** Safety net for loops that can't be detected because stat() isn't usable. */
+    private static final int MAX_DEPTH = 128;
+
+    /** ID chosen by the caller or null if the transfer can't be followed. */
+    final String id;
+    private final Callback mCallback;
+
+    private final AtomicLong mBytesTransferred = new AtomicLong();
+    /** Bytes to copy or -1 if they weren't counted yet. */
+    private volatile long mTotalBytes = -1;
+    private volatile boolean mCancelled;
+    private long mLastNotify;
+
+    FileTransfer(String id, Callback callback) {
+        this.id = id;
+        mCallback = callback;
+    }
+
+    long getBytesTransferred() {
+        return mBytesTransferred.get();
+    }
+
+    /**
+     * @return number of bytes to copy or -1 if it isn't known yet
+     */
+    long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Copy a file or directory to {@code target}, which must not exist yet.
+     *
+     * @throws OperationCanceledException if the transfer was cancelled
+     */
+    void copy(File source, File target) throws IOException {
+        mTotalBytes = countBytes(source, 0, Sets.<String>newHashSet());
+        boolean success = false;
+        try {
+            copyTree(source, target, 0, Sets.<String>newHashSet());
+            success = true;
+        } finally {
+            if (!success) {
+                deleteTree(target);
+            }
+        }
+    }
+
+    /**
+     * Move a file or directory to {@code target}, which must not exist yet. If it can't be
+     * renamed, eg. because the target is on another volume, the source is copied and then
+     * deleted.
+     * <p>
+     * If the source can't be deleted after copying it, the copies of whatever is left of it
+     * are deleted again, so that every file exists exactly once, and the move fails.
+     *
+     * @throws OperationCanceledException if the transfer was cancelled
+     */
+    void move(File source, File target) throws IOException {
+        if (source.renameTo(target)) {
+            mTotalBytes = 0;
+            return;
+        }
+        if (!source.exists()) {
+            throw new IOException("Missing " + source);
+        }
+        copy(source, target);
+        if (!deleteTree(source)) {
+            deleteRemainingCopies(source, target);
+            throw new IOException("Failed to delete " + source + " after copying it");
+        }
+    }
+
+    private long countBytes(File file, int depth, HashSet<String> visited) {
+        checkCancelled();
+        final File parent = file.getParentFile();
+        final DirectoryEntry entry = DirectoryEntry.stat(
+                parent != null ? parent : file, file.getName(), false);
+        if (!entry.isDirectory()) {
+            return entry.size;
+        }
+        if (depth >= MAX_DEPTH || (entry.ino != 0 && !visited.add(entry.dev + ":" + entry.ino))) {
+            return 0;
+        }
+        long total = 0;
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                total += countBytes(child, depth + 1, visited);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @param visited device and inode of the directories copied so far, to stop symlink loops
+     */
+    private void copyTree(File source, File target, int depth, HashSet<String> visited)
+            throws IOException {
+        checkCancelled();
+        if (!source.isDirectory()) {
+            copyFile(source, target);
+            return;
+        }
+
+        final File parent = source.getParentFile();
+        final DirectoryEntry entry = DirectoryEntry.stat(
+                parent != null ? parent : source, source.getName(), false);
+        if (depth >= MAX_DEPTH || (entry.ino != 0 && !visited.add(entry.dev + ":" + entry.ino))) {
+            // Skipping it would make a move delete what wasn't copied
+            throw new IOException("Directory loop or too deeply nested tree at " + source);
+        }
+        if (!target.mkdir()) {
+            throw new IOException("Failed to mkdir " + target);
+        }
+        final String[] names = source.list();
+        if (names == null) {
+            throw new IOException("Failed to list " + source);
+        }
+        for (String name : names) {
+            copyTree(new File(source, name), new File(target, name), depth + 1, visited);
+        }
+        target.setLastModified(source.lastModified());
+    }
+
+    private void copyFile(File source, File target) throws IOException {
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new FileInputStream(source);
+            out = new FileOutputStream(target);
+            final FileChannel src = in.getChannel();
+            final FileChannel dst = out.getChannel();
+            final long size = src.size();
+            long position = 0;
+            while (position < size) {
+                checkCancelled();
+                final long n = src.transferTo(position, Math.min(CHUNK_SIZE, size - position),
+                        dst);
+                if (n <= 0) {
+                    throw new IOException("Short copy of " + source + " at " + position);
+                }
+                position += n;
+                onTransferred(n);
+            }
+            // Make sure the data is on disk before a move deletes the source
+            out.getFD().sync();
+        } finally {
+            IOUtils.closeQuietly(in);
+            IOUtils.closeQuietly(out);
+        }
+        target.setLastModified(source.lastModified());
+    }
+
+    private void onTransferred(long bytes) {
+        mBytesTransferred.addAndGet(bytes);
+        final long now = SystemClock.uptimeMillis();
+        if (now - mLastNotify >= NOTIFY_INTERVAL_MILLIS) {
+            mLastNotify = now;
+            mCallback.onProgress(this);
+        }
+    }
+
+    private void checkCancelled() {
+        if (mCancelled) {
+            throw new OperationCanceledException("Transfer cancelled");
+        }
+    }
+
+    /**
+     * Delete a file or directory tree without following symlinks to directories.
+     *
+     * @return whether everything was deleted
+     */
+    private static boolean deleteTree(File file) {
+        boolean success = true;
+        if (file.isDirectory() && !isSymlink(file)) {
+            final File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    success &= deleteTree(child);
+                }
+            }
+        }
+        return file.delete() && success;
+    }
+
+    /**
+     * Delete the copies in {@code target} of the parts of {@code source} that still exist, after
+     * deleting the source failed partway.
+     */
+    private static void deleteRemainingCopies(File source, File target) {
+        if (!source.exists()) {
+            // Moved after all; the copy is the only one left
+            return;
+        }
+        if (source.isDirectory() && !isSymlink(source)) {
+            final String[] names = target.list();
+            if (names != null) {
+                for (String name : names) {
+                    deleteRemainingCopies(new File(source, name), new File(target, name));
+                }
+            }
+            // Only succeeds if nothing in it was moved
+            target.delete();
+        } else if (!deleteTree(target)) {
+            Log.w(TAG, "Failed to delete copy " + target + " of " + source);
+        }
+    }
+
+    private static boolean isSymlink(File file) {
+        final File parent = file.getParentFile();
+        if (parent == null) {
+            return false;
+        }
+        try {
+            return !file.getCanonicalFile().equals(
+                    new File(parent.getCanonicalFile(), file.getName()));
+        } catch (IOException e) {
+            // Err on the side of not deleting anything behind the link
+            return true;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FileTransfer{id=" + id + ", transferred=" + mBytesTransferred.get() + "/"
+                + mTotalBytes + ", cancelled=" + mCancelled + "}";
+    }
+}
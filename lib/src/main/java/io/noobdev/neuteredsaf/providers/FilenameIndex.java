@@ -0,0 +1,705 @@
+package io.noobdev.neuteredsaf.providers;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.noobdev.neuteredsaf.internal.annotations.GuardedBy;
+
+/**
+ * Filename index of a root, stored in SQLite. Every name is split into case-folded trigrams so
+ * that a search only has to look at the names that contain all trigrams of the query.
+ * <p>
+ * The index is built once in the background with a {@link ParallelTreeWalker}. Afterwards,
+ * directories whose mtime changed are listed again: right away for watched directories that
+ * reported changes and for all directories when the index is used after a while. Only
+ * directories need to be stat'ed for this, not every file.
+ */
+final class FilenameIndex {
+    private static final String TAG = "FilenameIndex";
+
+    static final int STATE_NONE = ProviderConstants.INDEX_STATE_NONE;
+    static final int STATE_BUILDING = ProviderConstants.INDEX_STATE_BUILDING;
+    static final int STATE_READY = ProviderConstants.INDEX_STATE_READY;
+
+    /** All directories are checked for changes when the index is used after this long. */
+    private static final long REVALIDATE_INTERVAL_MILLIS = 60 * 1000;
+    /** Number of directories written per transaction while building. */
+    private static final int BUILD_BATCH_DIRECTORIES = 256;
+    /** Longer queries only use this many trigrams; the names are checked in full anyway. */
+    private static final int MAX_QUERY_TRIGRAMS = 16;
+
+    private static final String TABLE_ROOTS = "roots";
+    private static final String TABLE_DIRS = "dirs";
+    private static final String TABLE_FILES = "files";
+    private static final String TABLE_TRIGRAMS = "trigrams";
+
+    static class DatabaseHelper extends SQLiteOpenHelper {
+        private static final String DB_NAME = "filename_index.db";
+
+        private static final int VERSION_INITIAL = 1;
+
+        public DatabaseHelper(Context context) {
+            super(context, DB_NAME, null, VERSION_INITIAL);
+            // Let searches read while the index is being written
+            setWriteAheadLoggingEnabled(true);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_ROOTS + " (" +
+                    "root_id TEXT NOT NULL PRIMARY KEY," +
+                    "state INTEGER NOT NULL" +
+                    ")");
+
+            db.execSQL("CREATE TABLE " + TABLE_DIRS + " (" +
+                    "root_id TEXT NOT NULL," +
+                    "path TEXT NOT NULL," +
+                    "mtime INTEGER NOT NULL," +
+                    "PRIMARY KEY (root_id, path)" +
+                    ")");
+
+            db.execSQL("CREATE TABLE " + TABLE_FILES + " (" +
+                    "_id INTEGER PRIMARY KEY," +
+                    "root_id TEXT NOT NULL," +
+                    "parent TEXT NOT NULL," +
+                    "name TEXT NOT NULL," +
+                    "folded TEXT NOT NULL," +
+                    "is_dir INTEGER NOT NULL," +
+                    "UNIQUE (root_id, parent, name)" +
+                    ")");
+
+            db.execSQL("CREATE TABLE " + TABLE_TRIGRAMS + " (" +
+                    "tri INTEGER NOT NULL," +
+                    "file_id INTEGER NOT NULL" +
+                    ")");
+            db.execSQL("CREATE INDEX trigrams_tri ON " + TABLE_TRIGRAMS + " (tri)");
+            db.execSQL("CREATE INDEX trigrams_file_id ON " + TABLE_TRIGRAMS + " (file_id)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            Log.w(TAG, "Upgrading database; rebuilding indexes");
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_ROOTS);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_DIRS);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_FILES);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_TRIGRAMS);
+            onCreate(db);
+        }
+    }
+
+    /**
+     * Indexed file whose name matches a query. It may have been deleted since it was indexed.
+     */
+    static final class Match {
+        /** Path relative to the root. */
+        final String path;
+        final String name;
+
+        Match(String path, String name) {
+            this.path = path;
+            this.name = name;
+        }
+    }
+
+    /** Directory listed while building, waiting to be written. */
+    private static final class PendingDir {
+        final String path;
+        final long mtime;
+        final String[] names;
+        final boolean[] isDir;
+
+        PendingDir(String path, long mtime, String[] names, boolean[] isDir) {
+            this.path = path;
+            this.mtime = mtime;
+            this.names = names;
+            this.isDir = isDir;
+        }
+    }
+
+    private final DatabaseHelper mHelper;
+    private final String mRootId;
+    private final File mRoot;
+    private final String mRootDocId;
+    private final Executor mExecutor;
+
+    /** Serializes writes so that the statements below can be reused. */
+    private final Object mWriteLock = new Object();
+
+    @GuardedBy("this")
+    private boolean mLoaded;
+    @GuardedBy("this")
+    private int mState = STATE_NONE;
+    @GuardedBy("this")
+    private boolean mClosed;
+    @GuardedBy("this")
+    private ParallelTreeWalker mWalker;
+    @GuardedBy("this")
+    private ArrayList<PendingDir> mBatch = Lists.newArrayList();
+    /** Uptime of the last check of all directories. */
+    @GuardedBy("this")
+    private long mLastRevalidate;
+    @GuardedBy("this")
+    private boolean mRevalidatePending;
+    /** Directories that reported changes. */
+    @GuardedBy("this")
+    private final LinkedHashSet<String> mDirty = Sets.newLinkedHashSet();
+
+    private final AtomicBoolean mRefreshing = new AtomicBoolean();
+    private final AtomicInteger mIndexedDirs = new AtomicInteger();
+
+    FilenameIndex(DatabaseHelper helper, String rootId, File root, String rootDocId,
+            Executor executor) {
+        mHelper = helper;
+        mRootId = rootId;
+        mRoot = root;
+        mRootDocId = rootDocId;
+        mExecutor = executor;
+    }
+
+    /**
+     * Read the state of the index from the database. This must not be called on the main
+     * thread.
+     */
+    synchronized int getState() {
+        if (!mLoaded) {
+            mLoaded = true;
+            final Cursor c = mHelper.getReadableDatabase().rawQuery(
+                    "SELECT state FROM " + TABLE_ROOTS + " WHERE root_id = ?",
+                    new String[] { mRootId });
+            try {
+                // An unfinished build can't be resumed
+                if (c.moveToFirst() && c.getInt(0) == STATE_READY) {
+                    mState = STATE_READY;
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return mState;
+    }
+
+    /**
+     * Describe the state of the index in a search cursor's extras.
+     */
+    void putStatus(Bundle extras) {
+        extras.putInt(ProviderConstants.EXTRA_INDEX_STATE, getState());
+        extras.putInt(ProviderConstants.EXTRA_INDEX_PROGRESS, mIndexedDirs.get());
+    }
+
+    /**
+     * Build the index in the background unless it is already built or being built.
+     */
+    void build() {
+        synchronized (this) {
+            if (getState() != STATE_NONE || mClosed) {
+                return;
+            }
+            mState = STATE_BUILDING;
+            mIndexedDirs.set(0);
+            mWalker = new ParallelTreeWalker(mRoot, mRootDocId, mRoot.getPath(), mBuildVisitor);
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                clear();
+                final ParallelTreeWalker walker;
+                synchronized (FilenameIndex.this) {
+                    walker = mWalker;
+                }
+                if (walker != null) {
+                    walker.start();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop using the index, eg. because its volume was unmounted.
+     */
+    void close() {
+        final ParallelTreeWalker walker;
+        synchronized (this) {
+            mClosed = true;
+            walker = mWalker;
+        }
+        if (walker != null) {
+            walker.cancel();
+        }
+    }
+
+    /**
+     * Check all directories for changes in the background if that wasn't done for a while.
+     */
+    void revalidate() {
+        synchronized (this) {
+            if (SystemClock.uptimeMillis() - mLastRevalidate < REVALIDATE_INTERVAL_MILLIS) {
+                return;
+            }
+            mRevalidatePending = true;
+        }
+        scheduleRefresh();
+    }
+
+    /**
+     * List a directory again in the background. Called for watched directories when children
+     * were created, moved or deleted.
+     *
+     * @param path path of the directory relative to the root
+     */
+    void markDirty(String path) {
+        synchronized (this) {
+            if (mState == STATE_NONE) {
+                // A build lists everything anyway
+                return;
+            }
+            mDirty.add(path);
+            if (mState != STATE_READY) {
+                // The build may have walked the directory already; listed again once it's done
+                return;
+            }
+        }
+        scheduleRefresh();
+    }
+
+    /**
+     * Find indexed files whose case-folded name contains {@code query}.
+     */
+    List<Match> query(String query, int limit, CancellationSignal signal) {
+        final String folded = fold(query);
+
+        final StringBuilder sql = new StringBuilder("SELECT parent, name FROM " + TABLE_FILES
+                + " WHERE root_id = ? AND folded LIKE ? ESCAPE '\\'");
+        if (folded.length() >= 3) {
+            final LinkedHashSet<Long> trigrams = Sets.newLinkedHashSet();
+            for (int i = 0; i + 3 <= folded.length() && trigrams.size() < MAX_QUERY_TRIGRAMS;
+                    i++) {
+                trigrams.add(trigram(folded, i));
+            }
+            sql.append(" AND _id IN (SELECT file_id FROM " + TABLE_TRIGRAMS + " WHERE tri IN (");
+            boolean first = true;
+            for (long trigram : trigrams) {
+                if (!first) sql.append(',');
+                sql.append(trigram);
+                first = false;
+            }
+            sql.append(") GROUP BY file_id HAVING COUNT(*) = ").append(trigrams.size())
+                    .append(')');
+        }
+        sql.append(" LIMIT ").append(limit);
+
+        final ArrayList<Match> matches = Lists.newArrayList();
+        final Cursor c = mHelper.getReadableDatabase().rawQuery(sql.toString(),
+                new String[] { mRootId, "%" + escapeLike(folded) + "%" }, signal);
+        try {
+            while (c.moveToNext()) {
+                final String parent = c.getString(0);
+                final String name = c.getString(1);
+                matches.add(new Match(childPath(parent, name), name));
+            }
+        } finally {
+            c.close();
+        }
+        return matches;
+    }
+
+    private final ParallelTreeWalker.Visitor mBuildVisitor = new ParallelTreeWalker.Visitor() {
+        @Override
+        public boolean onDirectory(File dir, String docId, long lastModified,
+                String[] names, DirectoryEntry[] entries) {
+            final boolean[] isDir = new boolean[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                isDir[i] = entries[i].isDirectory();
+            }
+            final PendingDir pending = new PendingDir(docId.substring(mRootDocId.length()),
+                    lastModified, names, isDir);
+
+            ArrayList<PendingDir> batch = null;
+            synchronized (FilenameIndex.this) {
+                if (mClosed) {
+                    return false;
+                }
+                mBatch.add(pending);
+                if (mBatch.size() >= BUILD_BATCH_DIRECTORIES) {
+                    batch = mBatch;
+                    mBatch = Lists.newArrayList();
+                }
+            }
+            if (batch != null) {
+                writeBatch(batch);
+            }
+            return true;
+        }
+
+        @Override
+        public void onStopped(boolean finished) {
+            final ArrayList<PendingDir> batch;
+            synchronized (FilenameIndex.this) {
+                batch = mBatch;
+                mBatch = Lists.newArrayList();
+                mWalker = null;
+            }
+            if (finished) {
+                writeBatch(batch);
+                setReady();
+            } else {
+                synchronized (FilenameIndex.this) {
+                    mState = STATE_NONE;
+                    mDirty.clear();
+                }
+            }
+        }
+    };
+
+    private void clear() {
+        synchronized (mWriteLock) {
+            final SQLiteDatabase db = mHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                final String[] args = new String[] { mRootId };
+                db.execSQL("INSERT OR REPLACE INTO " + TABLE_ROOTS + " (root_id, state)"
+                        + " VALUES (?, " + STATE_BUILDING + ")", args);
+                db.execSQL("DELETE FROM " + TABLE_TRIGRAMS + " WHERE file_id IN (SELECT _id FROM "
+                        + TABLE_FILES + " WHERE root_id = ?)", args);
+                db.delete(TABLE_FILES, "root_id = ?", args);
+                db.delete(TABLE_DIRS, "root_id = ?", args);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    private void setReady() {
+        synchronized (mWriteLock) {
+            mHelper.getWritableDatabase().execSQL("INSERT OR REPLACE INTO " + TABLE_ROOTS
+                    + " (root_id, state) VALUES (?, " + STATE_READY + ")",
+                    new String[] { mRootId });
+        }
+        synchronized (this) {
+            mState = STATE_READY;
+            mLastRevalidate = SystemClock.uptimeMillis();
+            if (mDirty.isEmpty()) {
+                return;
+            }
+        }
+        // Directories that changed while the build was walking the tree
+        scheduleRefresh();
+    }
+
+    private void writeBatch(List<PendingDir> batch) {
+        synchronized (mWriteLock) {
+            final SQLiteDatabase db = mHelper.getWritableDatabase();
+            final Writer writer = new Writer(db);
+            db.beginTransaction();
+            try {
+                for (PendingDir pending : batch) {
+                    for (int i = 0; i < pending.names.length; i++) {
+                        writer.insertFile(pending.path, pending.names[i], pending.isDir[i]);
+                    }
+                    writer.putDirectory(pending.path, pending.mtime);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                writer.close();
+            }
+        }
+        mIndexedDirs.addAndGet(batch.size());
+    }
+
+    private void scheduleRefresh() {
+        if (mRefreshing.compareAndSet(false, true)) {
+            mExecutor.execute(mRefresh);
+        }
+    }
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final boolean all;
+                    final ArrayList<String> dirty;
+                    synchronized (FilenameIndex.this) {
+                        if (mClosed || mState != STATE_READY) {
+                            if (mState != STATE_BUILDING) {
+                                mDirty.clear();
+                            }
+                            mRevalidatePending = false;
+                            break;
+                        }
+                        all = mRevalidatePending;
+                        mRevalidatePending = false;
+                        if (all) {
+                            mLastRevalidate = SystemClock.uptimeMillis();
+                        }
+                        dirty = Lists.newArrayList(mDirty);
+                        mDirty.clear();
+                    }
+                    if (!all && dirty.isEmpty()) {
+                        break;
+                    }
+                    refresh(all, dirty);
+                }
+            } finally {
+                mRefreshing.set(false);
+            }
+
+            // Work may have been added after the loop gave up
+            synchronized (FilenameIndex.this) {
+                if (mClosed || mState != STATE_READY
+                        || mDirty.isEmpty() && !mRevalidatePending) {
+                    return;
+                }
+            }
+            scheduleRefresh();
+        }
+    };
+
+    /**
+     * List changed directories again.
+     *
+     * @param all whether to check all directories
+     * @param dirty directories that are known to have changed
+     */
+    private void refresh(boolean all, List<String> dirty) {
+        final SQLiteDatabase db = mHelper.getWritableDatabase();
+
+        // Path -> mtime in the index, or -1 to list the directory regardless
+        final LinkedHashMap<String, Long> queue = Maps.newLinkedHashMap();
+        for (String path : dirty) {
+            queue.put(path, -1L);
+        }
+        if (all) {
+            final Cursor c = db.rawQuery("SELECT path, mtime FROM " + TABLE_DIRS
+                    + " WHERE root_id = ?", new String[] { mRootId });
+            try {
+                while (c.moveToNext()) {
+                    if (!queue.containsKey(c.getString(0))) {
+                        queue.put(c.getString(0), c.getLong(1));
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        int changed = 0;
+        while (!queue.isEmpty()) {
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+            }
+
+            final Map.Entry<String, Long> next = queue.entrySet().iterator().next();
+            final String path = next.getKey();
+            final long indexedMtime = next.getValue();
+            queue.remove(path);
+
+            final File dir = path.isEmpty() ? mRoot : new File(mRoot, path);
+            final long mtime = dir.lastModified();
+            if (mtime == indexedMtime) {
+                continue;
+            }
+            changed++;
+
+            synchronized (mWriteLock) {
+                final Writer writer = new Writer(db);
+                db.beginTransaction();
+                try {
+                    if (!dir.isDirectory()) {
+                        // Its own row goes away when its parent is listed again
+                        writer.deleteSubtree(path);
+                    } else {
+                        relist(db, writer, path, dir, mtime, queue);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                    writer.close();
+                }
+            }
+        }
+
+        if (changed > 0) {
+            Log.d(TAG, "Updated " + changed + " directories in " + mRootId);
+        }
+    }
+
+    @GuardedBy("mWriteLock")
+    private void relist(SQLiteDatabase db, Writer writer, String path, File dir, long mtime,
+            Map<String, Long> queue) {
+        final String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+
+        // Name -> { id, is_dir }
+        final HashMap<String, long[]> indexed = Maps.newHashMap();
+        final Cursor c = db.rawQuery("SELECT name, _id, is_dir FROM " + TABLE_FILES
+                + " WHERE root_id = ? AND parent = ?", new String[] { mRootId, path });
+        try {
+            while (c.moveToNext()) {
+                indexed.put(c.getString(0), new long[] { c.getLong(1), c.getLong(2) });
+            }
+        } finally {
+            c.close();
+        }
+
+        for (String name : names) {
+            final boolean isDir = new File(dir, name).isDirectory();
+            final long[] existing = indexed.remove(name);
+            if (existing != null) {
+                if ((existing[1] != 0) == isDir) {
+                    continue;
+                }
+                // Replaced by something of another type, eg. a file by a directory
+                writer.deleteFile(existing[0]);
+                if (existing[1] != 0) {
+                    writer.deleteSubtree(childPath(path, name));
+                }
+            }
+            writer.insertFile(path, name, isDir);
+            if (isDir) {
+                queue.put(childPath(path, name), -1L);
+            }
+        }
+        for (Map.Entry<String, long[]> removed : indexed.entrySet()) {
+            writer.deleteFile(removed.getValue()[0]);
+            if (removed.getValue()[1] != 0) {
+                writer.deleteSubtree(childPath(path, removed.getKey()));
+            }
+        }
+        writer.putDirectory(path, mtime);
+    }
+
+    /**
+     * Compiled statements for one batch of writes.
+     */
+    private class Writer {
+        private final SQLiteDatabase mDb;
+        private final SQLiteStatement mInsertFile;
+        private final SQLiteStatement mInsertTrigram;
+        private final SQLiteStatement mPutDirectory;
+
+        Writer(SQLiteDatabase db) {
+            mDb = db;
+            mInsertFile = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_FILES
+                    + " (root_id, parent, name, folded, is_dir) VALUES (?, ?, ?, ?, ?)");
+            mInsertTrigram = db.compileStatement("INSERT INTO " + TABLE_TRIGRAMS
+                    + " (tri, file_id) VALUES (?, ?)");
+            mPutDirectory = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_DIRS
+                    + " (root_id, path, mtime) VALUES (?, ?, ?)");
+        }
+
+        void insertFile(String parent, String name, boolean isDir) {
+            final String folded = fold(name);
+            mInsertFile.bindString(1, mRootId);
+            mInsertFile.bindString(2, parent);
+            mInsertFile.bindString(3, name);
+            mInsertFile.bindString(4, folded);
+            mInsertFile.bindLong(5, isDir ? 1 : 0);
+            final long id = mInsertFile.executeInsert();
+
+            final LinkedHashSet<Long> trigrams = Sets.newLinkedHashSet();
+            for (int i = 0; i + 3 <= folded.length(); i++) {
+                trigrams.add(trigram(folded, i));
+            }
+            for (long trigram : trigrams) {
+                mInsertTrigram.bindLong(1, trigram);
+                mInsertTrigram.bindLong(2, id);
+                mInsertTrigram.executeInsert();
+            }
+        }
+
+        void deleteFile(long id) {
+            final String[] args = new String[] { Long.toString(id) };
+            mDb.delete(TABLE_TRIGRAMS, "file_id = ?", args);
+            mDb.delete(TABLE_FILES, "_id = ?", args);
+        }
+
+        /**
+         * Delete everything below a directory that no longer exists.
+         */
+        void deleteSubtree(String path) {
+            if (path.isEmpty()) {
+                deleteWhere("root_id = ?", "root_id = ?", new String[] { mRootId });
+            } else {
+                // Avoid LIKE so that names don't need to be escaped
+                deleteWhere("root_id = ? AND (parent = ? OR substr(parent, 1, ?) = ?)",
+                        "root_id = ? AND (path = ? OR substr(path, 1, ?) = ?)",
+                        new String[] { mRootId, path, Integer.toString(path.length() + 1),
+                                path + "/" });
+            }
+        }
+
+        private void deleteWhere(String filesWhere, String dirsWhere, String[] args) {
+            mDb.execSQL("DELETE FROM " + TABLE_TRIGRAMS + " WHERE file_id IN (SELECT _id FROM "
+                    + TABLE_FILES + " WHERE " + filesWhere + ")", args);
+            mDb.delete(TABLE_FILES, filesWhere, args);
+            mDb.delete(TABLE_DIRS, dirsWhere, args);
+        }
+
+        void putDirectory(String path, long mtime) {
+            mPutDirectory.bindString(1, mRootId);
+            mPutDirectory.bindString(2, path);
+            mPutDirectory.bindLong(3, mtime);
+            mPutDirectory.executeInsert();
+        }
+
+        void close() {
+            mInsertFile.close();
+            mInsertTrigram.close();
+            mPutDirectory.close();
+        }
+    }
+
+    private static String fold(String name) {
+        return name.toLowerCase(Locale.getDefault());
+    }
+
+    private static long trigram(String s, int start) {
+        return ((long) s.charAt(start) << 32) | ((long) s.charAt(start + 1) << 16)
+                | s.charAt(start + 2);
+    }
+
+    private static String escapeLike(String s) {
+        return s.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    private static String childPath(String parent, String name) {
+        return parent.isEmpty() ? name : parent + '/' + name;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FilenameIndex{root=" + mRootId + ", state=" + mState + ", dirs="
+                + mIndexedDirs.get() + ", dirty=" + mDirty.size()
+                + ", refreshing=" + mRefreshing.get() + "}";
+    }
+}
@@ -0,0 +1,110 @@
+package io.noobdev.neuteredsaf.providers;
+
+/**
+ * Scores filenames against a query for ranked search. A name matches if the query's characters
+ * appear in it in order, ignoring case. Matches score higher when the characters are close
+ * together, start words (after a separator, at a lowercase to uppercase change or at the start
+ * of a number) or come early in the name, and when the file was modified recently.
+ * <p>
+ * The characters are matched greedily from the left, which doesn't always find the best
+ * alignment but only needs a single pass over the name. Scoring doesn't allocate, so it can be
+ * run on every file of a volume. Safe for concurrent use.
+ */
+final class FuzzyMatcher {
+    /** Score of names that don't contain the query. */
+    static final int NO_MATCH = Integer.MIN_VALUE;
+
+    private static final int MATCH_SCORE = 16;
+    private static final int CONSECUTIVE_BONUS = 12;
+    private static final int WORD_START_BONUS = 10;
+    private static final int GAP_PENALTY = 2;
+    private static final int MAX_GAP_PENALTY = 12;
+    private static final int LEADING_PENALTY = 1;
+    private static final int MAX_LEADING_PENALTY = 8;
+    /** Penalty per 8 characters that weren't matched, so shorter names come first. */
+    private static final int LENGTH_PENALTY = 1;
+
+    /** Bonus for a file modified just now. It halves after {@link #RECENCY_HALF_LIFE_MILLIS}. */
+    private static final long MAX_RECENCY_BONUS = 24;
+    private static final long RECENCY_HALF_LIFE_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+
+    private final char[] mQuery;
+
+    FuzzyMatcher(String query) {
+        mQuery = new char[query.length()];
+        for (int i = 0; i < mQuery.length; i++) {
+            mQuery[i] = Character.toLowerCase(query.charAt(i));
+        }
+    }
+
+    /**
+     * @param lastModified modification time of the file or 0 if it isn't known
+     * @param now current time, passed in so that a batch of names is scored the same way
+     * @return the score or {@link #NO_MATCH}
+     */
+    int score(String name, long lastModified, long now) {
+        final int score = score(name);
+        if (score == NO_MATCH || lastModified <= 0) {
+            return score;
+        }
+        final long age = Math.max(0, now - lastModified);
+        return score + (int) (MAX_RECENCY_BONUS * RECENCY_HALF_LIFE_MILLIS
+                / (RECENCY_HALF_LIFE_MILLIS + age));
+    }
+
+    /**
+     * @return the score of {@code name} without the recency bonus or {@link #NO_MATCH}
+     */
+    int score(String name) {
+        final char[] query = mQuery;
+        final int length = name.length();
+        if (length < query.length) {
+            return NO_MATCH;
+        }
+
+        int score = 0;
+        int matched = 0;
+        int last = -1;
+        char prev = 0;
+        for (int i = 0; i < length && matched < query.length; i++) {
+            final char c = name.charAt(i);
+            if (Character.toLowerCase(c) == query[matched]) {
+                score += MATCH_SCORE;
+                if (last < 0) {
+                    score -= Math.min(i * LEADING_PENALTY, MAX_LEADING_PENALTY);
+                } else if (last == i - 1) {
+                    score += CONSECUTIVE_BONUS;
+                } else {
+                    score -= Math.min((i - last - 1) * GAP_PENALTY, MAX_GAP_PENALTY);
+                }
+                if (isWordStart(prev, c, i)) {
+                    score += WORD_START_BONUS;
+                }
+                last = i;
+                matched++;
+            }
+            prev = c;
+        }
+        if (matched < query.length) {
+            return NO_MATCH;
+        }
+        return score - (length - query.length) / 8 * LENGTH_PENALTY;
+    }
+
+    private static boolean isWordStart(char prev, char c, int index) {
+        if (index == 0) {
+            return true;
+        }
+        switch (prev) {
+            case ' ':
+            case '_':
+            case '-':
+            case '.':
+            case '(':
+            case '[':
+                return true;
+        }
+        return (Character.isLowerCase(prev) && Character.isUpperCase(c))
+                || (!Character.isDigit(prev) && Character.isDigit(c));
+    }
+}
@@ -0,0 +1,80 @@
+package io.noobdev.neuteredsaf.providers;
+
+import android.util.LruCache;
+
+import java.io.File;
+
+import io.noobdev.neuteredsaf.internal.annotations.GuardedBy;
+
+/**
+ * Listings of directories that are no longer observed, so that going back to a directory
+ * doesn't need to list and stat it again. Listings are validated against the directory's mtime
+ * when they are taken out of the cache.
+ * <p>
+ * Changes to a file that don't touch its directory (eg. writing to it) aren't noticed while
+ * the directory isn't observed, so listings also expire after a while.
+ */
+class ListingCache extends LruCache<File, DirectoryModel> {
+    private final long mMaxAgeMillis;
+
+    @GuardedBy("this")
+    private int mHits;
+    @GuardedBy("this")
+    private int mMisses;
+    @GuardedBy("this")
+    private int mStale;
+
+    public ListingCache(int maxSizeBytes, long maxAgeMillis) {
+        super(maxSizeBytes);
+        mMaxAgeMillis = maxAgeMillis;
+    }
+
+    @Override
+    protected int sizeOf(File key, DirectoryModel value) {
+        return value.getReleasedSize();
+    }
+
+    /**
+     * Put the listing of a directory that is no longer observed.
+     */
+    public void release(File dir, DirectoryModel model) {
+        model.release();
+        put(dir, model);
+    }
+
+    /**
+     * Take the cached listing of {@code dir} out of the cache. It must be passed to
+     * {@link #revalidate(DirectoryModel)} once the directory is watched.
+     *
+     * @return listing or null if {@code dir} isn't cached
+     */
+    public DirectoryModel take(File dir) {
+        final DirectoryModel model = remove(dir);
+        if (model == null) {
+            synchronized (this) {
+                mMisses++;
+            }
+        }
+        return model;
+    }
+
+    /**
+     * Check a listing returned by {@link #take(File)}.
+     */
+    public void revalidate(DirectoryModel model) {
+        final boolean valid = model.revalidate(mMaxAgeMillis);
+        synchronized (this) {
+            if (valid) {
+                mHits++;
+            } else {
+                mStale++;
+            }
+        }
+    }
+
+    public synchronized String dumpStats() {
+        return "ListingCache{size=" + size() + "/" + maxSize() + " bytes, hits=" + mHits
+                + ", misses=" + mMisses + ", stale=" + mStale
+                + ", evictions=" + evictionCount() + "}";
+    }
+}
@@ -0,0 +1,163 @@
+package io.noobdev.neuteredsaf.providers;
+
+import android.webkit.MimeTypeMap;
+
+import io.noobdev.neuteredsaf.internal.annotations.GuardedBy;
+
+/**
+ * Process-wide cache of {@link MimeTypeMap} lookups, keyed by case-folded file extension.
+ * <p>
+ * Lookups of cached extensions don't allocate: the extension is hashed and compared in place
+ * inside the file name. All returned MIME types are interned, so callers comparing against
+ * string literals or previously returned values will usually hit the reference equality fast
+ * path of {@link String#equals(Object)}.
+ */
+public final class MimeTypeCache {
+    public static final String MIME_TYPE_DEFAULT = "application/octet-stream";
+
+    /** Stop caching new extensions after this many so junk extensions can't grow the table. */
+    private static final int MAX_ENTRIES = 1024;
+
+    private static final class Entry {
+        final String extension;
+        final int hash;
+        /** Null if the extension is unknown. */
+        final String mimeType;
+
+        Entry(String extension, int hash, String mimeType) {
+            this.extension = extension;
+            this.hash = hash;
+            this.mimeType = mimeType;
+        }
+    }
+
+    private static final Object sLock = new Object();
+
+    /**
+     * Open addressing table with linear probing. Entries are immutable, so readers may see a
+     * slot being filled in without holding {@link #sLock}. Resizing publishes a new array.
+     */
+    private static volatile Entry[] sTable = new Entry[128];
+    @GuardedBy("sLock")
+    private static int sSize;
+
+    private MimeTypeCache() {
+    }
+
+    /**
+     * Get the MIME type for a file name based on its extension.
+     *
+     * @return MIME type or {@link #MIME_TYPE_DEFAULT} if the extension is missing or unknown
+     */
+    public static String getTypeForName(String name) {
+        final int lastDot = name.lastIndexOf('.');
+        if (lastDot >= 0) {
+            final String mime = lookup(name, lastDot + 1, name.length());
+            if (mime != null) {
+                return mime;
+            }
+        }
+
+        return MIME_TYPE_DEFAULT;
+    }
+
+    /**
+     * Get the MIME type for an extension (without the leading dot), in any case.
+     *
+     * @return MIME type or null if the extension is unknown
+     */
+    public static String getTypeForExtension(String extension) {
+        return lookup(extension, 0, extension.length());
+    }
+
+    /**
+     * Fold the case of an extension one char at a time, like {@link #hash(String, int, int)}.
+     * Unlike {@link String#toLowerCase(java.util.Locale)}, this never changes the length, so the folded
+     * extension is found again by {@link #find(Entry[], String, int, int, int)}.
+     */
+    private static String fold(String s, int start, int end) {
+        final char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            chars[i - start] = Character.toLowerCase(s.charAt(i));
+        }
+        return new String(chars);
+    }
+
+    private static int hash(String s, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + Character.toLowerCase(s.charAt(i));
+        }
+        // Spread the bits a bit since the table is indexed by the low bits
+        return hash ^ (hash >>> 16);
+    }
+
+    private static Entry find(Entry[] table, String s, int start, int end, int hash) {
+        final int length = end - start;
+        final int mask = table.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            final Entry entry = table[i];
+            if (entry == null) {
+                return null;
+            }
+            if (entry.hash == hash && entry.extension.length() == length
+                    && s.regionMatches(true, start, entry.extension, 0, length)) {
+                return entry;
+            }
+        }
+    }
+
+    private static String lookup(String s, int start, int end) {
+        final int hash = hash(s, start, end);
+
+        final Entry entry = find(sTable, s, start, end, hash);
+        if (entry != null) {
+            return entry.mimeType;
+        }
+
+        final String extension = fold(s, start, end);
+        String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+        if (mimeType != null) {
+            mimeType = mimeType.intern();
+        }
+
+        synchronized (sLock) {
+            final Entry existing = find(sTable, s, start, end, hash);
+            if (existing != null) {
+                return existing.mimeType;
+            }
+            if (sSize < MAX_ENTRIES) {
+                Entry[] table = sTable;
+                if ((sSize + 1) * 2 > table.length) {
+                    table = resize(table);
+                }
+                insert(table, new Entry(extension, hash, mimeType));
+                sSize++;
+                sTable = table;
+            }
+        }
+
+        return mimeType;
+    }
+
+    @GuardedBy("sLock")
+    private static Entry[] resize(Entry[] table) {
+        final Entry[] newTable = new Entry[table.length * 2];
+        for (Entry entry : table) {
+            if (entry != null) {
+                insert(newTable, entry);
+            }
+        }
+        return newTable;
+    }
+
+    @GuardedBy("sLock")
+    private static void insert(Entry[] table, Entry entry) {
+        final int mask = table.length - 1;
+        int i = entry.hash & mask;
+        while (table[i] != null) {
+            i = (i + 1) & mask;
+        }
+        table[i] = entry;
+    }
+}
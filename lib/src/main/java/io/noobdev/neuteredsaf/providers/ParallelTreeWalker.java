@@ -0,0 +1,408 @@
+package io.noobdev.neuteredsaf.providers;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.noobdev.neuteredsaf.compat.OsCompat;
+import io.noobdev.neuteredsaf.compat.OsCompat.ExecutionFailedException;
+import io.noobdev.neuteredsaf.compat.OsCompat.StructStatCompat;
+import io.noobdev.neuteredsaf.internal.annotations.GuardedBy;
+
+/**
+ * Walks a directory tree with several threads. Each worker keeps a deque of directories that it
+ * still has to walk: it takes its own work from the end (depth first) and steals from the
+ * front of the other workers' deques (the shallowest, and usually largest, subtrees) when it
+ * runs out.
+ * <p>
+ * Directories are identified by device and inode, so each is walked once even if it can be
+ * reached through several symlinks, which also stops symlink loops. The number of threads
+ * walking the same volume at the same time is capped across all walkers.
+ * <p>
+ * Walkers share one small pool, so workers never hold on to a thread they don't use: a worker
+ * only takes a thread once it got a slot for its volume, gives it back as soon as it finds no
+ * work, and requeues itself after {@link #SLICE_MILLIS} so that other walks, such as
+ * interactive searches, get their turn during long walks like building the index.
+ * <p>
+ * A walk can be paused, either by {@link #pause()} or by the visitor, and resumed later.
+ * Directories that haven't been walked yet are kept until then.
+ */
+final class ParallelTreeWalker {
+    private static final String TAG = "ParallelTreeWalker";
+
+    interface Visitor {
+        /**
+         * Called concurrently from worker threads after a directory has been listed.
+         * Subdirectories are walked later.
+         *
+         * @param docId document ID of {@code dir}
+         * @param lastModified mtime of {@code dir}, read before it was listed so that changes
+         *            made while it was being listed make it look modified later
+         * @param names names of the children
+         * @param entries attributes of the children, in the same order
+         * @return false to pause the walk
+         */
+        boolean onDirectory(File dir, String docId, long lastModified, String[] names,
+                DirectoryEntry[] entries);
+
+        /**
+         * Called when the walk was paused or cancelled and all workers stopped or when the
+         * whole tree was walked.
+         *
+         * @param finished whether the whole tree was walked
+         */
+        void onStopped(boolean finished);
+    }
+
+    /** Maximum number of threads walking the same volume. */
+    private static final int MAX_THREADS_PER_VOLUME = 4;
+    /** Safety net for loops that can't be detected because stat() isn't usable. */
+    private static final int MAX_DEPTH = 128;
+    /** How long a worker walks before it lets other queued workers have its thread. */
+    private static final long SLICE_MILLIS = 50;
+
+    private static final int POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final ThreadPoolExecutor sExecutor;
+
+    static {
+        sExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @GuardedBy("sVolumePermits")
+    private static final HashMap<String, VolumePermits> sVolumePermits = Maps.newHashMap();
+
+    /**
+     * Slots for the threads walking one volume. Walkers that didn't get one are retried when
+     * a slot is released.
+     */
+    private static final class VolumePermits {
+        @GuardedBy("this")
+        private int mAvailable = MAX_THREADS_PER_VOLUME;
+        @GuardedBy("this")
+        private final LinkedHashSet<ParallelTreeWalker> mWaiters = Sets.newLinkedHashSet();
+
+        /**
+         * @return whether a slot was taken; if not, {@code walker} is retried later
+         */
+        synchronized boolean acquire(ParallelTreeWalker walker) {
+            if (mAvailable > 0) {
+                mAvailable--;
+                mWaiters.remove(walker);
+                return true;
+            }
+            mWaiters.add(walker);
+            return false;
+        }
+
+        void release() {
+            final ParallelTreeWalker[] waiters;
+            synchronized (this) {
+                mAvailable++;
+                waiters = mWaiters.toArray(new ParallelTreeWalker[mWaiters.size()]);
+                mWaiters.clear();
+            }
+            // Walkers that still don't get a slot register again
+            for (ParallelTreeWalker waiter : waiters) {
+                waiter.launchWorkers();
+            }
+        }
+    }
+
+    private static final class Node {
+        final File dir;
+        final String docId;
+        final int depth;
+
+        Node(File dir, String docId, int depth) {
+            this.dir = dir;
+            this.docId = docId;
+            this.depth = depth;
+        }
+    }
+
+    private static final class DirKey {
+        final long dev;
+        final long ino;
+
+        DirKey(long dev, long ino) {
+            this.dev = dev;
+            this.ino = ino;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof DirKey)) return false;
+            final DirKey other = (DirKey) o;
+            return dev == other.dev && ino == other.ino;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (dev ^ (dev >>> 32)) * 31 + (int) (ino ^ (ino >>> 32));
+        }
+    }
+
+    private final Visitor mVisitor;
+    private final VolumePermits mPermits;
+    private final Set<DirKey> mVisited =
+            Collections.newSetFromMap(new ConcurrentHashMap<DirKey, Boolean>());
+
+    /** One deque per worker. Each deque is guarded by itself. */
+    private final ArrayDeque<Node>[] mQueues;
+    /** Directories that were queued but not walked yet. */
+    private final AtomicInteger mOutstanding = new AtomicInteger();
+
+    /** Which deques have a worker, which may be running or queued in the pool. */
+    @GuardedBy("this")
+    private final boolean[] mBusy;
+    @GuardedBy("this")
+    private int mLiveWorkers;
+    @GuardedBy("this")
+    private boolean mPaused;
+    @GuardedBy("this")
+    private boolean mCancelled;
+
+    /**
+     * @param volume path of the volume that {@code root} is on, used to cap the number of
+     *               threads walking it
+     */
+    @SuppressWarnings("unchecked")
+    ParallelTreeWalker(File root, String rootDocId, String volume, Visitor visitor) {
+        mVisitor = visitor;
+
+        synchronized (sVolumePermits) {
+            VolumePermits permits = sVolumePermits.get(volume);
+            if (permits == null) {
+                permits = new VolumePermits();
+                sVolumePermits.put(volume, permits);
+            }
+            mPermits = permits;
+        }
+
+        mQueues = new ArrayDeque[Math.min(POOL_SIZE, MAX_THREADS_PER_VOLUME)];
+        for (int i = 0; i < mQueues.length; i++) {
+            mQueues[i] = new ArrayDeque<>();
+        }
+        mBusy = new boolean[mQueues.length];
+
+        try {
+            final StructStatCompat st = OsCompat.stat(root.getPath());
+            mVisited.add(new DirKey(st.st_dev, st.st_ino));
+        } catch (ExecutionFailedException e) {
+            Log.w(TAG, "Failed to stat " + root, e);
+        }
+        push(0, new Node(root, rootDocId, 0));
+        mPaused = true;
+    }
+
+    /**
+     * Start or resume the walk. Does nothing if it is running, finished or cancelled.
+     */
+    synchronized void start() {
+        if (!mPaused || mCancelled || mOutstanding.get() == 0) {
+            return;
+        }
+        mPaused = false;
+        // Workers that are still winding down carry on as well
+        launchWorkersLocked();
+    }
+
+    private synchronized void launchWorkers() {
+        launchWorkersLocked();
+    }
+
+    /**
+     * Start workers for the queued directories that no worker is about to take, as far as
+     * there are slots for the volume.
+     */
+    @GuardedBy("this")
+    private void launchWorkersLocked() {
+        while (!mPaused && mLiveWorkers < mQueues.length
+                && mLiveWorkers < mOutstanding.get() && mPermits.acquire(this)) {
+            int index = 0;
+            while (mBusy[index]) {
+                index++;
+            }
+            mBusy[index] = true;
+            mLiveWorkers++;
+            submit(index);
+        }
+    }
+
+    private void submit(final int index) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                work(index);
+            }
+        });
+    }
+
+    /**
+     * Stop the walk after the directories that are being walked. It can be resumed with
+     * {@link #start()}.
+     */
+    void pause() {
+        stop(false);
+    }
+
+    void cancel() {
+        stop(true);
+    }
+
+    private void stop(boolean cancel) {
+        final boolean waiting;
+        synchronized (this) {
+            // A walk that is waiting for a slot has no worker left to report that it stopped
+            waiting = !mPaused && mLiveWorkers == 0;
+            mPaused = true;
+            mCancelled |= cancel;
+        }
+        if (waiting) {
+            mVisitor.onStopped(false);
+        }
+    }
+
+    /**
+     * @return whether the walk is walking or waiting for a thread
+     */
+    synchronized boolean isRunning() {
+        return mLiveWorkers > 0 || (!mPaused && mOutstanding.get() > 0);
+    }
+
+    /**
+     * @return whether the walk is paused with directories left to walk
+     */
+    synchronized boolean hasMore() {
+        return mPaused && !mCancelled && mOutstanding.get() > 0;
+    }
+
+    private synchronized boolean shouldStop() {
+        return mPaused;
+    }
+
+    private void push(int index, Node node) {
+        mOutstanding.incrementAndGet();
+        final ArrayDeque<Node> queue = mQueues[index];
+        synchronized (queue) {
+            queue.addLast(node);
+        }
+    }
+
+    private Node poll(int index) {
+        final ArrayDeque<Node> own = mQueues[index];
+        synchronized (own) {
+            final Node node = own.pollLast();
+            if (node != null) {
+                return node;
+            }
+        }
+        for (int i = 1; i < mQueues.length; i++) {
+            final ArrayDeque<Node> victim = mQueues[(index + i) % mQueues.length];
+            synchronized (victim) {
+                final Node node = victim.pollFirst();
+                if (node != null) {
+                    return node;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void work(int index) {
+        final long deadline = SystemClock.uptimeMillis() + SLICE_MILLIS;
+        boolean requeue = false;
+        while (!shouldStop()) {
+            final Node node = poll(index);
+            if (node == null) {
+                // Give the thread back; pushing more directories launches workers again
+                break;
+            }
+
+            final boolean keepGoing;
+            try {
+                keepGoing = walk(index, node);
+            } finally {
+                mOutstanding.decrementAndGet();
+            }
+            if (!keepGoing) {
+                pause();
+            } else if (SystemClock.uptimeMillis() >= deadline) {
+                requeue = true;
+                break;
+            }
+        }
+
+        if (requeue && !shouldStop()) {
+            // Keep the slot, but go to the back of the pool's queue
+            submit(index);
+            return;
+        }
+
+        mPermits.release();
+        final boolean stopped;
+        final boolean finished;
+        synchronized (this) {
+            mBusy[index] = false;
+            mLiveWorkers--;
+            // Picks up directories that were pushed after this worker found none
+            launchWorkersLocked();
+            finished = mOutstanding.get() == 0;
+            stopped = mLiveWorkers == 0 && (finished || mPaused);
+            if (stopped) {
+                mPaused = true;
+            }
+        }
+        if (stopped) {
+            mVisitor.onStopped(finished && !isCancelled());
+        }
+    }
+
+    private synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    private boolean walk(int index, Node node) {
+        final long lastModified = node.dir.lastModified();
+        final String[] names = node.dir.list();
+        if (names == null) {
+            return true;
+        }
+
+        final boolean writable = node.dir.canWrite();
+        final DirectoryEntry[] entries = new DirectoryEntry[names.length];
+        boolean pushed = false;
+        for (int i = 0; i < names.length; i++) {
+            final DirectoryEntry entry = DirectoryEntry.stat(node.dir, names[i], writable);
+            entries[i] = entry;
+
+            if (entry.isDirectory() && node.depth < MAX_DEPTH
+                    && (entry.ino == 0 || mVisited.add(new DirKey(entry.dev, entry.ino)))) {
+                push(index, new Node(new File(node.dir, names[i]),
+                        DirectoryListing.buildChildDocId(node.docId, names[i]), node.depth + 1));
+                pushed = true;
+            }
+        }
+        if (pushed) {
+            launchWorkers();
+        }
+
+        return mVisitor.onDirectory(node.dir, node.docId, lastModified, names, entries);
+    }
+}
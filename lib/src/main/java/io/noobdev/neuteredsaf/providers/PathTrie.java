@@ -0,0 +1,112 @@
+package io.noobdev.neuteredsaf.providers;
+
+import java.util.Arrays;
+
+/**
+ * Maps absolute paths to values, split on path segments. Lookups find the value attached to the
+ * longest path that is a prefix of the query path (by whole segments) without splitting the
+ * query path into substrings.
+ * <p>
+ * Not safe for concurrent modification. Build it on one thread and then only publish it for
+ * lookups (eg. through a volatile field).
+ */
+final class PathTrie<T> {
+    private static final class Node<T> {
+        String[] segments = new String[0];
+        @SuppressWarnings("unchecked")
+        Node<T>[] children = new Node[0];
+        T value;
+
+        Node<T> getChild(String path, int start, int end) {
+            final int length = end - start;
+            for (int i = 0; i < segments.length; i++) {
+                final String segment = segments[i];
+                if (segment.length() == length && path.regionMatches(start, segment, 0, length)) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node<T> getOrAddChild(String segment) {
+            Node<T> child = getChild(segment, 0, segment.length());
+            if (child == null) {
+                child = new Node<>();
+                segments = Arrays.copyOf(segments, segments.length + 1);
+                segments[segments.length - 1] = segment;
+                children = Arrays.copyOf(children, children.length + 1);
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+    }
+
+    /**
+     * Result of {@link #findLongestPrefix(String)}.
+     */
+    static final class Match<T> {
+        final T value;
+        /** Index into the query path just past the end of the matched prefix. */
+        final int end;
+
+        Match(T value, int end) {
+            this.value = value;
+            this.end = end;
+        }
+    }
+
+    private final Node<T> mRoot = new Node<>();
+
+    /**
+     * @return false if a value is already attached to {@code path}
+     */
+    boolean add(String path, T value) {
+        Node<T> node = mRoot;
+        for (String segment : path.split("/")) {
+            if (!segment.isEmpty()) {
+                node = node.getOrAddChild(segment);
+            }
+        }
+        if (node.value != null) {
+            return false;
+        }
+        node.value = value;
+        return true;
+    }
+
+    /**
+     * Find the value attached to the longest path that contains {@code path}.
+     *
+     * @return match or null if no prefix of {@code path} has a value
+     */
+    Match<T> findLongestPrefix(String path) {
+        Node<T> node = mRoot;
+        T value = node.value;
+        int valueEnd = 0;
+
+        final int length = path.length();
+        int start = 0;
+        while (node != null && start < length) {
+            // Skip separators (including repeated ones)
+            while (start < length && path.charAt(start) == '/') {
+                start++;
+            }
+            if (start == length) {
+                break;
+            }
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+
+            node = node.getChild(path, start, end);
+            if (node != null && node.value != null) {
+                value = node.value;
+                valueEnd = end;
+            }
+            start = end;
+        }
+
+        return value != null ? new Match<>(value, valueEnd) : null;
+    }
+}
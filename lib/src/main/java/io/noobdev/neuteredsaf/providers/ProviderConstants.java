@@ -6,4 +6,32 @@ public final class ProviderConstants {
     public static final String ACTION_CREATE_DOCUMENT = "io.noobdev.neuteredsaf.CREATE_DOCUMENT";
     public static final String EXTRA_ALLOW_MULTIPLE = "io.noobdev.neuteredsaf.EXTRA_ALLOW_MULTIPLE";
     public static final String EXTRA_MIME_TYPES = "io.noobdev.neuteredsaf.EXTRA_MIME_TYPES";
+
+    /**
+     * Cursor extras of child documents cursors for watched directories. The token identifies
+     * the live listing that the cursor was built from, the generation counts the changes made
+     * to it and the deltas describe the most recent changes, oldest first.
+     */
+    public static final String EXTRA_LISTING_TOKEN = "io.noobdev.neuteredsaf.EXTRA_LISTING_TOKEN";
+    public static final String EXTRA_LISTING_GENERATION = "io.noobdev.neuteredsaf.EXTRA_LISTING_GENERATION";
+    public static final String EXTRA_LISTING_DELTAS = "io.noobdev.neuteredsaf.EXTRA_LISTING_DELTAS";
+
+    /**
+     * Cursor extras of search cursors. The state is one of the {@code INDEX_STATE_*} values and
+     * the progress is the number of directories indexed so far while the index is being built.
+     * Searches fall back to walking the root until the index is ready.
+     */
+    public static final String EXTRA_INDEX_STATE = "io.noobdev.neuteredsaf.EXTRA_INDEX_STATE";
+    public static final String EXTRA_INDEX_PROGRESS = "io.noobdev.neuteredsaf.EXTRA_INDEX_PROGRESS";
+
+    public static final int INDEX_STATE_NONE = 0;
+    public static final int INDEX_STATE_BUILDING = 1;
+    public static final int INDEX_STATE_READY = 2;
+
+    /**
+     * Cursor extras of content search cursors: the number of bytes scanned so far and whether
+     * the search stopped because it scanned as many bytes as it was allowed to.
+     */
+    public static final String EXTRA_CONTENT_BYTES_SCANNED = "io.noobdev.neuteredsaf.EXTRA_CONTENT_BYTES_SCANNED";
+    public static final String EXTRA_CONTENT_BUDGET_EXHAUSTED = "io.noobdev.neuteredsaf.EXTRA_CONTENT_BUDGET_EXHAUSTED";
 }
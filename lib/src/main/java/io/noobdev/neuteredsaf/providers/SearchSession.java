@@ -0,0 +1,338 @@
+package io.noobdev.neuteredsaf.providers;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.noobdev.neuteredsaf.internal.annotations.GuardedBy;
+
+/**
+ * Filename search under a root that runs in the background. Results are collected as the
+ * {@link ParallelTreeWalker} finds them and the walk pauses once the requested number of results
+ * has been found, so that it can be resumed when more results are asked for.
+ * <p>
+ * A ranked search matches names with a {@link FuzzyMatcher} instead and walks the whole root,
+ * keeping only the best scoring results in a {@link TopKHeap}. A content search looks for the
+ * query inside files with a {@link ContentScanner} and stops for good once the scanner's byte
+ * budget is used up.
+ */
+final class SearchSession {
+    interface Callback {
+        /**
+         * Called on a search thread when new results were found or the search stopped.
+         */
+        void onSearchChanged(SearchSession session);
+    }
+
+    static final class Result {
+        final String docId;
+        final String name;
+        final DirectoryEntry entry;
+
+        Result(String docId, String name, DirectoryEntry entry) {
+            this.docId = docId;
+            this.name = name;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * Results found so far and the state of the search.
+     */
+    static final class Snapshot {
+        final List<Result> results;
+        /** Whether the search is still running. */
+        final boolean loading;
+        /** Whether the search paused with directories left to search. */
+        final boolean hasMore;
+
+        Snapshot(List<Result> results, boolean loading, boolean hasMore) {
+            this.results = results;
+            this.loading = loading;
+            this.hasMore = hasMore;
+        }
+    }
+
+    /** Minimum time between notifications about new results while searching. */
+    private static final long NOTIFY_INTERVAL_MILLIS = 300;
+
+    final String rootId;
+    /** Key of the search in its owner's map. */
+    final String key;
+    /** Session token of the client that owns the search or null if it is shared. */
+    final String token;
+
+    @GuardedBy("this")
+    private String mQuery;
+    @GuardedBy("this")
+    private String mFoldedQuery;
+
+    private final Callback mCallback;
+    private final ParallelTreeWalker mWalker;
+
+    /**
+     * Describes the kind of search and its parameters. Only searches of the same kind can
+     * share work.
+     */
+    final String mode;
+    private final FuzzyMatcher mMatcher;
+    @GuardedBy("this")
+    private final TopKHeap<Result> mRanked;
+    private final ContentScanner mScanner;
+
+    /** Number of cursors using this search. Guarded by the owner. */
+    int mRefCount = 0;
+
+    @GuardedBy("this")
+    private final ArrayList<Result> mResults = Lists.newArrayList();
+    @GuardedBy("this")
+    private int mLimit;
+    @GuardedBy("this")
+    private boolean mCancelled;
+
+    /** Uptime of the last notification about new results. */
+    private final AtomicLong mLastNotify = new AtomicLong();
+
+    /**
+     * @param volume path of the volume that {@code root} is on
+     * @param rankedLimit number of results to keep for a ranked search or 0 for a substring
+     *                    search
+     * @param scanner scanner for a content search or null to search names
+     */
+    SearchSession(String rootId, String key, String token, String mode, File root,
+            String rootDocId, String volume, String query, int rankedLimit,
+            ContentScanner scanner, Callback callback) {
+        this.rootId = rootId;
+        this.key = key;
+        this.token = token;
+        this.mode = mode;
+        mScanner = scanner;
+        mQuery = query;
+        mFoldedQuery = fold(query);
+        if (rankedLimit > 0) {
+            mMatcher = new FuzzyMatcher(query);
+            mRanked = new TopKHeap<>(rankedLimit);
+        } else {
+            mMatcher = null;
+            mRanked = null;
+        }
+        mCallback = callback;
+        mWalker = new ParallelTreeWalker(root, rootDocId, volume, mVisitor);
+    }
+
+    /**
+     * Search until at least {@code limit} results are found or the whole root was searched.
+     * A ranked search always searches the whole root.
+     */
+    void requestLimit(int limit) {
+        synchronized (this) {
+            if (limit > mLimit) {
+                mLimit = limit;
+            }
+            if (mCancelled || (mRanked == null && mResults.size() >= mLimit)
+                    || (mScanner != null && mScanner.isExhausted())) {
+                return;
+            }
+        }
+        mWalker.start();
+    }
+
+    synchronized String getQuery() {
+        return mQuery;
+    }
+
+    /**
+     * Switch to a query that narrows down the current one. Results that no longer match are
+     * dropped and directories that were already searched aren't searched again.
+     *
+     * @return false if {@code query} doesn't contain the current query or this is a ranked or
+     *         content search, in which case a new search is needed
+     */
+    synchronized boolean refine(String query) {
+        final String folded = fold(query);
+        // Results that were dropped from the ranking may rank higher for the new query and
+        // content matches can't be filtered without scanning the files again
+        if (mCancelled || mRanked != null || mScanner != null
+                || !folded.contains(mFoldedQuery)) {
+            return false;
+        }
+        mQuery = query;
+        mFoldedQuery = folded;
+
+        int kept = 0;
+        for (int i = 0; i < mResults.size(); i++) {
+            final Result result = mResults.get(i);
+            if (fold(result.name).contains(folded)) {
+                mResults.set(kept++, result);
+            }
+        }
+        mResults.subList(kept, mResults.size()).clear();
+        return true;
+    }
+
+    /**
+     * Stop searching for now, keeping the results and the directories left to search.
+     */
+    void pause() {
+        mWalker.pause();
+    }
+
+    void cancel() {
+        synchronized (this) {
+            mCancelled = true;
+        }
+        mWalker.cancel();
+    }
+
+    Snapshot snapshot() {
+        final boolean loading = mWalker.isRunning();
+        final boolean hasMore = mWalker.hasMore()
+                && (mScanner == null || !mScanner.isExhausted());
+        synchronized (this) {
+            if (mRanked != null) {
+                // The ranking is only final once the whole root was searched
+                return new Snapshot(mRanked.toSortedList(), loading, false);
+            }
+            return new Snapshot(new ArrayList<>(mResults), loading, hasMore);
+        }
+    }
+
+    private final ParallelTreeWalker.Visitor mVisitor = new ParallelTreeWalker.Visitor() {
+        @Override
+        public boolean onDirectory(File dir, String docId, long lastModified,
+                String[] names, DirectoryEntry[] entries) {
+            if (mMatcher != null) {
+                return rankDirectory(docId, names, entries);
+            }
+
+            final String folded;
+            synchronized (SearchSession.this) {
+                folded = mFoldedQuery;
+            }
+
+            ArrayList<Result> matches = null;
+            for (int i = 0; i < names.length; i++) {
+                final boolean match;
+                if (mScanner != null) {
+                    if (isCancelled() || mScanner.isExhausted()) {
+                        break;
+                    }
+                    match = mScanner.isCandidate(entries[i])
+                            && mScanner.matches(new File(dir, names[i]));
+                } else {
+                    match = fold(names[i]).contains(folded);
+                }
+                if (match) {
+                    if (matches == null) {
+                        matches = Lists.newArrayList();
+                    }
+                    matches.add(new Result(DirectoryListing.buildChildDocId(docId, names[i]),
+                            names[i], entries[i]));
+                }
+            }
+
+            final boolean keepGoing;
+            synchronized (SearchSession.this) {
+                if (mCancelled) {
+                    return false;
+                }
+                if (matches != null) {
+                    for (Result match : matches) {
+                        // The query may have been refined meanwhile
+                        if (mScanner != null || folded.equals(mFoldedQuery)
+                                || fold(match.name).contains(mFoldedQuery)) {
+                            mResults.add(match);
+                        }
+                    }
+                }
+                keepGoing = mResults.size() < mLimit
+                        && (mScanner == null || !mScanner.isExhausted());
+            }
+
+            if (matches != null) {
+                maybeNotify();
+            }
+            return keepGoing;
+        }
+
+        private boolean rankDirectory(String docId, String[] names, DirectoryEntry[] entries) {
+            final long now = System.currentTimeMillis();
+            boolean changed = false;
+            for (int i = 0; i < names.length; i++) {
+                final int score = mMatcher.score(names[i], entries[i].lastModified, now);
+                if (score == FuzzyMatcher.NO_MATCH) {
+                    continue;
+                }
+                synchronized (SearchSession.this) {
+                    // Only build the document ID for results that make it into the ranking
+                    if (mRanked.accepts(score)) {
+                        mRanked.offer(score, new Result(
+                                DirectoryListing.buildChildDocId(docId, names[i]), names[i],
+                                entries[i]));
+                        changed = true;
+                    }
+                }
+            }
+
+            synchronized (SearchSession.this) {
+                if (mCancelled) {
+                    return false;
+                }
+            }
+            if (changed) {
+                maybeNotify();
+            }
+            return true;
+        }
+
+        @Override
+        public void onStopped(boolean finished) {
+            // Always notify so that clients stop showing the search as loading
+            mCallback.onSearchChanged(SearchSession.this);
+        }
+    };
+
+    private synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Add the progress of a content search to search cursor extras.
+     */
+    void putStatus(Bundle extras) {
+        if (mScanner != null) {
+            extras.putLong(ProviderConstants.EXTRA_CONTENT_BYTES_SCANNED,
+                    mScanner.getBytesScanned());
+            extras.putBoolean(ProviderConstants.EXTRA_CONTENT_BUDGET_EXHAUSTED,
+                    mScanner.isExhausted());
+        }
+    }
+
+    private void maybeNotify() {
+        final long now = SystemClock.uptimeMillis();
+        final long last = mLastNotify.get();
+        if (now - last >= NOTIFY_INTERVAL_MILLIS && mLastNotify.compareAndSet(last, now)) {
+            mCallback.onSearchChanged(this);
+        }
+    }
+
+    private static String fold(String s) {
+        return s.toLowerCase(Locale.getDefault());
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SearchSession{root=" + rootId + ", mode=" + mode + ", query=" + mQuery
+                + ", results="
+                + (mRanked != null ? mRanked.size() + "/" + mRanked.capacity() + " ranked"
+                        : mResults.size() + "/" + mLimit) + ", running=" + mWalker.isRunning()
+                + ", more=" + mWalker.hasMore() + ", cancelled=" + mCancelled + "}";
+    }
+}
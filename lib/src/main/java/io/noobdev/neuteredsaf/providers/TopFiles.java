@@ -0,0 +1,404 @@
+package io.noobdev.neuteredsaf.providers;
+
+import android.os.SystemClock;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.noobdev.neuteredsaf.internal.annotations.GuardedBy;
+
+/**
+ * The files of a root with the highest values of some attributes, such as the most recently
+ * modified ones and the largest ones. They are found by walking the whole root with a
+ * {@link ParallelTreeWalker} into one {@link TopKHeap} per ranking, so memory use only depends on
+ * the number of files kept and a single walk serves all rankings.
+ * <p>
+ * Afterwards, the lists are kept up to date with {@link #onFileChanged(File, String, String)}
+ * for changes that are seen by directory observers, and the root is walked again when a list is
+ * used after {@link #RESCAN_INTERVAL_MILLIS} to pick up the rest. Hidden files aren't included.
+ * <p>
+ * Walks only run while a list is shown: interim results are published while walking and the
+ * walk is cancelled when the last cursor is closed before it is done.
+ */
+final class TopFiles {
+    interface Ranking {
+        /**
+         * @return the value that files are ranked by, highest first
+         */
+        long getKey(DirectoryEntry entry);
+    }
+
+    interface Callback {
+        /**
+         * Called on a worker thread when the list of a ranking changed.
+         *
+         * @param ranking index of the ranking
+         */
+        void onTopFilesChanged(TopFiles files, int ranking);
+    }
+
+    static final class Entry {
+        final String docId;
+        final File file;
+        final long key;
+
+        Entry(String docId, File file, long key) {
+            this.docId = docId;
+            this.file = file;
+            this.key = key;
+        }
+    }
+
+    /** The root is walked again when a list is used after this long. */
+    private static final long RESCAN_INTERVAL_MILLIS = 5 * 60 * 1000;
+    /** Minimum time between notifications about interim results while walking. */
+    private static final long NOTIFY_INTERVAL_MILLIS = 300;
+
+    final String rootId;
+    private final File mRoot;
+    private final String mRootDocId;
+    private final int mCount;
+    private final Ranking[] mRankings;
+    private final Callback mCallback;
+
+    /** Files of each ranking from highest to lowest key, as of the last complete walk. */
+    @GuardedBy("this")
+    private final ArrayList<Entry>[] mEntries;
+    /** Whether a walk ever finished, so that {@link #mEntries} is meaningful. */
+    @GuardedBy("this")
+    private boolean mComplete;
+    /** Running walk or null if there is none. */
+    @GuardedBy("this")
+    private Scan mScan;
+    /** Uptime when the last walk started or 0 if the root should be walked again. */
+    @GuardedBy("this")
+    private long mScanned;
+    /** Number of cursors showing any of the lists. */
+    @GuardedBy("this")
+    private int mRefCount;
+    @GuardedBy("this")
+    private boolean mClosed;
+
+    /**
+     * @param count number of files to keep for each ranking
+     */
+    @SuppressWarnings("unchecked")
+    TopFiles(String rootId, File root, String rootDocId, int count, Ranking[] rankings,
+            Callback callback) {
+        this.rootId = rootId;
+        mRoot = root;
+        mRootDocId = rootDocId;
+        mCount = count;
+        mRankings = rankings;
+        mCallback = callback;
+
+        mEntries = new ArrayList[rankings.length];
+        for (int i = 0; i < rankings.length; i++) {
+            mEntries[i] = Lists.newArrayList();
+        }
+    }
+
+    /**
+     * Start showing a list, walking the root if it was never walked or the last walk is too
+     * old. Every call must be followed by {@link #release()}.
+     */
+    synchronized void acquire() {
+        mRefCount++;
+        if (mClosed || mScan != null) {
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        if (mScanned != 0 && now - mScanned < RESCAN_INTERVAL_MILLIS) {
+            return;
+        }
+        mScanned = now;
+        mScan = new Scan();
+        mScan.walker.start();
+    }
+
+    /**
+     * Stop showing a list. A walk that is still running is cancelled once no list is shown,
+     * and started over next time.
+     */
+    void release() {
+        final Scan scan;
+        synchronized (this) {
+            mRefCount--;
+            if (mRefCount > 0 || mScan == null) {
+                return;
+            }
+            scan = mScan;
+            mScan = null;
+            mScanned = 0;
+        }
+        scan.walker.cancel();
+    }
+
+    synchronized boolean isScanning() {
+        return mScan != null;
+    }
+
+    /**
+     * @param ranking index of the ranking
+     * @return the files from highest to lowest key. Until the first walk finishes, these are
+     *         the best files found so far.
+     */
+    synchronized List<Entry> getEntries(int ranking) {
+        if (!mComplete && mScan != null) {
+            return mScan.getEntries(ranking);
+        }
+        return new ArrayList<>(mEntries[ranking]);
+    }
+
+    /**
+     * Update the lists for a file that was created, modified or deleted.
+     *
+     * @param docId document ID of the directory containing the file
+     */
+    void onFileChanged(File dir, String docId, String name) {
+        if (name == null || name.startsWith(".")) {
+            return;
+        }
+        final File file = new File(dir, name);
+        final DirectoryEntry entry = file.exists()
+                ? DirectoryEntry.stat(dir, name, false) : null;
+        final boolean isFile = entry != null && !entry.isDirectory();
+        final String childDocId = DirectoryListing.buildChildDocId(docId, name);
+
+        final Scan scan;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            scan = mScan;
+        }
+
+        for (int ranking = 0; ranking < mRankings.length; ranking++) {
+            final long key = isFile ? mRankings[ranking].getKey(entry) : 0;
+            // Also let the running walk know, in case it already passed the directory
+            final boolean offered = scan != null && isFile
+                    && scan.offer(ranking, childDocId, file, key);
+
+            final boolean changed;
+            synchronized (this) {
+                if (mComplete) {
+                    changed = update(mEntries[ranking], childDocId, isFile ? file : null, key);
+                } else {
+                    // Until the first walk finishes, the walk's results are the list
+                    changed = offered;
+                }
+            }
+            if (changed) {
+                mCallback.onTopFilesChanged(this, ranking);
+            }
+        }
+    }
+
+    /**
+     * Replace the entry of a file in one of the lists.
+     *
+     * @param file the file or null if it is gone
+     * @return whether the list changed
+     */
+    private boolean update(ArrayList<Entry> entries, String docId, File file, long key) {
+        boolean changed = false;
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).docId.equals(docId)) {
+                entries.remove(i);
+                changed = true;
+                break;
+            }
+        }
+        if (file != null) {
+            int index = 0;
+            while (index < entries.size() && entries.get(index).key >= key) {
+                index++;
+            }
+            if (index < mCount) {
+                entries.add(index, new Entry(docId, file, key));
+                if (entries.size() > mCount) {
+                    entries.remove(entries.size() - 1);
+                }
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Forget a file that turned out to be missing.
+     */
+    synchronized void remove(String docId) {
+        for (ArrayList<Entry> entries : mEntries) {
+            for (int i = 0; i < entries.size(); i++) {
+                if (entries.get(i).docId.equals(docId)) {
+                    entries.remove(i);
+                    break;
+                }
+            }
+        }
+    }
+
+    void close() {
+        final Scan scan;
+        synchronized (this) {
+            mClosed = true;
+            scan = mScan;
+            mScan = null;
+        }
+        if (scan != null) {
+            scan.walker.cancel();
+        }
+    }
+
+    private void notifyChanged(boolean[] rankings) {
+        for (int ranking = 0; ranking < rankings.length; ranking++) {
+            if (rankings[ranking]) {
+                mCallback.onTopFilesChanged(this, ranking);
+            }
+        }
+    }
+
+    /**
+     * One walk of the root. Each walk has its own heaps, so that a cancelled walk can't
+     * interfere with the next one.
+     */
+    private class Scan implements ParallelTreeWalker.Visitor {
+        final ParallelTreeWalker walker =
+                new ParallelTreeWalker(mRoot, mRootDocId, mRoot.getPath(), this);
+
+        @GuardedBy("this")
+        private final TopKHeap<Entry>[] mHeaps;
+        /** Rankings with interim results that weren't notified yet. */
+        @GuardedBy("this")
+        private final boolean[] mDirty;
+        /** Uptime of the last notification about interim results. */
+        private final AtomicLong mLastNotify = new AtomicLong();
+
+        @SuppressWarnings("unchecked")
+        Scan() {
+            mHeaps = new TopKHeap[mRankings.length];
+            for (int i = 0; i < mHeaps.length; i++) {
+                mHeaps[i] = new TopKHeap<>(mCount);
+            }
+            mDirty = new boolean[mRankings.length];
+        }
+
+        synchronized ArrayList<Entry> getEntries(int ranking) {
+            return distinct(mHeaps[ranking].toSortedList());
+        }
+
+        synchronized boolean offer(int ranking, String docId, File file, long key) {
+            if (mHeaps[ranking].accepts(key)) {
+                mHeaps[ranking].offer(key, new Entry(docId, file, key));
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean onDirectory(File dir, String docId, long lastModified,
+                String[] names, DirectoryEntry[] entries) {
+            boolean changed = false;
+            for (int i = 0; i < names.length; i++) {
+                final DirectoryEntry entry = entries[i];
+                if (entry.isDirectory() || names[i].startsWith(".")) {
+                    continue;
+                }
+                String childDocId = null;
+                File file = null;
+                for (int ranking = 0; ranking < mRankings.length; ranking++) {
+                    final long key = mRankings[ranking].getKey(entry);
+                    synchronized (this) {
+                        // Only create the entry for files that make it into a heap
+                        if (mHeaps[ranking].accepts(key)) {
+                            if (childDocId == null) {
+                                childDocId = DirectoryListing.buildChildDocId(docId, names[i]);
+                                file = new File(dir, names[i]);
+                            }
+                            mHeaps[ranking].offer(key, new Entry(childDocId, file, key));
+                            mDirty[ranking] = true;
+                            changed = true;
+                        }
+                    }
+                }
+            }
+
+            if (changed) {
+                final long now = SystemClock.uptimeMillis();
+                final long last = mLastNotify.get();
+                if (now - last >= NOTIFY_INTERVAL_MILLIS && mLastNotify.compareAndSet(last, now)
+                        && isCurrent()) {
+                    final boolean[] dirty;
+                    synchronized (this) {
+                        dirty = mDirty.clone();
+                        Arrays.fill(mDirty, false);
+                    }
+                    notifyChanged(dirty);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void onStopped(boolean finished) {
+            synchronized (TopFiles.this) {
+                if (mScan != this) {
+                    // Cancelled
+                    return;
+                }
+                mScan = null;
+                if (finished) {
+                    for (int ranking = 0; ranking < mEntries.length; ranking++) {
+                        mEntries[ranking] = getEntries(ranking);
+                    }
+                    mComplete = true;
+                }
+            }
+            final boolean[] all = new boolean[mRankings.length];
+            Arrays.fill(all, true);
+            notifyChanged(all);
+        }
+
+        private boolean isCurrent() {
+            synchronized (TopFiles.this) {
+                return mScan == this;
+            }
+        }
+    }
+
+    /**
+     * Drop files that were offered to a heap more than once, by both the walk and
+     * {@link #onFileChanged(File, String, String)}, keeping their highest key.
+     */
+    private static ArrayList<Entry> distinct(ArrayList<Entry> sorted) {
+        final HashSet<String> seen = Sets.newHashSet();
+        final ArrayList<Entry> result = Lists.newArrayListWithCapacity(sorted.size());
+        for (Entry entry : sorted) {
+            if (seen.add(entry.docId)) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sizes = new StringBuilder();
+        for (ArrayList<Entry> entries : mEntries) {
+            if (sizes.length() > 0) {
+                sizes.append(',');
+            }
+            sizes.append(entries.size());
+        }
+        return "TopFiles{root=" + rootId + ", entries=" + sizes + "/" + mCount
+                + ", scanning=" + (mScan != null) + ", ref=" + mRefCount + "}";
+    }
+}
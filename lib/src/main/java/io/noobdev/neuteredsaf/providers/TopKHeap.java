@@ -0,0 +1,127 @@
+package io.noobdev.neuteredsaf.providers;
+
+import com.google.common.collect.Lists;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Keeps the values with the highest keys out of any number of offered ones, using a fixed
+ * amount of memory. The keys are kept in a min-heap of primitives, so callers can check with
+ * {@link #accepts(long)} whether a value would be kept before creating it.
+ * <p>
+ * Not thread-safe.
+ */
+final class TopKHeap<T> {
+    private final long[] mKeys;
+    private final Object[] mValues;
+    private int mSize;
+
+    TopKHeap(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        mKeys = new long[capacity];
+        mValues = new Object[capacity];
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    int capacity() {
+        return mKeys.length;
+    }
+
+    /**
+     * @return whether a value with {@code key} would be kept by {@link #offer(long, Object)}
+     */
+    boolean accepts(long key) {
+        return mSize < mKeys.length || key > mKeys[0];
+    }
+
+    /**
+     * Add a value, dropping the one with the lowest key if the heap is full.
+     *
+     * @return false if the value wasn't kept because its key is too low
+     */
+    boolean offer(long key, T value) {
+        if (mSize < mKeys.length) {
+            siftUp(mSize++, key, value);
+            return true;
+        } else if (key > mKeys[0]) {
+            siftDown(mKeys, mValues, mSize, 0, key, value);
+            return true;
+        }
+        return false;
+    }
+
+    void clear() {
+        Arrays.fill(mValues, 0, mSize, null);
+        mSize = 0;
+    }
+
+    /**
+     * @return the values from highest to lowest key
+     */
+    @SuppressWarnings("unchecked")
+    ArrayList<T> toSortedList() {
+        final long[] keys = Arrays.copyOf(mKeys, mSize);
+        final Object[] values = Arrays.copyOf(mValues, mSize);
+        final Object[] sorted = new Object[mSize];
+        // Pop the lowest one into the last free slot until the copy is empty
+        for (int size = mSize; size > 0; size--) {
+            sorted[size - 1] = values[0];
+            siftDown(keys, values, size - 1, 0, keys[size - 1], values[size - 1]);
+        }
+        final ArrayList<T> result = Lists.newArrayListWithCapacity(mSize);
+        for (Object value : sorted) {
+            result.add((T) value);
+        }
+        return result;
+    }
+
+    private void siftUp(int index, long key, Object value) {
+        while (index > 0) {
+            final int parent = (index - 1) >>> 1;
+            if (mKeys[parent] <= key) {
+                break;
+            }
+            mKeys[index] = mKeys[parent];
+            mValues[index] = mValues[parent];
+            index = parent;
+        }
+        mKeys[index] = key;
+        mValues[index] = value;
+    }
+
+    /**
+     * Put {@code key} at {@code index} of the heap in the first {@code size} slots and move it
+     * down to where it belongs.
+     */
+    private static void siftDown(long[] keys, Object[] values, int size, int index, long key,
+            Object value) {
+        if (size == 0) {
+            values[0] = null;
+            return;
+        }
+        final int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            if (child + 1 < size && keys[child + 1] < keys[child]) {
+                child++;
+            }
+            if (key <= keys[child]) {
+                break;
+            }
+            keys[index] = keys[child];
+            values[index] = values[child];
+            index = child;
+        }
+        keys[index] = key;
+        values[index] = value;
+        if (size < values.length) {
+            values[size] = null;
+        }
+    }
+}
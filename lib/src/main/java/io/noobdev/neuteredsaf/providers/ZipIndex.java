@@ -0,0 +1,470 @@
+package io.noobdev.neuteredsaf.providers;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import io.noobdev.neuteredsaf.compat.IOUtils;
+
+/**
+ * Index of the entries of a zip archive, read from its central directory only. The end of
+ * central directory record is found by reading the last few kilobytes of the file, so indexing
+ * a huge archive only reads the tail and the central directory itself. The central directory is
+ * read in windows of {@link #WINDOW_SIZE} bytes, so only the index itself is kept in memory.
+ * Zip64 archives are supported.
+ * <p>
+ * Entries are arranged into a tree of directories, including the directories that only exist
+ * implicitly as parents of other entries. Entries with "..", absolute or otherwise unusual
+ * paths are left out. Immutable and safe for concurrent use.
+ */
+final class ZipIndex {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final int METHOD_STORED = 0;
+    static final int METHOD_DEFLATED = 8;
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    private static final int FLAG_ENCRYPTED = 1;
+
+    /**
+     * Central directories larger than this are refused, since the index of that many entries
+     * would take up too much of the heap.
+     */
+    private static final long MAX_CENTRAL_DIRECTORY_SIZE = 16 * 1024 * 1024;
+    /** Largest central directory header, with the longest name, extra field and comment. */
+    private static final int MAX_CENTRAL_HEADER_SIZE = CENTRAL_HEADER_SIZE + 3 * 0xffff;
+    /** Size of the part of the central directory that is read at once. Fits any header. */
+    private static final int WINDOW_SIZE = 1024 * 1024;
+
+    static final class Entry {
+        /** Path without leading or trailing slashes. The root directory has an empty path. */
+        final String path;
+        final boolean isDirectory;
+        final int method;
+        final boolean encrypted;
+        final long compressedSize;
+        final long size;
+        final long localHeaderOffset;
+        /** Modification time or -1 if it isn't known. */
+        final long lastModified;
+
+        Entry(String path, boolean isDirectory, int method, boolean encrypted,
+                long compressedSize, long size, long localHeaderOffset, long lastModified) {
+            this.path = path;
+            this.isDirectory = isDirectory;
+            this.method = method;
+            this.encrypted = encrypted;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+            this.lastModified = lastModified;
+        }
+
+        String getName() {
+            return path.substring(path.lastIndexOf('/') + 1);
+        }
+
+        static Entry newDirectory(String path) {
+            return new Entry(path, true, -1, false, 0, 0, -1, -1);
+        }
+    }
+
+    /** Size and mtime of the archive when it was indexed. */
+    final long fileSize;
+    final long fileLastModified;
+
+    private final HashMap<String, Entry> mEntries;
+    private final HashMap<String, ArrayList<Entry>> mChildren;
+
+    private ZipIndex(long fileSize, long fileLastModified, HashMap<String, Entry> entries,
+            HashMap<String, ArrayList<Entry>> children) {
+        this.fileSize = fileSize;
+        this.fileLastModified = fileLastModified;
+        mEntries = entries;
+        mChildren = children;
+    }
+
+    /**
+     * @return the entry or null if there is none
+     */
+    Entry getEntry(String path) {
+        return mEntries.get(path);
+    }
+
+    /**
+     * @return the children of a directory or null if there is no such directory
+     */
+    List<Entry> getChildren(String path) {
+        return mChildren.get(path);
+    }
+
+    /**
+     * @return number of entries, including directories
+     */
+    int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Read the central directory of an archive.
+     *
+     * @param fileSize size of the archive, which must match its current size
+     * @param fileLastModified mtime of the archive, only kept to tell when it changed
+     */
+    static ZipIndex read(File file, long fileSize, long fileLastModified) throws IOException {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            final FileChannel channel = in.getChannel();
+
+            // The end of central directory record is followed by a comment of up to 64 KiB
+            final int tailSize = (int) Math.min(fileSize, EOCD_SIZE + MAX_COMMENT_SIZE);
+            final ByteBuffer tail = readFully(channel, fileSize - tailSize, tailSize);
+            int eocd = -1;
+            for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+                if (tail.getInt(i) == EOCD_SIGNATURE
+                        && i + EOCD_SIZE + (tail.getShort(i + 20) & 0xffff) <= tailSize) {
+                    eocd = i;
+                    break;
+                }
+            }
+            if (eocd < 0) {
+                throw new IOException("Not a zip archive");
+            }
+
+            long count = tail.getShort(eocd + 10) & 0xffff;
+            long cdSize = tail.getInt(eocd + 12) & 0xffffffffL;
+            long cdOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+            if (count == 0xffff || cdSize == 0xffffffffL || cdOffset == 0xffffffffL) {
+                final long locatorOffset = fileSize - tailSize + eocd - ZIP64_LOCATOR_SIZE;
+                if (locatorOffset >= 0) {
+                    final ByteBuffer locator =
+                            readFully(channel, locatorOffset, ZIP64_LOCATOR_SIZE);
+                    if (locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+                        final long zip64Offset = locator.getLong(8);
+                        if (zip64Offset < 0 || zip64Offset + ZIP64_EOCD_SIZE > fileSize) {
+                            throw new IOException("Invalid zip64 locator");
+                        }
+                        final ByteBuffer zip64 = readFully(channel, zip64Offset, ZIP64_EOCD_SIZE);
+                        if (zip64.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                            throw new IOException("Invalid zip64 end of central directory");
+                        }
+                        count = zip64.getLong(32);
+                        cdSize = zip64.getLong(40);
+                        cdOffset = zip64.getLong(48);
+                    }
+                }
+            }
+            if (cdSize < 0 || cdOffset < 0 || cdOffset + cdSize > fileSize) {
+                throw new IOException("Invalid central directory location");
+            }
+            if (cdSize > MAX_CENTRAL_DIRECTORY_SIZE) {
+                throw new IOException("Central directory too large: " + cdSize);
+            }
+
+            return parse(channel, cdOffset, cdSize, count, fileSize, fileLastModified);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private static ZipIndex parse(FileChannel channel, long cdOffset, long cdSize, long count,
+            long fileSize, long fileLastModified) throws IOException {
+        final HashMap<String, Entry> entries = Maps.newHashMap();
+        final HashMap<String, ArrayList<Entry>> children = Maps.newHashMap();
+        entries.put("", Entry.newDirectory(""));
+        children.put("", Lists.<Entry>newArrayList());
+
+        final Calendar calendar = Calendar.getInstance();
+        // Offset of the window in the central directory, and the position in the window
+        long windowOffset = 0;
+        ByteBuffer cd = readFully(channel, cdOffset, (int) Math.min(cdSize, WINDOW_SIZE));
+        int pos = 0;
+        for (long i = 0; i < count; i++) {
+            if (pos + MAX_CENTRAL_HEADER_SIZE > cd.limit()
+                    && windowOffset + cd.limit() < cdSize) {
+                // Move the window so that it starts with the next header
+                windowOffset += pos;
+                cd = readFully(channel, cdOffset + windowOffset,
+                        (int) Math.min(cdSize - windowOffset, WINDOW_SIZE));
+                pos = 0;
+            }
+            if (pos + CENTRAL_HEADER_SIZE > cd.limit()
+                    || cd.getInt(pos) != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("Invalid central directory header at entry " + i);
+            }
+            final int flags = cd.getShort(pos + 8) & 0xffff;
+            final int method = cd.getShort(pos + 10) & 0xffff;
+            final int time = cd.getShort(pos + 12) & 0xffff;
+            final int date = cd.getShort(pos + 14) & 0xffff;
+            long compressedSize = cd.getInt(pos + 20) & 0xffffffffL;
+            long size = cd.getInt(pos + 24) & 0xffffffffL;
+            final int nameLength = cd.getShort(pos + 28) & 0xffff;
+            final int extraLength = cd.getShort(pos + 30) & 0xffff;
+            final int commentLength = cd.getShort(pos + 32) & 0xffff;
+            long localHeaderOffset = cd.getInt(pos + 42) & 0xffffffffL;
+
+            final int nameStart = pos + CENTRAL_HEADER_SIZE;
+            final int extraStart = nameStart + nameLength;
+            final int next = extraStart + extraLength + commentLength;
+            if (next > cd.limit()) {
+                throw new IOException("Truncated central directory at entry " + i);
+            }
+
+            // Fields that don't fit are replaced by 0xffffffff and moved to the zip64 extra
+            for (int extra = extraStart; extra + 4 <= extraStart + extraLength; ) {
+                final int id = cd.getShort(extra) & 0xffff;
+                final int length = cd.getShort(extra + 2) & 0xffff;
+                int field = extra + 4;
+                final int end = Math.min(field + length, extraStart + extraLength);
+                if (id == ZIP64_EXTRA_ID) {
+                    if (size == 0xffffffffL && field + 8 <= end) {
+                        size = cd.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == 0xffffffffL && field + 8 <= end) {
+                        compressedSize = cd.getLong(field);
+                        field += 8;
+                    }
+                    if (localHeaderOffset == 0xffffffffL && field + 8 <= end) {
+                        localHeaderOffset = cd.getLong(field);
+                    }
+                    break;
+                }
+                extra += 4 + length;
+            }
+
+            final byte[] nameBytes = new byte[nameLength];
+            cd.position(nameStart);
+            cd.get(nameBytes);
+            final String rawName = new String(nameBytes, UTF_8);
+            pos = next;
+
+            final String path = normalize(rawName);
+            if (path == null || entries.containsKey(path) || compressedSize < 0 || size < 0
+                    || localHeaderOffset < 0 || localHeaderOffset >= fileSize) {
+                continue;
+            }
+            final boolean isDirectory = rawName.endsWith("/");
+            final Entry entry = new Entry(path, isDirectory, method,
+                    (flags & FLAG_ENCRYPTED) != 0, compressedSize, size, localHeaderOffset,
+                    dosToJavaTime(calendar, date, time));
+            addEntry(entries, children, entry);
+        }
+
+        return new ZipIndex(fileSize, fileLastModified, entries, children);
+    }
+
+    /**
+     * Add an entry and any of its parents that weren't added yet.
+     */
+    private static void addEntry(HashMap<String, Entry> entries,
+            HashMap<String, ArrayList<Entry>> children, Entry entry) {
+        entries.put(entry.path, entry);
+        if (entry.isDirectory && !children.containsKey(entry.path)) {
+            children.put(entry.path, Lists.<Entry>newArrayList());
+        }
+
+        Entry child = entry;
+        while (true) {
+            final int slash = child.path.lastIndexOf('/');
+            final String parentPath = slash < 0 ? "" : child.path.substring(0, slash);
+            final ArrayList<Entry> siblings = children.get(parentPath);
+            if (siblings != null) {
+                siblings.add(child);
+                return;
+            }
+            // Implicit directory, unless a file has the same path
+            final Entry existing = entries.get(parentPath);
+            if (existing != null) {
+                return;
+            }
+            final Entry parent = Entry.newDirectory(parentPath);
+            entries.put(parentPath, parent);
+            final ArrayList<Entry> list = Lists.newArrayList();
+            list.add(child);
+            children.put(parentPath, list);
+            child = parent;
+        }
+    }
+
+    /**
+     * @return the path without empty or "." segments, or null if it is unusable
+     */
+    private static String normalize(String name) {
+        final StringBuilder sb = new StringBuilder(name.length());
+        for (String segment : name.replace('\\', '/').split("/")) {
+            if (segment.isEmpty() || segment.equals(".")) {
+                continue;
+            } else if (segment.equals("..") || segment.indexOf('\0') >= 0) {
+                return null;
+            }
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(segment);
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    private static long dosToJavaTime(Calendar calendar, int date, int time) {
+        if (date == 0) {
+            return -1;
+        }
+        calendar.clear();
+        calendar.set(((date >> 9) & 0x7f) + 1980, ((date >> 5) & 0xf) - 1, date & 0x1f,
+                (time >> 11) & 0x1f, (time >> 5) & 0x3f, (time & 0x1f) * 2);
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * @return offset of the data of a file entry, from its local header
+     */
+    long getDataOffset(FileChannel channel, Entry entry) throws IOException {
+        if (entry.localHeaderOffset + LOCAL_HEADER_SIZE > fileSize) {
+            throw new IOException("Invalid local header offset for " + entry.path);
+        }
+        final ByteBuffer header = readFully(channel, entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Invalid local header for " + entry.path);
+        }
+        final long offset = entry.localHeaderOffset + LOCAL_HEADER_SIZE
+                + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+        if (offset + entry.compressedSize > fileSize) {
+            throw new IOException("Truncated data for " + entry.path);
+        }
+        return offset;
+    }
+
+    /**
+     * Open a stream over the uncompressed contents of a file entry.
+     */
+    InputStream openStream(File file, Entry entry) throws IOException {
+        if (entry.isDirectory) {
+            throw new IOException("Not a file: " + entry.path);
+        } else if (entry.encrypted) {
+            throw new IOException("Encrypted entries are not supported: " + entry.path);
+        } else if (entry.method != METHOD_STORED && entry.method != METHOD_DEFLATED) {
+            throw new IOException("Unsupported compression method " + entry.method);
+        }
+
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final FileChannel channel = in.getChannel();
+            channel.position(getDataOffset(channel, entry));
+            final InputStream data = new BoundedInputStream(in, entry.compressedSize);
+            if (entry.method == METHOD_STORED) {
+                return data;
+            }
+            // Raw deflate streams may need a dummy byte past the end
+            final Inflater inflater = new Inflater(true);
+            return new InflaterInputStream(new SequenceInputStream(data,
+                    new ByteArrayInputStream(new byte[1])), inflater, 64 * 1024) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    inflater.end();
+                }
+            };
+        } catch (IOException e) {
+            IOUtils.closeQuietly(in);
+            throw e;
+        } catch (RuntimeException e) {
+            IOUtils.closeQuietly(in);
+            throw e;
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long offset, int length)
+            throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        buffer.flip();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    /** Reads at most a given number of bytes from a stream. */
+    private static final class BoundedInputStream extends FilterInputStream {
+        private long mRemaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            super(in);
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            final int b = super.read();
+            if (b >= 0) {
+                mRemaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            final int n = super.read(b, off, (int) Math.min(len, mRemaining));
+            if (n > 0) {
+                mRemaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = super.skip(Math.min(n, mRemaining));
+            mRemaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), mRemaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}